@@ -0,0 +1,92 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection storm: every benchmark thread connects, waits for the greeting and disconnects, over and over.
+ * The score is the number of connections established per second, which shows how accepting scales with the number
+ * of acceptor threads, and with listening sockets sharded by SO_REUSEPORT (JDK 9 and later on Linux).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(16)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConnectionRateBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int acceptors;
+
+    /**
+     * Whether all acceptors share one listening socket or each one has a socket of its own.
+     */
+    @Param({"shared", "reusePort"})
+    public String sharding;
+
+    private SimpleSmtpServer server;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        SimpleSmtpServer.Builder builder = SimpleSmtpServer.builder()
+                                                           .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                           .backlog(4096)
+                                                           .nonBlocking(4)
+                                                           .acceptors(acceptors);
+        server = "reusePort".equals(sharding) ? builder.reusePort(acceptors).start() : builder.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        server.stop();
+    }
+
+    @Benchmark
+    public int connect() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            // reset instead of a regular close, so that ports in TIME_WAIT do not run out during the benchmark
+            socket.setSoLinger(true, 0);
+            InputStream in = socket.getInputStream();
+            int code = in.read();
+            if (code != '2')
+                throw new IOException("unexpected greeting");
+            return code;
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * End-to-end delivery of messages over loopback, each benchmark thread sending over a connection of its own.
+ * The score is the number of messages delivered per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LoopbackBenchmark {
+
+    /**
+     * Server shared by all benchmark threads.
+     */
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        /**
+         * Engine handling the connections: blocking with a thread per session, or non-blocking with one event loop.
+         */
+        @Param({"blocking", "nonBlocking"})
+        public String engine;
+
+        /**
+         * Size of each message in bytes.
+         */
+        @Param({"1024", "4194304"})
+        public int messageSize;
+
+        SimpleSmtpServer server;
+
+        byte[] message;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            SimpleSmtpServer.Builder builder = SimpleSmtpServer.builder()
+                                                               .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                               .mailStore(MailStore.bounded(1000, 64 * 1024 * 1024,
+                                                                                            EvictionPolicy.DROP_OLDEST));
+            server = "nonBlocking".equals(engine) ? builder.nonBlocking(1).start()
+                                                  : builder.maxSessions(64).start();
+
+            StringBuilder content = new StringBuilder(messageSize + 80).append("Subject: Benchmark\r\n\r\n");
+            while (content.length() < messageSize)
+                content.append("0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz\r\n");
+            message = content.append(".\r\n").toString().getBytes(ISO_8859_1);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            server.stop();
+        }
+
+    }
+
+    /**
+     * Connection of a single benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        private Socket socket;
+
+        private InputStream in;
+
+        private OutputStream out;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException {
+            socket = new Socket("localhost", server.server.getPort());
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+            expect('2');
+            send("HELO benchmark\r\n");
+            expect('2');
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            send("QUIT\r\n");
+            socket.close();
+        }
+
+        void sendMail(byte[] message) throws IOException {
+            send("MAIL FROM:<sender@here.com>\r\n");
+            expect('2');
+            send("RCPT TO:<receiver@there.com>\r\n");
+            expect('2');
+            send("DATA\r\n");
+            expect('3');
+            out.write(message);
+            out.flush();
+            expect('2');
+        }
+
+        private void send(String line) throws IOException {
+            out.write(line.getBytes(ISO_8859_1));
+            out.flush();
+        }
+
+        /**
+         * Read a single line reply and check the first digit of its code.
+         */
+        private void expect(char code) throws IOException {
+            int first = in.read();
+            int b = first;
+            while (b != '\n') {
+                if (b < 0)
+                    throw new IOException("connection closed");
+                b = in.read();
+            }
+            if (first != code)
+                throw new IOException("unexpected reply code " + (char) first + "xx");
+        }
+
+    }
+
+    @Benchmark
+    public void deliver(Server server, Client client) throws IOException {
+        client.sendMail(server.message);
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Building messages from received content and looking up their headers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SmtpMessageBenchmark {
+
+    private static final SmtpResponse HEADER = new SmtpResponse(-1, "", SmtpState.DATA_HDR);
+
+    private static final SmtpResponse BODY = new SmtpResponse(-1, "", SmtpState.DATA_BODY);
+
+    /**
+     * Number of headers besides From, To, Subject and Message-ID.
+     */
+    @Param({"4", "32"})
+    public int extraHeaders;
+
+    /**
+     * Size of the body in bytes.
+     */
+    @Param({"1024", "65536"})
+    public int bodySize;
+
+    private byte[] content;
+
+    private String[] headerLines;
+
+    private String[] bodyLines;
+
+    private SmtpMessage message;
+
+    @Setup
+    public void setUp() {
+        StringBuilder headers = new StringBuilder()
+            .append("From: sender@here.com\r\n")
+            .append("To: receiver@there.com\r\n")
+            .append("Message-ID: <1234567890@here.com>\r\n");
+        for (int i = 0; i < extraHeaders; i++)
+            headers.append("X-Header-").append(i).append(": value ").append(i).append("\r\n");
+        headers.append("Subject: Benchmark\r\n");
+
+        StringBuilder body = new StringBuilder(bodySize + 80);
+        while (body.length() < bodySize)
+            body.append("0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz\r\n");
+
+        content = (headers + "\r\n" + body).getBytes(ISO_8859_1);
+        headerLines = headers.toString().split("\r\n");
+        bodyLines = body.toString().split("\r\n");
+        message = parse();
+    }
+
+    /**
+     * The whole content at once, as received by a session. Headers and body are parsed only when accessed.
+     */
+    @Benchmark
+    public SmtpMessage parse() {
+        SmtpMessage parsed = new SmtpMessage();
+        parsed.storeData(content, content.length);
+        return parsed;
+    }
+
+    /**
+     * The whole content at once, then a single header, which is all many tests look at.
+     */
+    @Benchmark
+    public String parseAndLookup() {
+        return parse().getHeaderValue("Subject");
+    }
+
+    /**
+     * The whole content at once, then the decoded body.
+     */
+    @Benchmark
+    public String parseAndDecodeBody() {
+        return parse().getBody();
+    }
+
+    /**
+     * Line by line through the public store method.
+     */
+    @Benchmark
+    public SmtpMessage storeLines() {
+        SmtpMessage stored = new SmtpMessage();
+        for (String line : headerLines)
+            stored.store(HEADER, line);
+        for (String line : bodyLines)
+            stored.store(BODY, line);
+        return stored;
+    }
+
+    /**
+     * The last header received.
+     */
+    @Benchmark
+    public String headerValue() {
+        return message.getHeaderValue("Subject");
+    }
+
+    @Benchmark
+    public Object headerNames() {
+        return message.getHeaderNames();
+    }
+
+    @Benchmark
+    public String body() {
+        return message.getBody();
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Parsing and executing single SMTP commands. Results are returned as {@link Object} since the generated benchmark
+ * code lives in another package and cannot see the package-private request types.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SmtpRequestBenchmark {
+
+    private final byte[] helo = ascii("HELO client.example.com");
+
+    private final byte[] mailFrom = ascii("MAIL FROM:<sender@here.com>");
+
+    private final byte[] rcptTo = ascii("rcpt to:<receiver@there.com>");
+
+    private final byte[] unknown = ascii("XYZZY");
+
+    private final SmtpRequest heloRequest = SmtpRequest.createRequest(helo, helo.length, SmtpState.GREET);
+
+    private final SmtpRequest mailRequest = SmtpRequest.createRequest(mailFrom, mailFrom.length, SmtpState.MAIL);
+
+    private final SmtpRequest rcptRequest = SmtpRequest.createRequest(rcptTo, rcptTo.length, SmtpState.RCPT);
+
+    @Benchmark
+    public Object createHelo() {
+        return SmtpRequest.createRequest(helo, helo.length, SmtpState.GREET);
+    }
+
+    @Benchmark
+    public Object createMailFrom() {
+        return SmtpRequest.createRequest(mailFrom, mailFrom.length, SmtpState.MAIL);
+    }
+
+    @Benchmark
+    public Object createRcptTo() {
+        return SmtpRequest.createRequest(rcptTo, rcptTo.length, SmtpState.RCPT);
+    }
+
+    @Benchmark
+    public Object createUnrecognized() {
+        return SmtpRequest.createRequest(unknown, unknown.length, SmtpState.MAIL);
+    }
+
+    @Benchmark
+    public Object executeHelo() {
+        return heloRequest.execute();
+    }
+
+    @Benchmark
+    public Object executeMailFrom() {
+        return mailRequest.execute();
+    }
+
+    @Benchmark
+    public Object executeRcptTo() {
+        return rcptRequest.execute();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(ISO_8859_1);
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Cost of setting up a connection over loopback, from connecting up to the reply to QUIT. Compares plain SMTP with
+ * STARTTLS and implicit TLS, each with a full handshake per connection or with the session of the previous
+ * connection resumed. The score is the average time per connection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class TlsHandshakeBenchmark {
+
+    /**
+     * How the connection is secured: not at all, by STARTTLS after EHLO, or right after connecting.
+     */
+    @Param({"plain", "startTls", "implicitTls"})
+    public String security;
+
+    /**
+     * Whether each connection performs a full handshake or resumes the session of the previous one.
+     */
+    @Param({"full", "resumed"})
+    public String handshake;
+
+    /**
+     * TLS version the client offers.
+     */
+    @Param({"TLSv1.2", "TLSv1.3"})
+    public String protocol;
+
+    private SimpleSmtpServer server;
+
+    private SSLContext client;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        SimpleSmtpServer.Builder builder = SimpleSmtpServer.builder()
+                                                           .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                           .maxSessions(4);
+        if ("startTls".equals(security))
+            builder.startTls();
+        else if ("implicitTls".equals(security))
+            builder.implicitTls();
+        server = builder.start();
+        client = TlsContexts.client();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        server.stop();
+    }
+
+    @Benchmark
+    public void connect() throws IOException {
+        Socket socket = "implicitTls".equals(security)
+                        ? secure(client.getSocketFactory().createSocket("localhost", server.getPort()))
+                        : new Socket("localhost", server.getPort());
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            expect(in, '2');
+            if ("startTls".equals(security)) {
+                send(socket, "EHLO benchmark\r\n");
+                expect(in, '2');
+                send(socket, "STARTTLS\r\n");
+                expect(in, '2');
+                socket = secure(client.getSocketFactory().createSocket(socket, "localhost", server.getPort(), true));
+                in = new BufferedInputStream(socket.getInputStream());
+            }
+            send(socket, "QUIT\r\n");
+            expect(in, '2');
+            if (socket instanceof SSLSocket && "full".equals(handshake))
+                ((SSLSocket) socket).getSession().invalidate();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private Socket secure(Socket socket) {
+        ((SSLSocket) socket).setEnabledProtocols(new String[]{protocol});
+        return socket;
+    }
+
+    private static void send(Socket socket, String line) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(line.getBytes(ISO_8859_1));
+        out.flush();
+    }
+
+    /**
+     * Read a possibly multi-line reply and check the first digit of its code.
+     */
+    private static void expect(InputStream in, char code) throws IOException {
+        boolean last;
+        do {
+            int first = in.read();
+            if (first != code)
+                throw new IOException("unexpected reply code " + (char) first + "xx");
+            in.read();
+            in.read();
+            last = in.read() == ' ';
+            int b;
+            do {
+                b = in.read();
+                if (b < 0)
+                    throw new IOException("connection closed");
+            } while (b != '\n');
+        } while (!last);
+    }
+
+}
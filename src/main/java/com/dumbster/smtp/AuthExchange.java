@@ -0,0 +1,122 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Server side of a single AUTH exchange: sends challenges and decodes the client responses into
+ * {@link Credentials}. Challenges and responses are base64 encoded as they are sent over the wire.
+ * Instances are not thread-safe.
+ */
+final class AuthExchange {
+
+    private static final String USERNAME_PROMPT = encode("Username:");
+
+    private static final String PASSWORD_PROMPT = encode("Password:");
+
+    private final AuthMechanism mechanism;
+
+    /**
+     * Challenge sent for CRAM-MD5, {@code null} for other mechanisms.
+     */
+    private final String challenge;
+
+    /**
+     * User name received with LOGIN while waiting for the password.
+     */
+    private String username;
+
+    private Credentials credentials;
+
+    /**
+     * @param mechanism mechanism the client asked for
+     */
+    AuthExchange(AuthMechanism mechanism) {
+        this.mechanism = mechanism;
+        this.challenge = mechanism == AuthMechanism.CRAM_MD5
+                         ? "<" + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + "."
+                           + System.currentTimeMillis() + "@localhost>"
+                         : null;
+    }
+
+    /**
+     * @return the text of the next 334 reply
+     */
+    String challenge() {
+        switch (mechanism) {
+            case LOGIN:
+                return username == null ? USERNAME_PROMPT : PASSWORD_PROMPT;
+            case CRAM_MD5:
+                return encode(challenge);
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Handle a response of the client, either the initial response given with AUTH or a reply to a challenge.
+     *
+     * @param response base64 encoded response, {@code =} for an empty initial response
+     *
+     * @return true once the credentials are complete, false if another challenge has to be sent
+     *
+     * @throws IllegalArgumentException if the response cannot be decoded
+     */
+    boolean respond(String response) {
+        String decoded = "=".equals(response) ? "" : new String(Base64.getDecoder().decode(response), UTF_8);
+        switch (mechanism) {
+            case PLAIN:
+                int first = decoded.indexOf('\0');
+                int second = decoded.indexOf('\0', first + 1);
+                if (first < 0 || second < 0 || decoded.indexOf('\0', second + 1) >= 0)
+                    throw new IllegalArgumentException("PLAIN response must have three fields");
+                credentials = Credentials.plain(decoded.substring(0, first), decoded.substring(first + 1, second),
+                                                decoded.substring(second + 1));
+                return true;
+            case LOGIN:
+                if (username == null) {
+                    username = decoded;
+                    return false;
+                }
+                credentials = Credentials.login(username, decoded);
+                return true;
+            default:
+                int space = decoded.lastIndexOf(' ');
+                if (space < 0)
+                    throw new IllegalArgumentException("CRAM-MD5 response must have user name and digest");
+                credentials = Credentials.cramMd5(decoded.substring(0, space), challenge, decoded.substring(space + 1));
+                return true;
+        }
+    }
+
+    /**
+     * @return the credentials, once {@link #respond(String)} returned true
+     */
+    Credentials credentials() {
+        return credentials;
+    }
+
+    private static String encode(String s) {
+        return Base64.getEncoder().encodeToString(s.getBytes(ISO_8859_1));
+    }
+
+}
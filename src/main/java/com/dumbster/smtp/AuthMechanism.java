@@ -0,0 +1,68 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.Locale;
+
+/**
+ * SASL mechanisms clients may authenticate with, see RFC 4954.
+ */
+public enum AuthMechanism {
+
+    /**
+     * PLAIN mechanism, credentials are sent in a single response (RFC 4616).
+     */
+    PLAIN("PLAIN"),
+
+    /**
+     * LOGIN mechanism, user name and password are asked for one after another.
+     */
+    LOGIN("LOGIN"),
+
+    /**
+     * CRAM-MD5 mechanism, the client proves knowledge of the password by a keyed digest of a challenge (RFC 2195).
+     */
+    CRAM_MD5("CRAM-MD5");
+
+    private final String name;
+
+    AuthMechanism(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return name of the mechanism as used by the AUTH command
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param name name of the mechanism, case-insensitive
+     *
+     * @return the mechanism, {@code null} if it is not supported
+     */
+    static AuthMechanism forName(String name) {
+        String upper = name.toUpperCase(Locale.ROOT);
+        for (AuthMechanism mechanism : values()) {
+            if (mechanism.name.equals(upper))
+                return mechanism;
+        }
+        return null;
+    }
+
+}
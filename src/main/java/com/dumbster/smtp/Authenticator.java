@@ -0,0 +1,40 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+/**
+ * Decides whether a client may authenticate with the given credentials.
+ * Called by the session receiving the AUTH command, so implementations have to be thread-safe.
+ */
+@FunctionalInterface
+public interface Authenticator {
+
+    /**
+     * @param credentials credentials sent by the client
+     *
+     * @return true to accept them, false to reject them with 535
+     */
+    boolean authenticate(Credentials credentials);
+
+    /**
+     * @return an authenticator accepting any credentials
+     */
+    static Authenticator acceptAll() {
+        return credentials -> true;
+    }
+
+}
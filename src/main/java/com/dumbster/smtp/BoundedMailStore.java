@@ -0,0 +1,257 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a limited number and total size of messages. What happens once a limit is reached depends on the
+ * {@link EvictionPolicy}.
+ */
+@Slf4j
+final class BoundedMailStore extends MailStore {
+
+    private static final Pattern SPILL_FILE = Pattern.compile("\\d{1,18}\\.eml");
+
+    private final int maxMessages;
+
+    private final long maxBytes;
+
+    private final EvictionPolicy policy;
+
+    private final Path spillDirectory;
+
+    private final Deque<SmtpMessage> messages = new ArrayDeque<>();
+
+    private final MessageIndex<SmtpMessage> index = new MessageIndex<>();
+
+    private long bytes;
+
+    /**
+     * Evicted messages still to be written to disk, which is done without holding the lock of the store.
+     */
+    private final Queue<SmtpMessage> toSpill = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of the spill file written last, continuing after the files already in the directory.
+     */
+    private final AtomicLong spilled;
+
+    /**
+     * @param maxMessages maximum number of messages to keep
+     * @param maxBytes maximum total size of the messages to keep
+     * @param policy what to do with new messages once a limit is reached
+     * @param spillDirectory directory evicted messages are written to, only used with
+     *                       {@link EvictionPolicy#SPILL_TO_DISK}
+     */
+    BoundedMailStore(int maxMessages, long maxBytes, EvictionPolicy policy, Path spillDirectory) {
+        if (maxMessages < 1 || maxBytes < 1)
+            throw new IllegalArgumentException("limits must be positive: " + maxMessages + " messages, "
+                                               + maxBytes + " bytes");
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.spillDirectory = spillDirectory;
+        this.spilled = new AtomicLong(lastSpillNumber(spillDirectory));
+    }
+
+    @Override
+    public boolean offer(SmtpMessage message) {
+        boolean stored = store(message);
+        if (!toSpill.isEmpty())
+            spillEvicted();
+        return stored;
+    }
+
+    private synchronized boolean store(SmtpMessage message) {
+        if (exceedsCapacity(message) || policy == EvictionPolicy.REJECT && !fits(message)) {
+            rejected(message);
+            return false;
+        }
+        while (!fits(message))
+            evict(messages.poll());
+        messages.add(message);
+        index.add(message, MessageKeys.of(message));
+        bytes += message.getSize();
+        return true;
+    }
+
+    @Override
+    public synchronized SmtpMessage poll() {
+        SmtpMessage message = messages.poll();
+        if (message != null)
+            removed(message);
+        return message;
+    }
+
+    @Override
+    public synchronized SmtpMessage peek() {
+        return messages.peek();
+    }
+
+    /**
+     * @return an iterator over a snapshot of the stored messages, removing a message removes it from the store
+     */
+    @Override
+    public Iterator<SmtpMessage> iterator() {
+        Iterator<SmtpMessage> snapshot;
+        synchronized (this) {
+            snapshot = Arrays.asList(messages.toArray(new SmtpMessage[0])).iterator();
+        }
+        return new Iterator<SmtpMessage>() {
+
+            private SmtpMessage current;
+
+            @Override
+            public boolean hasNext() {
+                return snapshot.hasNext();
+            }
+
+            @Override
+            public SmtpMessage next() {
+                current = snapshot.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                if (current == null)
+                    throw new IllegalStateException();
+                removeMessage(current);
+                current = null;
+            }
+        };
+    }
+
+    @Override
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        messages.clear();
+        index.clear();
+        bytes = 0;
+    }
+
+    @Override
+    List<SmtpMessage> find(MessageKeys.Field field, String value) {
+        return index.find(field, value);
+    }
+
+    @Override
+    public boolean exceedsCapacity(SmtpMessage message) {
+        return message.getSize() > maxBytes;
+    }
+
+    private boolean fits(SmtpMessage message) {
+        return messages.size() < maxMessages && bytes + message.getSize() <= maxBytes;
+    }
+
+    private synchronized void removeMessage(SmtpMessage message) {
+        // compare identity, messages do not override equals
+        if (messages.remove(message))
+            removed(message);
+    }
+
+    private void removed(SmtpMessage message) {
+        index.remove(message, MessageKeys.of(message));
+        bytes -= message.getSize();
+    }
+
+    private void evict(SmtpMessage message) {
+        removed(message);
+        if (policy == EvictionPolicy.SPILL_TO_DISK)
+            toSpill.add(message);
+        evicted(message);
+    }
+
+    /**
+     * Write the evicted messages to disk. Called without holding the lock, so that other sessions need not wait for
+     * the disk.
+     */
+    private void spillEvicted() {
+        SmtpMessage message;
+        while ((message = toSpill.poll()) != null)
+            spill(message);
+    }
+
+    /**
+     * Write the content of a message as received to a file of its own, never overwriting an existing file.
+     *
+     * @param message evicted message
+     */
+    private void spill(SmtpMessage message) {
+        try {
+            Files.createDirectories(spillDirectory);
+            while (true) {
+                Path file = spillDirectory.resolve(String.format("%010d.eml", spilled.incrementAndGet()));
+                try (SeekableByteChannel channel =
+                         Files.newByteChannel(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    ByteBuffer content = message.getRawMessage();
+                    while (content.hasRemaining())
+                        channel.write(content);
+                    return;
+                } catch (FileAlreadyExistsException e) {
+                    // written by another store sharing the directory, take the next number
+                }
+            }
+        } catch (IOException e) {
+            log.error("could not spill message to {}, dropping it", spillDirectory, e);
+        }
+    }
+
+    /**
+     * @param directory spill directory, may be {@code null} or not exist yet
+     *
+     * @return highest number of the spill files in the directory, 0 if there are none
+     */
+    private static long lastSpillNumber(Path directory) {
+        if (directory == null || !Files.isDirectory(directory))
+            return 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                        .filter(name -> SPILL_FILE.matcher(name).matches())
+                        .mapToLong(name -> Long.parseLong(name.substring(0, name.length() - ".eml".length())))
+                        .max()
+                        .orElse(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not list spill directory " + directory, e);
+        }
+    }
+
+}
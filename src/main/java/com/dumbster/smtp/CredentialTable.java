@@ -0,0 +1,58 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Authenticator accepting users by the password they are known by, kept in a hash map so that lookups stay cheap
+ * under load. Users may be added and removed while the server is running.
+ */
+public final class CredentialTable implements Authenticator {
+
+    private final Map<String, String> passwords = new ConcurrentHashMap<>();
+
+    /**
+     * Add a user, replacing the password if the user is known already.
+     *
+     * @param username name of the user
+     * @param password password of the user
+     *
+     * @return this table
+     */
+    public CredentialTable add(String username, String password) {
+        passwords.put(username, password);
+        return this;
+    }
+
+    /**
+     * @param username name of the user
+     *
+     * @return true if the user was known
+     */
+    public boolean remove(String username) {
+        return passwords.remove(username) != null;
+    }
+
+    @Override
+    public boolean authenticate(Credentials credentials) {
+        String password = passwords.get(credentials.getUsername());
+        return password != null && credentials.verify(password);
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Credentials a client authenticated with, as decoded from the AUTH exchange.
+ * CRAM-MD5 does not reveal the password, only a digest which is checked by {@link #verify(String)}.
+ */
+public final class Credentials {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final AuthMechanism mechanism;
+
+    private final String authorizationId;
+
+    private final String username;
+
+    private final String password;
+
+    private final String challenge;
+
+    private final String digest;
+
+    private Credentials(AuthMechanism mechanism, String authorizationId, String username, String password,
+                        String challenge, String digest) {
+        this.mechanism = mechanism;
+        this.authorizationId = authorizationId;
+        this.username = username;
+        this.password = password;
+        this.challenge = challenge;
+        this.digest = digest;
+    }
+
+    static Credentials plain(String authorizationId, String username, String password) {
+        return new Credentials(AuthMechanism.PLAIN, authorizationId, username, password, null, null);
+    }
+
+    static Credentials login(String username, String password) {
+        return new Credentials(AuthMechanism.LOGIN, "", username, password, null, null);
+    }
+
+    static Credentials cramMd5(String username, String challenge, String digest) {
+        return new Credentials(AuthMechanism.CRAM_MD5, "", username, null, challenge, digest);
+    }
+
+    /**
+     * @return mechanism the client authenticated with
+     */
+    public AuthMechanism getMechanism() {
+        return mechanism;
+    }
+
+    /**
+     * @return identity the client wants to act as, empty unless given with PLAIN
+     */
+    public String getAuthorizationId() {
+        return authorizationId;
+    }
+
+    /**
+     * @return name of the user
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return password as sent by the client, {@code null} for CRAM-MD5
+     */
+    public String getPassword() {
+        return password;
+    }
+
+    /**
+     * Check the credentials against the password of the user.
+     *
+     * @param password the password the user is known by
+     *
+     * @return true if the client sent this password, or a digest computed from it
+     */
+    public boolean verify(String password) {
+        if (mechanism == AuthMechanism.CRAM_MD5) {
+            byte[] expected = cramMd5Digest(password, challenge).getBytes(ISO_8859_1);
+            return MessageDigest.isEqual(digest.getBytes(ISO_8859_1), expected);
+        }
+        return MessageDigest.isEqual(this.password.getBytes(UTF_8), password.getBytes(UTF_8));
+    }
+
+    /**
+     * @param password password of the user
+     * @param challenge challenge sent by the server
+     *
+     * @return the CRAM-MD5 digest, HMAC-MD5 of the challenge keyed with the password in lower case hex
+     */
+    static String cramMd5Digest(String password, String challenge) {
+        try {
+            Mac mac = Mac.getInstance("HmacMD5");
+            byte[] key = password.getBytes(UTF_8);
+            // HMAC pads keys with zeros, SecretKeySpec just refuses empty ones
+            mac.init(new SecretKeySpec(key.length > 0 ? key : new byte[1], "HmacMD5"));
+            byte[] hash = mac.doFinal(challenge.getBytes(ISO_8859_1));
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX[hash[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacMD5 not available", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mechanism.getName() + " " + username;
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+/**
+ * What a bounded {@link MailStore} does with a new message when it is full.
+ */
+public enum EvictionPolicy {
+
+    /**
+     * Drop the oldest messages until the new one fits.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Keep the stored messages and reject the new one. The client gets a 452 reply, or 552 if the message is
+     * larger than the store could ever hold.
+     */
+    REJECT,
+
+    /**
+     * Move the oldest messages to disk until the new one fits. Each message is written to a numbered {@code .eml}
+     * file holding its content as received, numbered on from the files already in the directory.
+     */
+    SPILL_TO_DISK
+
+}
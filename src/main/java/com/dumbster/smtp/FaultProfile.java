@@ -0,0 +1,304 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Faults injected into the sessions of a server, to see how clients cope with a slow or flaky relay: replies delayed
+ * per command, message content read with limited bandwidth, error replies and dropped connections at random.
+ * Delays are scheduled without holding up other sessions.
+ * <p>
+ * Commands are named as in {@link SmtpMetrics#getCommandLatency()}, e.g. {@code MAIL}, {@code RCPT} or
+ * {@code DATA}. {@link #GREETING} stands for the connect and {@link #END_OF_DATA} for the end of message content.
+ *
+ * <pre>
+ * FaultProfile.builder()
+ *             .delay("MAIL", 200, TimeUnit.MILLISECONDS)
+ *             .error("RCPT", 0.1, 451)
+ *             .disconnect(FaultProfile.END_OF_DATA, 0.01)
+ *             .dataBandwidth(1024 * 1024)
+ *             .build();
+ * </pre>
+ */
+public final class FaultProfile {
+
+    /**
+     * Command name of the greeting sent after connecting.
+     */
+    public static final String GREETING = "CONNECT";
+
+    /**
+     * Command name of the end of message content, i.e. the final dot after DATA or the last BDAT chunk.
+     */
+    public static final String END_OF_DATA = "DATA_END";
+
+    /**
+     * Minimum and maximum reply delay in nanoseconds, indexed by the ordinal of the command.
+     */
+    private final long[] minDelay;
+
+    private final long[] maxDelay;
+
+    private final double[] errorProbability;
+
+    private final int[] errorCode;
+
+    private final double[] disconnectProbability;
+
+    private final long dataBandwidth;
+
+    /**
+     * Source of the random numbers of all sessions if seeded, {@code null} otherwise.
+     */
+    private final SplittableRandom seeded;
+
+    private FaultProfile(Builder builder) {
+        this.minDelay = builder.minDelay.clone();
+        this.maxDelay = builder.maxDelay.clone();
+        this.errorProbability = builder.errorProbability.clone();
+        this.errorCode = builder.errorCode.clone();
+        this.disconnectProbability = builder.disconnectProbability.clone();
+        this.dataBandwidth = builder.dataBandwidth;
+        this.seeded = builder.seeded ? new SplittableRandom(builder.seed) : null;
+    }
+
+    /**
+     * Creates a builder of a profile without any faults.
+     *
+     * @return a new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return random numbers for a new session
+     */
+    SplittableRandom newRandom() {
+        if (seeded == null)
+            return new SplittableRandom();
+        synchronized (seeded) {
+            return seeded.split();
+        }
+    }
+
+    /**
+     * @param action command
+     * @param random random numbers of the session
+     *
+     * @return nanoseconds to delay the reply to the command
+     */
+    long delayNanos(SmtpActionType action, SplittableRandom random) {
+        int i = action.ordinal();
+        return minDelay[i] < maxDelay[i] ? random.nextLong(minDelay[i], maxDelay[i] + 1) : minDelay[i];
+    }
+
+    /**
+     * @param action command
+     * @param random random numbers of the session
+     *
+     * @return reply code of the error to reply to the command with, 0 to handle it normally
+     */
+    int errorCode(SmtpActionType action, SplittableRandom random) {
+        int i = action.ordinal();
+        return errorProbability[i] > 0 && random.nextDouble() < errorProbability[i] ? errorCode[i] : 0;
+    }
+
+    /**
+     * @param action command
+     * @param random random numbers of the session
+     *
+     * @return true to close the connection instead of replying to the command
+     */
+    boolean disconnect(SmtpActionType action, SplittableRandom random) {
+        double probability = disconnectProbability[action.ordinal()];
+        return probability > 0 && random.nextDouble() < probability;
+    }
+
+    /**
+     * @param bytes number of bytes of message content
+     *
+     * @return nanoseconds it takes to read the content with the configured bandwidth, 0 if unlimited
+     */
+    long readNanos(int bytes) {
+        return dataBandwidth > 0 ? bytes * TimeUnit.SECONDS.toNanos(1) / dataBandwidth : 0;
+    }
+
+    /**
+     * @param code reply code of an injected error
+     * @param nextState state after the error
+     *
+     * @return the error reply, closing the connection after 421
+     */
+    static SmtpResponse errorResponse(int code, SmtpState nextState) {
+        switch (code) {
+            case 421:
+                return new SmtpResponse(421, "4.3.0 Service not available, closing transmission channel",
+                                        SmtpState.CONNECT);
+            case 451:
+                return new SmtpResponse(451, "4.3.0 Requested action aborted: local error in processing", nextState);
+            default:
+                return new SmtpResponse(452, "4.3.1 Requested action not taken: insufficient system storage",
+                                        nextState);
+        }
+    }
+
+    /**
+     * Configures a {@link FaultProfile}.
+     */
+    public static final class Builder {
+
+        private final long[] minDelay = new long[SmtpActionType.values().length];
+
+        private final long[] maxDelay = new long[SmtpActionType.values().length];
+
+        private final double[] errorProbability = new double[SmtpActionType.values().length];
+
+        private final int[] errorCode = new int[SmtpActionType.values().length];
+
+        private final double[] disconnectProbability = new double[SmtpActionType.values().length];
+
+        private long dataBandwidth;
+
+        private boolean seeded;
+
+        private long seed;
+
+        private Builder() {
+        }
+
+        /**
+         * Delay the reply to a command.
+         *
+         * @param command name of the command
+         * @param delay how long to delay
+         * @param unit unit of the delay
+         *
+         * @return this builder
+         */
+        public Builder delay(String command, long delay, TimeUnit unit) {
+            return delay(command, delay, delay, unit);
+        }
+
+        /**
+         * Delay the reply to a command by a random time between the given bounds.
+         *
+         * @param command name of the command
+         * @param min shortest delay
+         * @param max longest delay
+         * @param unit unit of the delays
+         *
+         * @return this builder
+         */
+        public Builder delay(String command, long min, long max, TimeUnit unit) {
+            if (min < 0 || max < min)
+                throw new IllegalArgumentException("invalid delay: " + min + ".." + max);
+            int i = action(command).ordinal();
+            minDelay[i] = unit.toNanos(min);
+            maxDelay[i] = unit.toNanos(max);
+            return this;
+        }
+
+        /**
+         * Reply to a command with an error instead of handling it. 421 closes the connection after the reply, 451
+         * and 452 leave the session as it was before the command. An error at {@link #END_OF_DATA} discards the
+         * message.
+         *
+         * @param command name of the command
+         * @param probability probability of the error, from 0 to 1
+         * @param code reply code, one of 421, 451 and 452
+         *
+         * @return this builder
+         */
+        public Builder error(String command, double probability, int code) {
+            if (code != 421 && code != 451 && code != 452)
+                throw new IllegalArgumentException("error code must be 421, 451 or 452: " + code);
+            int i = action(command).ordinal();
+            errorProbability[i] = probability(probability);
+            errorCode[i] = code;
+            return this;
+        }
+
+        /**
+         * Close the connection instead of replying to a command. A disconnect at {@link #END_OF_DATA} discards the
+         * message.
+         *
+         * @param command name of the command
+         * @param probability probability of the disconnect, from 0 to 1
+         *
+         * @return this builder
+         */
+        public Builder disconnect(String command, double probability) {
+            disconnectProbability[action(command).ordinal()] = probability(probability);
+            return this;
+        }
+
+        /**
+         * Read message content no faster than the given bandwidth. TCP flow control slows down the client, once the
+         * socket buffers are full.
+         *
+         * @param bytesPerSecond bandwidth per session, 0 for unlimited
+         *
+         * @return this builder
+         */
+        public Builder dataBandwidth(long bytesPerSecond) {
+            if (bytesPerSecond < 0)
+                throw new IllegalArgumentException("bandwidth must not be negative: " + bytesPerSecond);
+            this.dataBandwidth = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Draw random faults from a fixed seed, so that a session sees the same faults in every run.
+         *
+         * @param seed seed of the random numbers
+         *
+         * @return this builder
+         */
+        public Builder seed(long seed) {
+            this.seeded = true;
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * @return a profile with the configured faults
+         */
+        public FaultProfile build() {
+            return new FaultProfile(this);
+        }
+
+        private static SmtpActionType action(String command) {
+            try {
+                return SmtpActionType.valueOf(command.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown command: " + command, e);
+            }
+        }
+
+        private static double probability(double probability) {
+            if (!(probability >= 0 && probability <= 1))
+                throw new IllegalArgumentException("probability must be between 0 and 1: " + probability);
+            return probability;
+        }
+
+    }
+
+}
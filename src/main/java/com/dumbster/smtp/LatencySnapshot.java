@@ -0,0 +1,112 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Durations recorded up to some point in time: how many, their mean and maximum and percentiles of their distribution.
+ * Percentiles are accurate to 12.5%. All durations are in nanoseconds.
+ */
+public final class LatencySnapshot {
+
+    private final long count;
+
+    private final long totalNanos;
+
+    private final long maxNanos;
+
+    private final long p50Nanos;
+
+    private final long p90Nanos;
+
+    private final long p99Nanos;
+
+    /**
+     * @param count number of durations
+     * @param totalNanos sum of all durations
+     * @param maxNanos longest duration
+     * @param p50Nanos median
+     * @param p90Nanos 90th percentile
+     * @param p99Nanos 99th percentile
+     */
+    @ConstructorProperties({"count", "totalNanos", "maxNanos", "p50Nanos", "p90Nanos", "p99Nanos"})
+    public LatencySnapshot(long count, long totalNanos, long maxNanos, long p50Nanos, long p90Nanos, long p99Nanos) {
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+        this.p50Nanos = p50Nanos;
+        this.p90Nanos = p90Nanos;
+        this.p99Nanos = p99Nanos;
+    }
+
+    /**
+     * @return number of recorded durations
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return sum of all durations
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return mean duration, 0 if none was recorded
+     */
+    public long getMeanNanos() {
+        return count == 0 ? 0 : totalNanos / count;
+    }
+
+    /**
+     * @return longest duration
+     */
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * @return median duration
+     */
+    public long getP50Nanos() {
+        return p50Nanos;
+    }
+
+    /**
+     * @return duration 90% of all durations are shorter than or equal to
+     */
+    public long getP90Nanos() {
+        return p90Nanos;
+    }
+
+    /**
+     * @return duration 99% of all durations are shorter than or equal to
+     */
+    public long getP99Nanos() {
+        return p99Nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + ", mean=" + getMeanNanos() + "ns, p50=" + p50Nanos + "ns, p90=" + p90Nanos
+            + "ns, p99=" + p99Nanos + "ns, max=" + maxNanos + "ns";
+    }
+
+}
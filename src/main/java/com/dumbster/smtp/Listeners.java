@@ -0,0 +1,127 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Opens the sockets a server listens on.
+ */
+@Slf4j
+final class Listeners {
+
+    /**
+     * SO_REUSEPORT, {@code null} before JDK 9.
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+    private Listeners() {
+    }
+
+    /**
+     * Opens the listening sockets. Several sockets share the port with SO_REUSEPORT (JDK 9 and later, on Linux and
+     * BSDs), so that the kernel spreads incoming connections across them. Where SO_REUSEPORT is not available a
+     * single socket is opened instead.
+     *
+     * @param port port to listen on, {@link SimpleSmtpServer#AUTO_SMTP_PORT} to pick any free one
+     * @param backlog maximum number of connections waiting to be accepted, per socket
+     * @param count number of sockets
+     * @param implicitTls context for TLS right after connecting, {@code null} for plain connections
+     * @param channels whether to open sockets with a {@link ServerSocketChannel} as the non-blocking engine needs
+     *
+     * @return the listening sockets, all bound to the same port
+     *
+     * @throws IOException when listening on the port causes one
+     */
+    static List<ServerSocket> open(int port, int backlog, int count, SSLContext implicitTls, boolean channels)
+        throws IOException {
+        if (implicitTls != null)
+            return Collections.singletonList(implicitTls.getServerSocketFactory().createServerSocket(port, backlog));
+        if (count == 1 || !reusePortSupported()) {
+            if (count > 1)
+                log.warn("SO_REUSEPORT not available on java {} / {}, falling back to a single listening socket",
+                         System.getProperty("java.version"), System.getProperty("os.name"));
+            return Collections.singletonList(channels ? bind(port, backlog, false) : new ServerSocket(port, backlog));
+        }
+        List<ServerSocket> sockets = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++)
+                sockets.add(bind(i == 0 ? port : sockets.get(0).getLocalPort(), backlog, true));
+        } catch (IOException | RuntimeException e) {
+            close(sockets);
+            throw e;
+        }
+        return sockets;
+    }
+
+    /**
+     * Closes the sockets, logging instead of throwing problems.
+     *
+     * @param sockets sockets to close
+     */
+    static void close(List<ServerSocket> sockets) {
+        for (ServerSocket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.error("problem when closing server socket", e);
+            }
+        }
+    }
+
+    private static ServerSocket bind(int port, int backlog, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (reusePort)
+                channel.setOption(SO_REUSEPORT, true);
+            channel.bind(new InetSocketAddress(port), backlog);
+            return channel.socket();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static boolean reusePortSupported() throws IOException {
+        if (SO_REUSEPORT == null)
+            return false;
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(SO_REUSEPORT);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+}
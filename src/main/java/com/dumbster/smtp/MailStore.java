@@ -0,0 +1,469 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.nio.file.Path;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Thread-safe FIFO queue the server stores received messages in. Offering a message to the store may fail if the
+ * store is full, in which case the client is told so.
+ * Implementations must be safe to use from several sessions at the same time.
+ * Waiting for messages and subscriptions only see messages received by a session, not messages offered directly.
+ */
+public abstract class MailStore extends AbstractQueue<SmtpMessage> implements AutoCloseable {
+
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final LongAdder evicted = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Conditions waited for, each one returns true once it is satisfied or no longer waited for.
+     */
+    private final Queue<Predicate<SmtpMessage>> waiters = new ConcurrentLinkedQueue<>();
+
+    private final Queue<MessageSubscription> subscriptions = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Called once a subscription is no longer full, registered by sessions held back by a lagging subscriber.
+     */
+    private final Queue<Runnable> drainWaiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @return a store keeping every message, until it is polled or the store is cleared
+     */
+    public static MailStore unbounded() {
+        return new UnboundedMailStore();
+    }
+
+    /**
+     * @param maxMessages maximum number of messages to keep
+     * @param maxBytes maximum total size of the messages to keep, see {@link SmtpMessage#getSize()}
+     * @param policy what to do with new messages once a limit is reached, use
+     *               {@link #spilling(int, long, Path)} to spill to disk
+     *
+     * @return a store holding a limited number and size of messages
+     */
+    public static MailStore bounded(int maxMessages, long maxBytes, EvictionPolicy policy) {
+        if (policy == EvictionPolicy.SPILL_TO_DISK)
+            throw new IllegalArgumentException("spilling to disk needs a directory");
+        return new BoundedMailStore(maxMessages, maxBytes, policy, null);
+    }
+
+    /**
+     * @param maxMessages maximum number of messages to keep in memory
+     * @param maxBytes maximum total size of the messages to keep in memory, see {@link SmtpMessage#getSize()}
+     * @param spillDirectory directory the oldest messages are written to once a limit is reached
+     *
+     * @return a store holding a limited number and size of messages in memory, spilling the rest to disk
+     */
+    public static MailStore spilling(int maxMessages, long maxBytes, Path spillDirectory) {
+        return new BoundedMailStore(maxMessages, maxBytes, EvictionPolicy.SPILL_TO_DISK, spillDirectory);
+    }
+
+    /**
+     * @param directory directory the segment files are created in
+     *
+     * @return a store keeping messages in memory-mapped files instead of the heap, see
+     * {@link #mapped(Path, int)}
+     */
+    public static MailStore mapped(Path directory) {
+        return new MappedMailStore(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Messages are appended to memory-mapped segment files, only their location is kept on the heap. Every message
+     * read from the store is parsed again from its segment. Segment files are deleted once all messages in them
+     * have been removed from the store, or when the store is {@link #close() closed}. Several stores may share a
+     * directory.
+     *
+     * @param directory directory the segment files are created in
+     * @param segmentSize size of each segment file in bytes, larger messages get a segment of their own
+     *
+     * @return a store keeping messages in memory-mapped files instead of the heap
+     */
+    public static MailStore mapped(Path directory, int segmentSize) {
+        return new MappedMailStore(directory, segmentSize);
+    }
+
+    /**
+     * @param rule decides which partition a message is kept in
+     *
+     * @return a store keeping messages in unbounded partitions, see {@link #partitioned(PartitionRule, Supplier)}
+     */
+    public static PartitionedMailStore partitioned(PartitionRule rule) {
+        return new PartitionedMailStore(rule, MailStore::unbounded);
+    }
+
+    /**
+     * Messages are kept in partitions chosen by the rule, each one a store of its own, so that tests sharing a
+     * server can wait for, look up and clear their own messages without disturbing each other.
+     *
+     * @param rule decides which partition a message is kept in
+     * @param storeFactory creates the store of each partition, e.g. {@code () -> MailStore.bounded(...)}
+     *
+     * @return a store keeping messages in partitions
+     */
+    public static PartitionedMailStore partitioned(PartitionRule rule, Supplier<MailStore> storeFactory) {
+        return new PartitionedMailStore(rule, storeFactory);
+    }
+
+    /**
+     * Store a message received by a session. Stores which keep the content as received rather than the parsed
+     * message override this.
+     *
+     * @param message parsed message
+     * @param content buffer holding the message content as received, lines terminated by CRLF
+     * @param length length of the message content
+     *
+     * @return true if the message was stored
+     */
+    boolean offer(SmtpMessage message, byte[] content, int length) {
+        return offer(message);
+    }
+
+    /**
+     * Store a message received by a session, wake up whoever waits for it and hand it to the subscribers.
+     *
+     * @param message parsed message
+     * @param content buffer holding the message content as received, lines terminated by CRLF
+     * @param length length of the message content
+     *
+     * @return true if the message was stored
+     */
+    final boolean receive(SmtpMessage message, byte[] content, int length) {
+        if (!offer(message, content, length))
+            return false;
+        if (!waiters.isEmpty())
+            waiters.removeIf(waiter -> waiter.test(message));
+        for (MessageSubscription subscription : subscriptions) {
+            if (!subscription.deliver(message))
+                dropped.increment();
+        }
+        return true;
+    }
+
+    /**
+     * Get every message received from now on delivered to a listener, in a thread of its own. Once the listener
+     * lags behind by the given number of messages, sessions delivering further messages hold back their reply and
+     * stop reading input until it catches up, see {@link OverflowPolicy#BACKPRESSURE}.
+     *
+     * @param listener listener to deliver to
+     * @param bufferSize maximum number of messages received but not yet delivered
+     *
+     * @return the subscription, close it to stop the delivery
+     */
+    public MessageSubscription subscribe(MessageListener listener, int bufferSize) {
+        return subscribe(listener, bufferSize, OverflowPolicy.BACKPRESSURE);
+    }
+
+    /**
+     * Get every message received from now on delivered to a listener, in a thread of its own.
+     *
+     * @param listener listener to deliver to
+     * @param bufferSize maximum number of messages received but not yet delivered
+     * @param overflowPolicy what to do with further messages once the listener lags behind by the buffer size
+     *
+     * @return the subscription, close it to stop the delivery
+     */
+    public MessageSubscription subscribe(MessageListener listener, int bufferSize, OverflowPolicy overflowPolicy) {
+        MessageSubscription subscription =
+            new MessageSubscription(listener, bufferSize, overflowPolicy, subscriptions::remove, this::drained);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Tell whether sessions which just delivered a message have to wait, because a subscriber lags behind.
+     *
+     * @return true if the buffer of a subscription using {@link OverflowPolicy#BACKPRESSURE} is full
+     */
+    boolean isBackedUp() {
+        for (MessageSubscription subscription : subscriptions) {
+            if (subscription.isFull())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get called back once the subscriptions of this store may no longer be backed up, instead of checking
+     * {@link #isBackedUp()} again and again. The callback may come while another subscription is still full, so check
+     * again when called back.
+     *
+     * @param callback called once, from the thread of a subscription or right away if none is full
+     */
+    void whenNotBackedUp(Runnable callback) {
+        drainWaiters.add(callback);
+        // check afterwards, so that no subscription catching up meanwhile is missed
+        if (!isBackedUp())
+            drained();
+    }
+
+    /**
+     * Call back whoever waits for a subscription to catch up.
+     */
+    private void drained() {
+        Runnable callback;
+        while ((callback = drainWaiters.poll()) != null)
+            callback.run();
+    }
+
+    /**
+     * Wait until the store holds at least the given number of messages.
+     *
+     * @param count number of messages to wait for
+     * @param timeout how long to wait
+     * @param unit unit of the timeout
+     *
+     * @return a copy of the stored messages
+     *
+     * @throws InterruptedException when interrupted while waiting
+     * @throws TimeoutException when there are still fewer messages after the timeout
+     */
+    public List<SmtpMessage> awaitMessages(int count, long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException {
+        return await(awaitMessagesAsync(count), timeout, unit);
+    }
+
+    /**
+     * Wait until the store holds a message matching the condition.
+     *
+     * @param condition condition the message has to satisfy, tested from the thread of the receiving session
+     * @param timeout how long to wait
+     * @param unit unit of the timeout
+     *
+     * @return the oldest stored message matching the condition, or the first one received while waiting
+     *
+     * @throws InterruptedException when interrupted while waiting
+     * @throws TimeoutException when no message matches before the timeout
+     */
+    public SmtpMessage awaitMessage(Predicate<SmtpMessage> condition, long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException {
+        return await(awaitMessageAsync(condition), timeout, unit);
+    }
+
+    /**
+     * @param count number of messages to wait for
+     *
+     * @return a future completed with a copy of the stored messages once there are at least the given number,
+     * cancel it to stop waiting
+     */
+    public CompletableFuture<List<SmtpMessage>> awaitMessagesAsync(int count) {
+        CompletableFuture<List<SmtpMessage>> future = new CompletableFuture<>();
+        addWaiter(future, message -> {
+            if (size() >= count)
+                future.complete(new ArrayList<>(this));
+        });
+        // check afterwards, so that no message received meanwhile is missed
+        if (size() >= count)
+            future.complete(new ArrayList<>(this));
+        return future;
+    }
+
+    /**
+     * @param condition condition the message has to satisfy, tested from the thread of the receiving session
+     *
+     * @return a future completed with the oldest stored message matching the condition, or the first one received
+     * while waiting, cancel it to stop waiting
+     */
+    public CompletableFuture<SmtpMessage> awaitMessageAsync(Predicate<SmtpMessage> condition) {
+        CompletableFuture<SmtpMessage> future = new CompletableFuture<>();
+        addWaiter(future, message -> {
+            if (condition.test(message))
+                future.complete(message);
+        });
+        // check afterwards, so that no message received meanwhile is missed
+        try {
+            for (SmtpMessage message : this) {
+                if (condition.test(message)) {
+                    future.complete(message);
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Register a waiter which is removed as soon as its future completes.
+     *
+     * @param future future of the waiter
+     * @param check completes the future if the received message satisfies the condition waited for
+     */
+    private void addWaiter(CompletableFuture<?> future, Consumer<SmtpMessage> check) {
+        Predicate<SmtpMessage> waiter = message -> {
+            try {
+                if (!future.isDone())
+                    check.accept(message);
+            } catch (RuntimeException e) {
+                // never let a failing condition break the session
+                future.completeExceptionally(e);
+            }
+            return future.isDone();
+        };
+        waiters.add(waiter);
+        future.whenComplete((result, failure) -> waiters.remove(waiter));
+    }
+
+    private static <T> T await(CompletableFuture<T> future, long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException {
+        try {
+            return future.get(timeout, unit);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        } finally {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Release what the store holds outside the heap, e.g. the segment files of a {@link #mapped(Path) mapped} store.
+     * The server does not close the store it was given when it stops, since the store may outlive it. Does nothing
+     * unless overridden.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Tell whether a message is too large to be stored at all, even if the store was empty.
+     *
+     * @param message message the store rejected
+     *
+     * @return true if the message exceeds the capacity of this store
+     */
+    public boolean exceedsCapacity(SmtpMessage message) {
+        return false;
+    }
+
+    /**
+     * @param address envelope sender as given by MAIL FROM, matched case-insensitively
+     *
+     * @return stored messages sent by the given address, oldest first
+     */
+    public List<SmtpMessage> findBySender(String address) {
+        return find(MessageKeys.Field.SENDER, address);
+    }
+
+    /**
+     * @param address envelope recipient as given by RCPT TO, matched case-insensitively
+     *
+     * @return stored messages sent to the given address, oldest first
+     */
+    public List<SmtpMessage> findByRecipient(String address) {
+        return find(MessageKeys.Field.RECIPIENT, address);
+    }
+
+    /**
+     * @param subject value of the Subject header, matched exactly
+     *
+     * @return stored messages with the given subject, oldest first
+     */
+    public List<SmtpMessage> findBySubject(String subject) {
+        return find(MessageKeys.Field.SUBJECT, subject);
+    }
+
+    /**
+     * @param messageId value of the Message-ID header, with or without angle brackets
+     *
+     * @return stored messages with the given id, oldest first
+     */
+    public List<SmtpMessage> findByMessageId(String messageId) {
+        return find(MessageKeys.Field.MESSAGE_ID, messageId);
+    }
+
+    /**
+     * Look up stored messages by one of their keys. The stores in this package keep a {@link MessageIndex}, any
+     * other store is searched message by message.
+     *
+     * @param field field to look up
+     * @param value value to look for
+     *
+     * @return stored messages having the value, oldest first
+     */
+    List<SmtpMessage> find(MessageKeys.Field field, String value) {
+        String normalized = field.normalize(value);
+        List<SmtpMessage> found = new ArrayList<>();
+        for (SmtpMessage message : this) {
+            if (Arrays.asList(MessageKeys.of(message).get(field)).contains(normalized))
+                found.add(message);
+        }
+        return found;
+    }
+
+    /**
+     * @return number of messages dropped or spilled to disk to make room for newer ones
+     */
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    /**
+     * @return number of messages not stored because the store was full
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return number of messages not delivered to a subscriber because it lagged behind, once per subscriber, see
+     * {@link OverflowPolicy#DROP}
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * To be called by implementations whenever they evict a message.
+     *
+     * @param message evicted message
+     */
+    protected void evicted(SmtpMessage message) {
+        evicted.increment();
+    }
+
+    /**
+     * To be called by implementations whenever they reject a message.
+     *
+     * @param message rejected message
+     */
+    protected void rejected(SmtpMessage message) {
+        rejected.increment();
+    }
+
+}
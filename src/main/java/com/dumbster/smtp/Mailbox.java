@@ -0,0 +1,142 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+/**
+ * A partition of a server shared by several tests, handed to each test by {@link SmtpServerExtension}. Messages end up
+ * in the mailbox if the test sends them to a {@link #address(String) tagged address}, or adds the
+ * {@value #PARTITION_HEADER} header with the {@link #getPartitionKey() partition key}.
+ */
+public final class Mailbox {
+
+    /**
+     * Header naming the partition of a message, if it is not sent to a tagged address.
+     */
+    public static final String PARTITION_HEADER = "X-Dumbster-Partition";
+
+    /**
+     * Routes messages by {@link #PARTITION_HEADER} first, by recipient address tag second.
+     */
+    static final PartitionRule RULE = PartitionRule.header(PARTITION_HEADER).orElse(PartitionRule.recipientTag());
+
+    private final SimpleSmtpServer server;
+
+    private final PartitionedMailStore store;
+
+    private final String key;
+
+    private final MailStore messages;
+
+    /**
+     * Create the partition of the mailbox.
+     *
+     * @param server server storing messages in a {@link PartitionedMailStore} routing by {@link #RULE}
+     * @param key key of the partition
+     */
+    Mailbox(SimpleSmtpServer server, String key) {
+        this.server = server;
+        this.store = (PartitionedMailStore) server.getMailStore();
+        this.key = key;
+        this.messages = store.partition(key);
+    }
+
+    /**
+     * @return the port the shared server is listening on
+     */
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * @return key of the partition, a valid address tag
+     */
+    public String getPartitionKey() {
+        return key;
+    }
+
+    /**
+     * Tag an address with the partition key, so that messages sent to it end up in this mailbox.
+     *
+     * @param address address like {@code user@example.com}
+     *
+     * @return the tagged address like {@code user+key@example.com}
+     */
+    public String address(String address) {
+        int at = address.lastIndexOf('@');
+        return at < 0 ? address + "+" + key : address.substring(0, at) + "+" + key + address.substring(at);
+    }
+
+    /**
+     * @return the messages received for this mailbox, a store of its own
+     */
+    public MailStore getMessages() {
+        return messages;
+    }
+
+    /**
+     * @param count number of messages to wait for
+     * @param timeout how long to wait
+     * @param unit unit of the timeout
+     *
+     * @return a copy of the messages received for this mailbox
+     *
+     * @throws InterruptedException when interrupted while waiting
+     * @throws TimeoutException when fewer messages have been received after the timeout
+     * @see MailStore#awaitMessages(int, long, TimeUnit)
+     */
+    public List<SmtpMessage> awaitMessages(int count, long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException {
+        return getMessages().awaitMessages(count, timeout, unit);
+    }
+
+    /**
+     * @param condition condition the message has to satisfy
+     * @param timeout how long to wait
+     * @param unit unit of the timeout
+     *
+     * @return the matching message
+     *
+     * @throws InterruptedException when interrupted while waiting
+     * @throws TimeoutException when no matching message has been received before the timeout
+     * @see MailStore#awaitMessage(Predicate, long, TimeUnit)
+     */
+    public SmtpMessage awaitMessage(Predicate<SmtpMessage> condition, long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException {
+        return getMessages().awaitMessage(condition, timeout, unit);
+    }
+
+    /**
+     * forgets all messages received for this mailbox
+     */
+    public void reset() {
+        getMessages().clear();
+    }
+
+    /**
+     * Drop the partition once the test is done, messages still arriving for it are dropped, see
+     * {@link PartitionedMailStore#getDroppedCount()}.
+     */
+    void close() {
+        store.removePartition(key);
+    }
+
+}
@@ -0,0 +1,337 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Appends message content to memory-mapped segment files and only keeps the location, envelope and lookup keys of
+ * each message on the heap. Messages are parsed again whenever they are read from the store, so every read returns
+ * a new {@link SmtpMessage}. Messages read from the store remember where they came from, so that
+ * {@link #contains(Object)} and {@link #remove(Object)} recognize every copy of a stored message.
+ * A segment file is deleted once all messages in it have been removed from the store, or when the store is closed.
+ * Numbering continues after the segment files already in the directory, so that several stores may share it.
+ */
+@Slf4j
+final class MappedMailStore extends MailStore {
+
+    private static final Pattern SEGMENT_FILE = Pattern.compile("\\d{1,18}\\.seg");
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final Deque<Entry> entries = new ArrayDeque<>();
+
+    private final MessageIndex<Entry> index = new MessageIndex<>();
+
+    /**
+     * Segment new messages are appended to.
+     */
+    private Segment current;
+
+    private long segmentCount;
+
+    /**
+     * @param directory directory the segment files are created in
+     * @param segmentSize size of each segment file, larger messages get a segment of their own
+     */
+    MappedMailStore(Path directory, int segmentSize) {
+        if (segmentSize < 1)
+            throw new IllegalArgumentException("segment size must be positive: " + segmentSize);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.segmentCount = lastSegmentNumber(directory);
+    }
+
+    @Override
+    public boolean offer(SmtpMessage message) {
+        return append(message, message.getRawMessage());
+    }
+
+    @Override
+    boolean offer(SmtpMessage message, byte[] content, int length) {
+        return append(message, ByteBuffer.wrap(content, 0, length));
+    }
+
+    private synchronized boolean append(SmtpMessage message, ByteBuffer content) {
+        int length = content.remaining();
+        try {
+            if (current == null || current.buffer.remaining() < length)
+                current = newSegment(Math.max(segmentSize, length));
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not create segment file in " + directory, e);
+        }
+        int offset = current.buffer.position();
+        current.buffer.put(content);
+        current.messages++;
+        Entry entry = new Entry(current, offset, length, message);
+        entries.add(entry);
+        index.add(entry, entry.keys);
+        return true;
+    }
+
+    @Override
+    public synchronized SmtpMessage poll() {
+        Entry entry = entries.poll();
+        if (entry == null)
+            return null;
+        SmtpMessage message = entry.read();
+        release(entry);
+        return message;
+    }
+
+    @Override
+    public synchronized SmtpMessage peek() {
+        Entry entry = entries.peek();
+        return entry != null ? entry.read() : null;
+    }
+
+    /**
+     * @return an iterator over a snapshot of the stored messages, each message is read when it is reached and
+     * removing a message removes it from the store
+     */
+    @Override
+    public Iterator<SmtpMessage> iterator() {
+        Iterator<Entry> snapshot;
+        synchronized (this) {
+            snapshot = Arrays.asList(entries.toArray(new Entry[0])).iterator();
+        }
+        return new Iterator<SmtpMessage>() {
+
+            private Entry current;
+
+            @Override
+            public boolean hasNext() {
+                return snapshot.hasNext();
+            }
+
+            @Override
+            public SmtpMessage next() {
+                current = snapshot.next();
+                return current.read();
+            }
+
+            @Override
+            public void remove() {
+                if (current == null)
+                    throw new IllegalStateException();
+                removeEntry(current);
+                current = null;
+            }
+        };
+    }
+
+    @Override
+    public synchronized boolean contains(Object o) {
+        Entry entry = entryOf(o);
+        return entry != null && entries.contains(entry);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        Entry entry = entryOf(o);
+        return entry != null && removeEntry(entry);
+    }
+
+    /**
+     * @return the entry a message was read from, null if it was not read from a mapped store
+     */
+    private Entry entryOf(Object o) {
+        if (!(o instanceof SmtpMessage))
+            return null;
+        Object entry = ((SmtpMessage) o).getStoreEntry();
+        return entry instanceof Entry ? (Entry) entry : null;
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        Entry entry;
+        while ((entry = entries.poll()) != null)
+            release(entry);
+    }
+
+    /**
+     * Remove all messages and delete every segment file of this store. The store may still be used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        clear();
+        if (current != null) {
+            current.delete();
+            current = null;
+        }
+    }
+
+    /**
+     * @return the matching messages, each one read from its segment
+     */
+    @Override
+    synchronized List<SmtpMessage> find(MessageKeys.Field field, String value) {
+        return index.find(field, value).stream().map(Entry::read).collect(Collectors.toList());
+    }
+
+    private synchronized boolean removeEntry(Entry entry) {
+        if (!entries.remove(entry))
+            return false;
+        release(entry);
+        return true;
+    }
+
+    /**
+     * Forget a message which has been removed from the queue, deleting its segment once it holds no more messages.
+     */
+    private void release(Entry entry) {
+        index.remove(entry, entry.keys);
+        Segment segment = entry.segment;
+        if (--segment.messages == 0 && segment != current)
+            segment.delete();
+    }
+
+    private Segment newSegment(int size) throws IOException {
+        if (current != null && current.messages == 0)
+            current.delete();
+        Files.createDirectories(directory);
+        while (true) {
+            Path file = directory.resolve(String.format("%010d.seg", ++segmentCount));
+            try (FileChannel channel = FileChannel.open(file, CREATE_NEW, READ, WRITE)) {
+                return new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            } catch (FileAlreadyExistsException e) {
+                // created by another store sharing the directory, take the next number
+            }
+        }
+    }
+
+    /**
+     * @param directory segment directory, may not exist yet
+     *
+     * @return highest number of the segment files in the directory, 0 if there are none
+     */
+    private static long lastSegmentNumber(Path directory) {
+        if (!Files.isDirectory(directory))
+            return 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                        .filter(name -> SEGMENT_FILE.matcher(name).matches())
+                        .mapToLong(name -> Long.parseLong(name.substring(0, name.length() - ".seg".length())))
+                        .max()
+                        .orElse(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not list segment directory " + directory, e);
+        }
+    }
+
+    /**
+     * A memory-mapped segment file.
+     */
+    private static final class Segment {
+
+        private final Path file;
+
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Number of messages in this segment still in the store.
+         */
+        private int messages;
+
+        Segment(Path file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        void delete() {
+            // the mapping itself is released once the buffer is garbage collected
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("could not delete segment file {}", file, e);
+            }
+        }
+
+    }
+
+    /**
+     * Location of a message within a segment.
+     */
+    private static final class Entry {
+
+        private final Segment segment;
+
+        private final int offset;
+
+        private final int length;
+
+        private final MessageKeys keys;
+
+        private final Credentials credentials;
+
+        private final SessionRecord sessionRecord;
+
+        Entry(Segment segment, int offset, int length, SmtpMessage message) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.keys = MessageKeys.of(message);
+            this.credentials = message.getCredentials();
+            this.sessionRecord = message.getSessionRecord();
+        }
+
+        SmtpMessage read() {
+            byte[] content = new byte[length];
+            ByteBuffer view = segment.buffer.duplicate();
+            view.position(offset);
+            view.get(content);
+            SmtpMessage message = new SmtpMessage(content);
+            if (keys.sender != null)
+                message.setEnvelopeSender(keys.sender);
+            keys.recipients.forEach(message::addEnvelopeRecipient);
+            message.setCredentials(credentials);
+            message.setSessionRecord(sessionRecord);
+            message.setStoreEntry(this);
+            return message;
+        }
+
+    }
+
+}
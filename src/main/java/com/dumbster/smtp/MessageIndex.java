@@ -0,0 +1,94 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Secondary indexes of a {@link MailStore}, one per {@link MessageKeys.Field}. Each index maps a normalized value
+ * to the stored messages having it, in the order they were added. What is indexed is up to the store, e.g. the
+ * message itself or its location on disk.
+ * Thread-safe, but a store has to add a message to the index before it becomes visible in the store and remove it
+ * after it is gone from the store for both to stay consistent.
+ *
+ * @param <E> type of the indexed entries
+ */
+final class MessageIndex<E> {
+
+    private final Map<MessageKeys.Field, Map<String, Queue<E>>> indexes = new EnumMap<>(MessageKeys.Field.class);
+
+    MessageIndex() {
+        for (MessageKeys.Field field : MessageKeys.Field.values())
+            indexes.put(field, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * @param entry entry to add
+     * @param keys values to find the entry by
+     */
+    void add(E entry, MessageKeys keys) {
+        for (Map.Entry<MessageKeys.Field, Map<String, Queue<E>>> index : indexes.entrySet()) {
+            for (String value : keys.get(index.getKey())) {
+                index.getValue().compute(value, (v, entries) -> {
+                    Queue<E> result = entries != null ? entries : new ConcurrentLinkedQueue<>();
+                    result.add(entry);
+                    return result;
+                });
+            }
+        }
+    }
+
+    /**
+     * @param entry entry to remove
+     * @param keys values the entry was added with
+     */
+    void remove(E entry, MessageKeys keys) {
+        for (Map.Entry<MessageKeys.Field, Map<String, Queue<E>>> index : indexes.entrySet()) {
+            for (String value : keys.get(index.getKey())) {
+                // drop empty buckets so that the index does not grow with every distinct value ever seen
+                index.getValue().computeIfPresent(value, (v, entries) -> {
+                    entries.remove(entry);
+                    return entries.isEmpty() ? null : entries;
+                });
+            }
+        }
+    }
+
+    /**
+     * @param field field to look up
+     * @param value value to look for, normalized before the lookup
+     *
+     * @return entries having the value, oldest first
+     */
+    List<E> find(MessageKeys.Field field, String value) {
+        Queue<E> entries = indexes.get(field).get(field.normalize(value));
+        return entries == null ? Collections.emptyList() : new ArrayList<>(entries);
+    }
+
+    void clear() {
+        for (Map<String, Queue<E>> index : indexes.values())
+            index.clear();
+    }
+
+}
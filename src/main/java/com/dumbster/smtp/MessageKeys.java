@@ -0,0 +1,125 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The values of a message a {@link MailStore} can look it up by.
+ */
+final class MessageKeys {
+
+    final String sender;
+
+    final List<String> recipients;
+
+    final String subject;
+
+    final String messageId;
+
+    private MessageKeys(String sender, List<String> recipients, String subject, String messageId) {
+        this.sender = sender;
+        this.recipients = recipients;
+        this.subject = subject;
+        this.messageId = messageId;
+    }
+
+    /**
+     * Take the lookup values from a message without parsing all of its headers.
+     *
+     * @param message message to take the envelope addresses, Subject and Message-ID header from
+     *
+     * @return the lookup values of the message
+     */
+    static MessageKeys of(SmtpMessage message) {
+        return new MessageKeys(message.getEnvelopeSender(), message.getEnvelopeRecipients(),
+                               message.peekHeaderValue("Subject"), message.peekHeaderValue("Message-ID"));
+    }
+
+    /**
+     * @param field field to get
+     *
+     * @return the values of the given field, normalized as by {@link Field#normalize(String)}
+     */
+    String[] get(Field field) {
+        switch (field) {
+            case SENDER:
+                return normalized(field, sender);
+            case RECIPIENT:
+                String[] values = new String[recipients.size()];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = field.normalize(recipients.get(i));
+                return values;
+            case SUBJECT:
+                return normalized(field, subject);
+            case MESSAGE_ID:
+                return normalized(field, messageId);
+            default:
+                throw new IllegalArgumentException("unknown field " + field);
+        }
+    }
+
+    private static String[] normalized(Field field, String value) {
+        return value == null ? new String[0] : new String[] {field.normalize(value)};
+    }
+
+    /**
+     * A value messages are looked up by.
+     */
+    enum Field {
+
+        /**
+         * Envelope sender, matched case-insensitively.
+         */
+        SENDER,
+
+        /**
+         * Any of the envelope recipients, matched case-insensitively.
+         */
+        RECIPIENT,
+
+        /**
+         * Subject header, matched exactly.
+         */
+        SUBJECT,
+
+        /**
+         * Message-ID header, matched with or without angle brackets.
+         */
+        MESSAGE_ID;
+
+        /**
+         * @param value value as received or as given to a query
+         *
+         * @return the value in the form it is indexed under
+         */
+        String normalize(String value) {
+            switch (this) {
+                case SENDER:
+                case RECIPIENT:
+                    return SmtpSession.address(value).toLowerCase(Locale.ROOT);
+                case MESSAGE_ID:
+                    return SmtpSession.address(value);
+                default:
+                    return value;
+            }
+        }
+
+    }
+
+}
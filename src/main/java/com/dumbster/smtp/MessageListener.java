@@ -0,0 +1,32 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+/**
+ * Gets every message received by a session, see {@link MailStore#subscribe(MessageListener, int)}.
+ */
+@FunctionalInterface
+public interface MessageListener {
+
+    /**
+     * Called from the delivery thread of the subscription, one message at a time in the order they were received.
+     *
+     * @param message received message
+     */
+    void onMessage(SmtpMessage message);
+
+}
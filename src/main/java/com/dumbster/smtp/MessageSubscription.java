@@ -0,0 +1,164 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Delivers received messages to a {@link MessageListener} from a thread of its own. Messages are buffered up to a
+ * limit, once the buffer is full the {@link OverflowPolicy} decides: by default the sessions delivering to it are held
+ * back until the listener catches up, without blocking any thread shared with other sessions. Closing the
+ * subscription stops the delivery, messages still buffered are dropped.
+ */
+@Slf4j
+public final class MessageSubscription implements AutoCloseable {
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private final MessageListener listener;
+
+    /**
+     * Bounded with {@link OverflowPolicy#DROP}, with {@link OverflowPolicy#BACKPRESSURE} the messages of sessions
+     * already delivering when the buffer fills up are buffered as well.
+     */
+    private final BlockingQueue<SmtpMessage> buffer;
+
+    private final int bufferSize;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final Consumer<MessageSubscription> onClose;
+
+    /**
+     * Called whenever the buffer is no longer full, or the subscription is closed.
+     */
+    private final Runnable onDrained;
+
+    private final Thread thread;
+
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile boolean closed;
+
+    /**
+     * @param listener listener to deliver to
+     * @param bufferSize maximum number of messages received but not yet delivered
+     * @param overflowPolicy what to do with messages once the buffer is full
+     * @param onClose called once the subscription is closed
+     * @param onDrained called from the delivering thread whenever the buffer is no longer full, and once the
+     *                  subscription is closed
+     */
+    MessageSubscription(MessageListener listener, int bufferSize, OverflowPolicy overflowPolicy,
+                        Consumer<MessageSubscription> onClose, Runnable onDrained) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        this.listener = listener;
+        this.bufferSize = bufferSize;
+        this.overflowPolicy = overflowPolicy;
+        this.buffer = overflowPolicy == OverflowPolicy.DROP ? new LinkedBlockingQueue<>(bufferSize)
+                                                            : new LinkedBlockingQueue<>();
+        this.onClose = onClose;
+        this.onDrained = onDrained;
+        this.thread = new Thread(this::deliverAll, "smtp-subscription-" + COUNT.incrementAndGet());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Buffer a message for delivery. A full buffer only drops it with {@link OverflowPolicy#DROP}, otherwise the
+     * caller has to hold back the session as long as {@link #isFull()}, until {@code onDrained} is called.
+     *
+     * @param message received message
+     *
+     * @return false if the message was dropped because the buffer is full
+     */
+    boolean deliver(SmtpMessage message) {
+        if (closed)
+            return true;
+        if (!buffer.offer(message)) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if sessions delivering to this subscription have to wait for the listener to catch up
+     */
+    boolean isFull() {
+        return overflowPolicy == OverflowPolicy.BACKPRESSURE && !closed && buffer.size() >= bufferSize;
+    }
+
+    /**
+     * @return number of messages received but not yet delivered
+     */
+    public int getPending() {
+        return buffer.size();
+    }
+
+    /**
+     * @return number of messages dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return true once the subscription is closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop delivering messages. Does not wait for a delivery in progress.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        thread.interrupt();
+        buffer.clear();
+        onClose.accept(this);
+        onDrained.run();
+    }
+
+    private void deliverAll() {
+        try {
+            while (!closed) {
+                SmtpMessage message = buffer.take();
+                if (buffer.size() < bufferSize)
+                    onDrained.run();
+                try {
+                    listener.onMessage(message);
+                } catch (RuntimeException e) {
+                    log.warn("message listener failed", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+}
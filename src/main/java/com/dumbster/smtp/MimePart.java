@@ -0,0 +1,380 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * A MIME entity (RFC 2045, 2046) within a received message: the message itself, or a part of a multipart body.
+ * Parts are views on the content of the message; the headers of a part are parsed when the part is created, its
+ * sub-parts on first access, and its content is decoded while it is read, so large attachments are never held
+ * in memory twice. Instances are thread-safe.
+ */
+public final class MimePart {
+
+    private static final String DEFAULT_CONTENT_TYPE = "text/plain; charset=us-ascii";
+
+    private static final String DIGEST_CONTENT_TYPE = "message/rfc822";
+
+    /**
+     * Content of the whole message this part belongs to.
+     */
+    private final byte[] content;
+
+    /**
+     * Offset of the body of this part within the content.
+     */
+    private final int bodyStart;
+
+    /**
+     * End of the body of this part within the content, exclusive.
+     */
+    private final int bodyEnd;
+
+    /**
+     * Header values by lower case header name, in the order received.
+     */
+    private final Map<String, List<String>> headers = new LinkedHashMap<>();
+
+    private final String contentType;
+
+    /**
+     * Sub-parts of a multipart body, null until first requested.
+     */
+    private List<MimePart> parts;
+
+    /**
+     * @param content content of the whole message
+     * @param start offset of the headers of this part
+     * @param end end of this part, exclusive
+     * @param defaultContentType content type if the part has no Content-Type header
+     */
+    MimePart(byte[] content, int start, int end, String defaultContentType) {
+        this.content = content;
+        this.bodyStart = parseHeaders(start, end);
+        this.bodyEnd = Math.max(bodyStart, end);
+        String type = getHeaderValue("Content-Type");
+        this.contentType = type != null ? type : defaultContentType;
+    }
+
+    /**
+     * @param content complete message content
+     *
+     * @return the message as a MIME entity
+     */
+    static MimePart of(byte[] content) {
+        return new MimePart(content, 0, content.length, DEFAULT_CONTENT_TYPE);
+    }
+
+    /**
+     * @param name header name, case-insensitive
+     *
+     * @return the values of the header in the order received, with continuation lines unfolded
+     */
+    public List<String> getHeaderValues(String name) {
+        List<String> values = headers.get(name.toLowerCase(Locale.ROOT));
+        return values == null ? Collections.emptyList() : Collections.unmodifiableList(values);
+    }
+
+    /**
+     * @param name header name, case-insensitive
+     *
+     * @return the first value of the header, null if there is none
+     */
+    public String getHeaderValue(String name) {
+        List<String> values = getHeaderValues(name);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * @return the Content-Type header including parameters, or the default type if there is none
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return type and subtype of the content in lower case, e.g. {@code text/plain}
+     */
+    public String getMimeType() {
+        int end = contentType.indexOf(';');
+        return (end < 0 ? contentType : contentType.substring(0, end)).trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param name parameter name, case-insensitive, e.g. {@code charset}
+     *
+     * @return value of the Content-Type parameter without quotes, null if there is none
+     */
+    public String getContentTypeParameter(String name) {
+        return parameter(contentType, name);
+    }
+
+    /**
+     * @return file name from the Content-Disposition header, or the name parameter of the content type
+     */
+    public String getFileName() {
+        String disposition = getHeaderValue("Content-Disposition");
+        String fileName = disposition != null ? parameter(disposition, "filename") : null;
+        return fileName != null ? fileName : getContentTypeParameter("name");
+    }
+
+    /**
+     * @return Content-Transfer-Encoding in lower case, {@code 7bit} if there is none
+     */
+    public String getTransferEncoding() {
+        String encoding = getHeaderValue("Content-Transfer-Encoding");
+        return encoding != null ? encoding.trim().toLowerCase(Locale.ROOT) : "7bit";
+    }
+
+    /**
+     * @return true if the body consists of sub-parts
+     */
+    public boolean isMultipart() {
+        return getMimeType().startsWith("multipart/") && getContentTypeParameter("boundary") != null;
+    }
+
+    /**
+     * @return the sub-parts of a multipart body, empty for any other part
+     */
+    public synchronized List<MimePart> getParts() {
+        if (parts == null)
+            parts = isMultipart() ? Collections.unmodifiableList(parseParts()) : Collections.emptyList();
+        return parts;
+    }
+
+    /**
+     * @return size of the body as received, before decoding
+     */
+    public int getSize() {
+        return bodyEnd - bodyStart;
+    }
+
+    /**
+     * Read the body, decoding base64 or quoted-printable while reading. The body of a multipart part is returned
+     * as is, including all of its sub-parts.
+     *
+     * @return the decoded body
+     */
+    public InputStream getContent() {
+        InputStream raw = new ByteArrayInputStream(content, bodyStart, bodyEnd - bodyStart);
+        switch (getTransferEncoding()) {
+            case "base64":
+                return Base64.getMimeDecoder().wrap(raw);
+            case "quoted-printable":
+                return new QuotedPrintableInputStream(raw);
+            default:
+                return raw;
+        }
+    }
+
+    /**
+     * @return the decoded body as text in the charset of the content type, ISO-8859-1 if unknown
+     */
+    public String getContentAsString() {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(getSize());
+        byte[] buffer = new byte[8192];
+        try (InputStream in = getContent()) {
+            int read;
+            while ((read = in.read(buffer)) > 0)
+                decoded.write(buffer, 0, read);
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not decode " + getTransferEncoding() + " content", e);
+        }
+        return new String(decoded.toByteArray(), charset());
+    }
+
+    private Charset charset() {
+        String name = getContentTypeParameter("charset");
+        try {
+            if (name != null && Charset.isSupported(name))
+                return Charset.forName(name);
+        } catch (IllegalCharsetNameException e) {
+            // fall through
+        }
+        return name == null && getMimeType().startsWith("text/") ? US_ASCII : ISO_8859_1;
+    }
+
+    /**
+     * Parse the header lines of this part.
+     *
+     * @return offset of the body
+     */
+    private int parseHeaders(int start, int end) {
+        String lastName = null;
+        int pos = start;
+        while (pos < end) {
+            int lineEnd = lineEnd(pos, end);
+            int next = Math.min(lineEnd + 1, end);
+            int length = lineLength(pos, lineEnd);
+            if (length == 0)
+                return next;
+            String line = new String(content, pos, length, ISO_8859_1);
+            if (Character.isWhitespace(line.charAt(0))) {
+                if (lastName != null) {
+                    List<String> values = headers.get(lastName);
+                    values.set(values.size() - 1, values.get(values.size() - 1) + " " + line.trim());
+                }
+            } else {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    lastName = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                    headers.computeIfAbsent(lastName, name -> new ArrayList<>(1))
+                           .add(line.substring(colon + 1).trim());
+                }
+            }
+            pos = next;
+        }
+        return end;
+    }
+
+    /**
+     * Split a multipart body at its boundary delimiter lines, ignoring preamble and epilogue. The line break before
+     * a delimiter belongs to the delimiter, not to the part before it.
+     */
+    private List<MimePart> parseParts() {
+        byte[] delimiter = ("--" + getContentTypeParameter("boundary")).getBytes(ISO_8859_1);
+        String childType = "multipart/digest".equals(getMimeType()) ? DIGEST_CONTENT_TYPE : DEFAULT_CONTENT_TYPE;
+        List<MimePart> result = new ArrayList<>();
+        int partStart = -1;
+        int pos = bodyStart;
+        while (pos < bodyEnd) {
+            int lineEnd = lineEnd(pos, bodyEnd);
+            int next = Math.min(lineEnd + 1, bodyEnd);
+            int length = lineLength(pos, lineEnd);
+            if (startsWith(pos, pos + length, delimiter)) {
+                int after = pos + delimiter.length;
+                boolean close = after + 1 < pos + length && content[after] == '-' && content[after + 1] == '-';
+                if (close || isBlank(after, pos + length)) {
+                    if (partStart >= 0)
+                        result.add(new MimePart(content, partStart, lineBreakBefore(partStart, pos), childType));
+                    if (close)
+                        return result;
+                    partStart = next;
+                }
+            }
+            pos = next;
+        }
+        if (partStart >= 0)
+            result.add(new MimePart(content, partStart, bodyEnd, childType));
+        return result;
+    }
+
+    /**
+     * @return index of the next LF, or the end if there is none
+     */
+    private int lineEnd(int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (content[i] == '\n')
+                return i;
+        }
+        return end;
+    }
+
+    /**
+     * @return length of a line without its CR
+     */
+    private int lineLength(int from, int lineEnd) {
+        return lineEnd > from && content[lineEnd - 1] == '\r' ? lineEnd - 1 - from : lineEnd - from;
+    }
+
+    /**
+     * @return start of the line break ending right before the given position, never before the minimum
+     */
+    private int lineBreakBefore(int min, int pos) {
+        int end = pos;
+        if (end > min && content[end - 1] == '\n')
+            end--;
+        if (end > min && content[end - 1] == '\r')
+            end--;
+        return end;
+    }
+
+    /**
+     * @return true if there is nothing but linear whitespace in the given range
+     */
+    private boolean isBlank(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (content[i] != ' ' && content[i] != '\t')
+                return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(int from, int lineEnd, byte[] prefix) {
+        if (lineEnd - from < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (content[from + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return value of a parameter of a structured header like Content-Type, without quotes
+     */
+    private static String parameter(String header, String name) {
+        int pos = header.indexOf(';');
+        while (pos >= 0 && pos < header.length()) {
+            int nameStart = pos + 1;
+            int equals = header.indexOf('=', nameStart);
+            if (equals < 0)
+                return null;
+            String parameterName = header.substring(nameStart, equals).trim();
+            int valueStart = equals + 1;
+            while (valueStart < header.length() && header.charAt(valueStart) == ' ')
+                valueStart++;
+            String value;
+            if (valueStart < header.length() && header.charAt(valueStart) == '"') {
+                StringBuilder quoted = new StringBuilder();
+                int i = valueStart + 1;
+                while (i < header.length() && header.charAt(i) != '"') {
+                    if (header.charAt(i) == '\\' && i + 1 < header.length())
+                        i++;
+                    quoted.append(header.charAt(i++));
+                }
+                value = quoted.toString();
+                pos = header.indexOf(';', i);
+            } else {
+                int valueEnd = header.indexOf(';', valueStart);
+                value = header.substring(valueStart, valueEnd < 0 ? header.length() : valueEnd).trim();
+                pos = valueEnd;
+            }
+            if (parameterName.equalsIgnoreCase(name))
+                return value;
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,484 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Non-blocking SMTP engine. A small, fixed number of event loops multiplex all client connections with a
+ * {@link Selector} each, so the number of sessions is not bound to the number of threads.
+ */
+@Slf4j
+final class NioSmtpEngine {
+
+    /**
+     * Size of the direct buffer each event loop reads client input into.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Minimum time between two checks for timed out sessions, so that busy event loops do not check all the time.
+     */
+    private static final long REAP_INTERVAL = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /**
+     * Creates the session for each accepted connection.
+     */
+    private final Supplier<SmtpSession> sessions;
+
+    private final SmtpMetrics metrics;
+
+    private final EventLoop[] eventLoops;
+
+    private final Thread[] threads;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param sessions creates the session for each accepted connection
+     * @param metrics metrics to count connections and sessions in
+     * @param eventLoopCount number of event loop threads
+     *
+     * @throws IOException when opening a selector causes one
+     */
+    NioSmtpEngine(Supplier<SmtpSession> sessions, SmtpMetrics metrics, int eventLoopCount) throws IOException {
+        this.sessions = sessions;
+        this.metrics = metrics;
+        this.eventLoops = new EventLoop[eventLoopCount];
+        this.threads = new Thread[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+            threads[i] = new Thread(eventLoops[i], "smtp-event-loop-" + (i + 1));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Hand a freshly accepted connection to one of the event loops, taking turns.
+     *
+     * @param channel connection to the client
+     */
+    void register(SocketChannel channel) {
+        eventLoops[Math.floorMod(next.getAndIncrement(), eventLoops.length)].register(channel);
+    }
+
+    /**
+     * Close all connections and wait for the event loops to finish.
+     *
+     * @param timeout how long to wait in milliseconds
+     *
+     * @throws InterruptedException when interrupted while waiting
+     */
+    void stop(long timeout) throws InterruptedException {
+        for (EventLoop eventLoop : eventLoops)
+            eventLoop.stop();
+        for (Thread thread : threads)
+            thread.join(timeout);
+    }
+
+    /**
+     * @param pending output not written yet, {@code null} if there is none
+     * @param bytes bytes to write after it
+     *
+     * @return a buffer holding the pending output followed by the bytes
+     */
+    static ByteBuffer append(ByteBuffer pending, byte[] bytes) {
+        if (pending == null || !pending.hasRemaining())
+            return ByteBuffer.wrap(bytes);
+        ByteBuffer output = ByteBuffer.allocate(pending.remaining() + bytes.length);
+        output.put(pending).put(bytes);
+        output.flip();
+        return output;
+    }
+
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        /**
+         * Connections holding back replies and input because of injected faults, the first one to resume first.
+         */
+        private final PriorityQueue<Connection> paused =
+            new PriorityQueue<>((a, b) -> Long.signum(a.resumeAt - b.resumeAt));
+
+        /**
+         * Connections held back by a lagging subscriber which may go on, added by the thread of the subscription.
+         */
+        private final Queue<Connection> released = new ConcurrentLinkedQueue<>();
+
+        private volatile boolean stopped;
+
+        /**
+         * Whether a check for timed out sessions is due at {@link #reapAt}.
+         */
+        private boolean reapScheduled;
+
+        /**
+         * {@link System#nanoTime()} of the next check for timed out sessions.
+         */
+        private long reapAt;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        void stop() {
+            stopped = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    select();
+                    resumePaused();
+                    resumeReleased();
+                    reapExpired();
+                    registerPending();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable())
+                                connection.read(readBuffer);
+                            if (key.isValid() && key.isWritable())
+                                connection.write();
+                        } catch (IOException | RuntimeException e) {
+                            log.debug("session ended abnormally", e);
+                            connection.fail();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                log.error("event loop failed", e);
+            } finally {
+                closeAll();
+            }
+        }
+
+        /**
+         * Wait for connections to become ready, or until the first paused connection is to resume, or sessions may
+         * have timed out.
+         */
+        private void select() throws IOException {
+            long now = System.nanoTime();
+            long remaining = Long.MAX_VALUE;
+            Connection next = paused.peek();
+            if (next != null)
+                remaining = next.resumeAt - now;
+            if (reapScheduled)
+                remaining = Math.min(remaining, reapAt - now);
+            if (remaining == Long.MAX_VALUE)
+                selector.select();
+            else if (remaining > 0)
+                selector.select(TimeUnit.NANOSECONDS.toMillis(remaining + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+            else
+                selector.selectNow();
+        }
+
+        /**
+         * Make sure a check for timed out sessions is due no later than a connection may time out.
+         *
+         * @param connection connection which may time out
+         */
+        private void scheduleReap(Connection connection) {
+            long timeout = connection.session.timeoutNanos();
+            if (timeout == Long.MAX_VALUE)
+                return;
+            long at = System.nanoTime() + Math.max(timeout, REAP_INTERVAL);
+            if (!reapScheduled || at - reapAt < 0) {
+                reapAt = at;
+                reapScheduled = true;
+            }
+        }
+
+        /**
+         * Close timed out sessions once a check is due, and schedule the next check.
+         */
+        private void reapExpired() {
+            if (!reapScheduled || reapAt - System.nanoTime() > 0)
+                return;
+            reapScheduled = false;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                try {
+                    connection.expire();
+                } catch (IOException | RuntimeException e) {
+                    log.debug("session ended abnormally", e);
+                    connection.fail();
+                }
+                if (!connection.closed)
+                    scheduleReap(connection);
+            }
+        }
+
+        /**
+         * Hold back replies and input of a connection for some time.
+         *
+         * @param connection connection to pause
+         * @param nanos how long to pause
+         */
+        void pause(Connection connection, long nanos) {
+            connection.resumeAt = System.nanoTime() + nanos;
+            connection.key.interestOps(0);
+            paused.add(connection);
+        }
+
+        /**
+         * Stop reading input of a connection until the session is no longer held back by a lagging subscriber.
+         *
+         * @param connection connection to hold back
+         */
+        void holdBack(Connection connection) {
+            connection.key.interestOps(0);
+            connection.session.whenReleased(() -> {
+                released.add(connection);
+                selector.wakeup();
+            });
+        }
+
+        private void resumeReleased() {
+            Connection connection;
+            while ((connection = released.poll()) != null) {
+                try {
+                    connection.resume();
+                } catch (IOException | RuntimeException e) {
+                    log.debug("session ended abnormally", e);
+                    connection.fail();
+                }
+            }
+        }
+
+        private void resumePaused() {
+            long now = System.nanoTime();
+            while (!paused.isEmpty() && paused.peek().resumeAt - now <= 0) {
+                Connection connection = paused.poll();
+                try {
+                    connection.resume();
+                } catch (IOException | RuntimeException e) {
+                    log.debug("session ended abnormally", e);
+                    connection.fail();
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                Connection connection = new Connection(this, channel);
+                try {
+                    channel.configureBlocking(false);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.open();
+                    scheduleReap(connection);
+                } catch (IOException e) {
+                    log.debug("could not register connection", e);
+                    connection.close();
+                }
+            }
+        }
+
+        private void closeAll() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null)
+                new Connection(this, channel).close();
+            try {
+                for (SelectionKey key : selector.keys())
+                    ((Connection) key.attachment()).close();
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                log.warn("problem when closing selector", e);
+            }
+        }
+
+    }
+
+    /**
+     * A client connection and the SMTP session running on it.
+     */
+    private final class Connection {
+
+        private final EventLoop eventLoop;
+
+        private final SocketChannel channel;
+
+        private final SmtpSession session;
+
+        private final StringBuilder replies = new StringBuilder();
+
+        private SelectionKey key;
+
+        /**
+         * Replies which did not fit into the socket's send buffer yet.
+         */
+        private ByteBuffer output;
+
+        private boolean opened;
+
+        private boolean closed;
+
+        /**
+         * {@link System#nanoTime()} when a paused connection resumes.
+         */
+        private long resumeAt;
+
+        Connection(EventLoop eventLoop, SocketChannel channel) {
+            this.eventLoop = eventLoop;
+            this.channel = channel;
+            this.session = sessions.get();
+        }
+
+        void open() throws IOException {
+            metrics.sessionStarted();
+            opened = true;
+            session.open(channel.getRemoteAddress(), replies);
+            flushOrPause();
+        }
+
+        void read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            if (channel.read(buffer) < 0) {
+                fail();
+                return;
+            }
+            buffer.flip();
+            session.receive(buffer, replies);
+            flushOrPause();
+        }
+
+        /**
+         * Send replies right away, or pause the connection first as long as the session demands. A connection held back
+         * by a lagging subscriber is resumed once the subscriber signals that it caught up.
+         */
+        private void flushOrPause() throws IOException {
+            long pause = session.pauseNanos();
+            if (pause > 0)
+                eventLoop.pause(this, pause);
+            else if (session.isHeldBack())
+                eventLoop.holdBack(this);
+            else
+                flush();
+        }
+
+        /**
+         * Close the session with a 421 reply if it timed out.
+         */
+        void expire() throws IOException {
+            if (!closed && session.expire(replies)) {
+                metrics.sessionTimedOut();
+                flush();
+            }
+        }
+
+        /**
+         * Send the replies held back while paused and go on reading, unless the session has to wait longer.
+         */
+        void resume() throws IOException {
+            if (!closed)
+                flushOrPause();
+        }
+
+        /**
+         * Send new replies after those still waiting for the client to read them, e.g. the 421 of a session which
+         * timed out meanwhile.
+         */
+        private void flush() throws IOException {
+            if (replies.length() > 0) {
+                output = append(output, replies.toString().getBytes(ISO_8859_1));
+                replies.setLength(0);
+            }
+            write();
+        }
+
+        /**
+         * Write pending replies. Input is not read while replies are pending, so slow readers cannot make the server
+         * buffer an unlimited number of replies.
+         */
+        void write() throws IOException {
+            if (output != null) {
+                channel.write(output);
+                if (output.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                output = null;
+            }
+            if (session.isClosed())
+                close();
+            else
+                key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Close the connection because of an error or because the client went away before QUIT.
+         */
+        void fail() {
+            if (!closed && !session.isClosed())
+                metrics.sessionFailed();
+            close();
+        }
+
+        /**
+         * Close the connection, counting it as rejected if the session never started. Closing twice does nothing.
+         */
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            if (opened)
+                metrics.sessionEnded();
+            else
+                metrics.connectionRejected();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("problem when closing connection", e);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+/**
+ * What a {@link MessageSubscription} does with a new message when its buffer is full.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Keep the message and hold back the session which received it: its reply is not sent and its input is not
+     * read until the listener has caught up. Other sessions and threads go on meanwhile. The buffer may exceed its
+     * size by one message per session held back.
+     */
+    BACKPRESSURE,
+
+    /**
+     * Drop the message for this subscription and count it, see {@link MessageSubscription#getDroppedCount()}.
+     * Sessions never wait for the listener.
+     */
+    DROP
+
+}
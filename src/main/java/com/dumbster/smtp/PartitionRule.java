@@ -0,0 +1,97 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.Locale;
+
+/**
+ * Decides which partition of a {@link PartitionedMailStore} a received message is kept in.
+ * Called by the session receiving the message, so implementations have to be thread-safe.
+ */
+@FunctionalInterface
+public interface PartitionRule {
+
+    /**
+     * @param message received message, including its envelope
+     *
+     * @return key of the partition to keep the message in, compared in lower case, {@code null} for the
+     *         {@link PartitionedMailStore#DEFAULT_PARTITION default partition}
+     */
+    String partitionOf(SmtpMessage message);
+
+    /**
+     * @param other rule to ask if this rule finds no partition
+     *
+     * @return a rule asking this rule first and the other one second
+     */
+    default PartitionRule orElse(PartitionRule other) {
+        return message -> {
+            String key = partitionOf(message);
+            return key != null ? key : other.partitionOf(message);
+        };
+    }
+
+    /**
+     * Partitions by the tag of the first envelope recipient having one, e.g. {@code test42} for
+     * {@code user+test42@example.com}. Tags are compared in lower case.
+     *
+     * @return a rule partitioning by recipient address tag
+     */
+    static PartitionRule recipientTag() {
+        return message -> {
+            for (String recipient : message.getEnvelopeRecipients()) {
+                int at = recipient.lastIndexOf('@');
+                String local = at < 0 ? recipient : recipient.substring(0, at);
+                int plus = local.indexOf('+');
+                if (plus >= 0 && plus < local.length() - 1)
+                    return local.substring(plus + 1).toLowerCase(Locale.ROOT);
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Partitions by the domain of the first envelope recipient, in lower case.
+     *
+     * @return a rule partitioning by recipient domain
+     */
+    static PartitionRule recipientDomain() {
+        return message -> {
+            for (String recipient : message.getEnvelopeRecipients()) {
+                int at = recipient.lastIndexOf('@');
+                if (at >= 0 && at < recipient.length() - 1)
+                    return recipient.substring(at + 1).toLowerCase(Locale.ROOT);
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Partitions by the value of a header, e.g. one the test adds to every message it sends.
+     *
+     * @param name name of the header, matched case-insensitively
+     *
+     * @return a rule partitioning by header value
+     */
+    static PartitionRule header(String name) {
+        return message -> {
+            String value = message.peekHeaderValue(name);
+            return value == null || value.trim().isEmpty() ? null : value.trim();
+        };
+    }
+
+}
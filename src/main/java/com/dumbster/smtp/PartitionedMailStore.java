@@ -0,0 +1,337 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Keeps received messages in partitions chosen by a {@link PartitionRule}, so that tests sharing one server each see
+ * their own messages only. Every partition is a {@link MailStore} of its own, to be waited on, searched and cleared
+ * without affecting the others. The store as a whole holds the messages of all partitions, grouped by partition.
+ * Partitions are only created by {@link #partition(String)}, partition keys are compared in lower case. Messages the
+ * rule finds no partition for are kept in the {@link #DEFAULT_PARTITION default partition}. Messages for a partition
+ * which does not exist, e.g. one removed after its test, are accepted but dropped, so that late or stray messages do
+ * not pile up on a server shared by many tests. They are counted by {@link #getDroppedCount()}. This includes the
+ * default partition, once it is removed messages the rule finds no partition for are dropped as well.
+ */
+public final class PartitionedMailStore extends MailStore {
+
+    /**
+     * Key of the partition messages are kept in if the rule finds no partition for them.
+     */
+    public static final String DEFAULT_PARTITION = "";
+
+    private final PartitionRule rule;
+
+    private final Supplier<MailStore> storeFactory;
+
+    private final Map<String, MailStore> partitions = new ConcurrentHashMap<>();
+
+    /**
+     * Held while delivering to a partition, so that it is not removed before the message is stored.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final LongAdder unrouted = new LongAdder();
+
+    /**
+     * @param rule decides which partition a message is kept in
+     * @param storeFactory creates the store of each partition
+     */
+    PartitionedMailStore(PartitionRule rule, Supplier<MailStore> storeFactory) {
+        this.rule = rule;
+        this.storeFactory = storeFactory;
+        partition(DEFAULT_PARTITION);
+    }
+
+    /**
+     * The partition with the given key, created if there is none yet. Waiting for messages on the partition only
+     * sees messages received by a session.
+     *
+     * @param key key of the partition, compared in lower case
+     *
+     * @return the store of the partition
+     */
+    public MailStore partition(String key) {
+        return partitions.computeIfAbsent(normalize(key), k -> storeFactory.get());
+    }
+
+    /**
+     * Drop a partition and the messages in it, e.g. once the test using it is done. Waits for messages being stored
+     * in the partition, messages for the partition received later are dropped. Must not be called from a condition
+     * waited for, or a future completed, by a session storing a message.
+     *
+     * @param key key of the partition, compared in lower case
+     */
+    public void removePartition(String key) {
+        if (lock.getReadHoldCount() > 0)
+            throw new IllegalStateException("cannot remove a partition while storing a message");
+        MailStore partition;
+        lock.writeLock().lock();
+        try {
+            partition = partitions.remove(normalize(key));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (partition != null) {
+            partition.clear();
+            partition.close();
+        }
+    }
+
+    /**
+     * @return keys of the partitions existing at the moment
+     */
+    public Set<String> getPartitionKeys() {
+        return Collections.unmodifiableSet(partitions.keySet());
+    }
+
+    private static String normalize(String key) {
+        return key.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param message message to store
+     *
+     * @return the partition to store the message in, null if the partition the rule found does not exist
+     */
+    private MailStore partitionOf(SmtpMessage message) {
+        String key = rule.partitionOf(message);
+        return partitions.get(key != null ? normalize(key) : DEFAULT_PARTITION);
+    }
+
+    @Override
+    boolean offer(SmtpMessage message, byte[] content, int length) {
+        lock.readLock().lock();
+        try {
+            MailStore partition = partitionOf(message);
+            if (partition == null) {
+                unrouted.increment();
+                return true;
+            }
+            // receive() of the partition wakes up whoever waits on it
+            return partition.receive(message, content, length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(SmtpMessage message) {
+        lock.readLock().lock();
+        try {
+            MailStore partition = partitionOf(message);
+            if (partition == null) {
+                unrouted.increment();
+                return true;
+            }
+            return partition.offer(message);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public SmtpMessage poll() {
+        for (MailStore partition : partitions.values()) {
+            SmtpMessage message = partition.poll();
+            if (message != null)
+                return message;
+        }
+        return null;
+    }
+
+    @Override
+    public SmtpMessage peek() {
+        for (MailStore partition : partitions.values()) {
+            SmtpMessage message = partition.peek();
+            if (message != null)
+                return message;
+        }
+        return null;
+    }
+
+    @Override
+    public Iterator<SmtpMessage> iterator() {
+        Iterator<MailStore> stores = partitions.values().iterator();
+        return new Iterator<SmtpMessage>() {
+
+            private Iterator<SmtpMessage> current = Collections.emptyIterator();
+
+            private Iterator<SmtpMessage> last;
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && stores.hasNext())
+                    current = stores.next().iterator();
+                return current.hasNext();
+            }
+
+            @Override
+            public SmtpMessage next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                last = current;
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                if (last == null)
+                    throw new IllegalStateException();
+                last.remove();
+            }
+        };
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        for (MailStore partition : partitions.values()) {
+            if (partition.contains(o))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        for (MailStore partition : partitions.values()) {
+            if (partition.remove(o))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (MailStore partition : partitions.values())
+            size += partition.size();
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (MailStore partition : partitions.values())
+            partition.clear();
+    }
+
+    @Override
+    boolean isBackedUp() {
+        if (super.isBackedUp())
+            return true;
+        for (MailStore partition : partitions.values()) {
+            if (partition.isBackedUp())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Wait for the subscriptions of this store and of every partition backed up at the moment.
+     */
+    @Override
+    void whenNotBackedUp(Runnable callback) {
+        AtomicBoolean called = new AtomicBoolean();
+        Runnable once = () -> {
+            if (called.compareAndSet(false, true))
+                callback.run();
+        };
+        boolean waiting = false;
+        if (super.isBackedUp()) {
+            super.whenNotBackedUp(once);
+            waiting = true;
+        }
+        for (MailStore partition : partitions.values()) {
+            if (partition.isBackedUp()) {
+                partition.whenNotBackedUp(once);
+                waiting = true;
+            }
+        }
+        if (!waiting)
+            once.run();
+    }
+
+    /**
+     * Close every partition.
+     */
+    @Override
+    public void close() {
+        for (MailStore partition : partitions.values())
+            partition.close();
+    }
+
+    @Override
+    public boolean exceedsCapacity(SmtpMessage message) {
+        lock.readLock().lock();
+        try {
+            MailStore partition = partitionOf(message);
+            return partition != null && partition.exceedsCapacity(message);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    List<SmtpMessage> find(MessageKeys.Field field, String value) {
+        List<SmtpMessage> found = new ArrayList<>();
+        for (MailStore partition : partitions.values())
+            found.addAll(partition.find(field, value));
+        return found;
+    }
+
+    @Override
+    public long getEvictedCount() {
+        long count = 0;
+        for (MailStore partition : partitions.values())
+            count += partition.getEvictedCount();
+        return count;
+    }
+
+    @Override
+    public long getRejectedCount() {
+        long count = 0;
+        for (MailStore partition : partitions.values())
+            count += partition.getRejectedCount();
+        return count;
+    }
+
+    /**
+     * @return number of messages not delivered to a subscriber because it lagged behind, plus the number of messages
+     * dropped because their partition did not exist
+     */
+    @Override
+    public long getDroppedCount() {
+        long count = super.getDroppedCount() + unrouted.sum();
+        for (MailStore partition : partitions.values())
+            count += partition.getDroppedCount();
+        return count;
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+/**
+ * Decodes quoted-printable content (RFC 2045, section 6.7) while it is read. Malformed escapes are passed through
+ * unchanged.
+ */
+final class QuotedPrintableInputStream extends FilterInputStream {
+
+    QuotedPrintableInputStream(InputStream in) {
+        super(new PushbackInputStream(in, 2));
+    }
+
+    @Override
+    public int read() throws IOException {
+        PushbackInputStream pushback = (PushbackInputStream) in;
+        while (true) {
+            int b = pushback.read();
+            if (b != '=')
+                return b;
+            int first = pushback.read();
+            if (first == '\r') {
+                // soft line break
+                int second = pushback.read();
+                if (second != '\n' && second >= 0)
+                    pushback.unread(second);
+                continue;
+            }
+            if (first == '\n')
+                continue;
+            int second = first < 0 ? -1 : pushback.read();
+            int high = Character.digit(first, 16);
+            int low = Character.digit(second, 16);
+            if (high >= 0 && low >= 0)
+                return high << 4 | low;
+            if (second >= 0)
+                pushback.unread(second);
+            if (first >= 0)
+                pushback.unread(first);
+            return b;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = 0;
+        while (count < len) {
+            int next = read();
+            if (next < 0)
+                return count == 0 ? -1 : count;
+            b[off + count++] = (byte) next;
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && read() >= 0)
+            skipped++;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+}
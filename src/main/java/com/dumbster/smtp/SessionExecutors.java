@@ -0,0 +1,87 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors SMTP sessions run on.
+ */
+@Slf4j
+final class SessionExecutors {
+
+    private SessionExecutors() {
+    }
+
+    /**
+     * @param threads number of session threads
+     * @param port port of the server the sessions belong to
+     *
+     * @return an executor with a fixed number of platform threads
+     */
+    static ExecutorService fixed(int threads, int port) {
+        return Executors.newFixedThreadPool(threads, new SessionThreadFactory(port));
+    }
+
+    /**
+     * Starts a new virtual thread per session on JDK 21 and later, those threads are unnamed. Older JDKs get a new
+     * (or reused) platform thread per session instead.
+     *
+     * @param port port of the server the sessions belong to
+     *
+     * @return an executor with one thread per task
+     */
+    static ExecutorService perSession(int port) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("virtual threads not available on java {}, falling back to platform threads",
+                     System.getProperty("java.version"));
+            return Executors.newCachedThreadPool(new SessionThreadFactory(port));
+        }
+    }
+
+    /**
+     * Names the session threads after the port of the server they belong to, e.g. {@code smtp-session-2525-1}.
+     */
+    private static final class SessionThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        SessionThreadFactory(int port) {
+            this.prefix = "smtp-session-" + port + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
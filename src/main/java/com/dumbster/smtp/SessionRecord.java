@@ -0,0 +1,141 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.net.SocketAddress;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the server recorded about the session a message was received in: who connected, how the client greeted, when
+ * each phase of the transaction was reached and, if enabled, the last lines of the protocol transcript.
+ * Phases are timed with {@link System#nanoTime()}, relative to the connect.
+ */
+public final class SessionRecord {
+
+    /**
+     * Phases of a mail transaction.
+     */
+    public enum Phase {
+
+        /**
+         * The client connected.
+         */
+        CONNECT,
+
+        /**
+         * MAIL FROM was accepted.
+         */
+        MAIL,
+
+        /**
+         * DATA or the first BDAT chunk was accepted, i.e. message content is about to be received.
+         */
+        DATA_START,
+
+        /**
+         * The message content was received completely.
+         */
+        DATA_END
+
+    }
+
+    private final SocketAddress clientAddress;
+
+    private final String heloName;
+
+    private final Instant connectedAt;
+
+    /**
+     * Nanoseconds from the connect to each phase, indexed by its ordinal, -1 if not reached.
+     */
+    private final long[] elapsed;
+
+    private final List<String> transcript;
+
+    SessionRecord(SocketAddress clientAddress, String heloName, Instant connectedAt, long[] elapsed,
+                  List<String> transcript) {
+        this.clientAddress = clientAddress;
+        this.heloName = heloName;
+        this.connectedAt = connectedAt;
+        this.elapsed = elapsed;
+        this.transcript = Collections.unmodifiableList(transcript);
+    }
+
+    /**
+     * @return address the client connected from, {@code null} if unknown
+     */
+    public SocketAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    /**
+     * @return name the client gave with HELO or EHLO, {@code null} if it did not greet
+     */
+    public String getHeloName() {
+        return heloName;
+    }
+
+    /**
+     * @return wall clock time the client connected
+     */
+    public Instant getConnectedAt() {
+        return connectedAt;
+    }
+
+    /**
+     * @param phase phase of the transaction
+     * @param unit unit of the result
+     *
+     * @return time from the connect until the phase was reached, -1 if it was not
+     */
+    public long getElapsed(Phase phase, TimeUnit unit) {
+        long nanos = elapsed[phase.ordinal()];
+        return nanos < 0 ? -1 : unit.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param from earlier phase
+     * @param to later phase
+     * @param unit unit of the result
+     *
+     * @return time between both phases, -1 if either was not reached
+     */
+    public long getDuration(Phase from, Phase to, TimeUnit unit) {
+        long start = elapsed[from.ordinal()];
+        long end = elapsed[to.ordinal()];
+        return start < 0 || end < 0 ? -1 : unit.convert(end - start, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the last lines exchanged before the message was stored, client lines prefixed with {@code C: } and server
+     * lines with {@code S: }. Message content is summarized in a single line.
+     *
+     * @return the transcript, empty unless enabled with {@link SimpleSmtpServer.Builder#recordTranscript(int)}
+     */
+    public List<String> getTranscript() {
+        return transcript;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionRecord{client=" + clientAddress + ", helo=" + heloName + ", connectedAt=" + connectedAt + "}";
+    }
+
+}
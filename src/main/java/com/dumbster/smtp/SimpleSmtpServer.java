@@ -20,18 +20,34 @@ package com.dumbster.smtp;
 
 import lombok.extern.slf4j.Slf4j;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Queue;
-import java.util.Scanner;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
 
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
@@ -41,8 +57,6 @@ import static java.nio.charset.StandardCharsets.ISO_8859_1;
 @Slf4j
 public final class SimpleSmtpServer implements AutoCloseable {
 
-    private final Object lock = new Object();
-
     /**
      * Default SMTP port is 25.
      */
@@ -54,27 +68,97 @@ public final class SimpleSmtpServer implements AutoCloseable {
     public static final int AUTO_SMTP_PORT = 0;
 
     /**
-     * When stopping wait this long for any still ongoing transmission
+     * When stopping wait this long for threads to finish after their connections are closed
      */
     private static final int STOP_TIMEOUT = 20_000;
 
-    private static final String CRLF = "\r\n";
+    /**
+     * Size of the buffer client input is read into.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Default length of the accept backlog, the same as {@link ServerSocket} uses.
+     */
+    private static final int DEFAULT_BACKLOG = 50;
 
     /**
      * Store and offer received emails in a {@link Queue} object.
-     * Implementation uses a unbounded and thread-safe {@link ConcurrentLinkedQueue}
+     * Unless configured otherwise, the store is unbounded.
+     */
+    private final MailStore receivedEmails;
+
+    /**
+     * The server sockets this server listens to, all bound to the same port.
+     */
+    private final List<ServerSocket> serverSockets;
+
+    /**
+     * Threads accepting connections, spread evenly across the server sockets.
+     */
+    private final Thread[] acceptorThreads;
+
+    /**
+     * Executor running one session per connection, or {@code null} if sessions are handled one after another by the
+     * worker thread itself.
+     */
+    private final ExecutorService sessionExecutor;
+
+    /**
+     * Limits the number of concurrently handled sessions, {@code null} if unlimited. Further connections stay in the
+     * accept backlog until a session finishes.
+     */
+    private final Semaphore sessionPermits;
+
+    /**
+     * Non-blocking engine accepted connections are handed to, or {@code null} if sessions run in threads of their own.
+     */
+    private final NioSmtpEngine nioEngine;
+
+    /**
+     * Context for TLS established by STARTTLS, {@code null} if STARTTLS is not offered.
      */
-    private final Queue<SmtpMessage> receivedEmails;
+    private final SSLContext startTlsContext;
 
     /**
-     * The server socket this server listens to.
+     * Decides which credentials clients may authenticate with.
      */
-    private final ServerSocket serverSocket;
+    private final Authenticator authenticator;
 
     /**
-     * Thread that does the work.
+     * Number of protocol lines recorded with each message.
      */
-    private final Thread workerThread;
+    private final int transcriptLines;
+
+    /**
+     * Faults injected into every session, {@code null} if none.
+     */
+    private final FaultProfile faults;
+
+    /**
+     * Nanoseconds a client may stay silent, 0 for no limit.
+     */
+    private final long readTimeout;
+
+    /**
+     * Nanoseconds a session may last, 0 for no limit.
+     */
+    private final long maxSessionDuration;
+
+    /**
+     * Connections of sessions running in threads, closed when stopping.
+     */
+    private final Set<Socket> activeSockets = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Counters and latencies of connections, sessions and commands.
+     */
+    private final SmtpMetrics metrics;
+
+    /**
+     * Name the metrics are registered with in the platform MBean server, {@code null} if not registered.
+     */
+    private final ObjectName mbeanName;
 
     /**
      * Indicates the server thread that it should stop
@@ -85,13 +169,69 @@ public final class SimpleSmtpServer implements AutoCloseable {
      * private constructor because factory method {@link #start(int)} better indicates that
      * the created server is already running
      *
-     * @param serverSocket socket to listen on
+     * @param serverSockets sockets to listen on
+     * @param config server configuration
+     *
+     * @throws IOException when setting up the non-blocking engine causes one
+     * @throws IllegalStateException when registering the metrics MBean fails
      */
-    private SimpleSmtpServer(ServerSocket serverSocket) {
-        this.receivedEmails = new ConcurrentLinkedQueue<>();
-        this.serverSocket = serverSocket;
-        this.workerThread = new Thread(this::performWork);
-        this.workerThread.start();
+    private SimpleSmtpServer(List<ServerSocket> serverSockets, Builder config) throws IOException {
+        this.receivedEmails = config.mailStore != null ? config.mailStore : MailStore.unbounded();
+        this.serverSockets = serverSockets;
+        this.authenticator = config.authenticator;
+        this.transcriptLines = config.transcriptLines;
+        this.faults = config.faults;
+        this.readTimeout = config.readTimeout;
+        this.maxSessionDuration = config.maxSessionDuration;
+        this.metrics = new SmtpMetrics(receivedEmails);
+        this.startTlsContext = config.implicitTls ? null : config.sslContext;
+        // before any thread is started, so that a failed registration leaves nothing running
+        this.mbeanName = config.jmx ? registerMBean(metrics, getPort()) : null;
+        try {
+            this.nioEngine =
+                config.eventLoops > 0 ? new NioSmtpEngine(this::newSession, metrics, config.eventLoops) : null;
+        } catch (IOException | RuntimeException e) {
+            unregisterMBean();
+            throw e;
+        }
+        if (nioEngine != null) {
+            this.sessionExecutor = null;
+            this.sessionPermits = null;
+        } else if (config.virtualThreads) {
+            this.sessionExecutor = SessionExecutors.perSession(getPort());
+            this.sessionPermits = config.maxSessions > 1 ? new Semaphore(config.maxSessions) : null;
+        } else if (config.maxSessions > 1) {
+            this.sessionExecutor = SessionExecutors.fixed(config.maxSessions, getPort());
+            this.sessionPermits = new Semaphore(config.maxSessions);
+        } else {
+            this.sessionExecutor = null;
+            this.sessionPermits = null;
+        }
+        this.acceptorThreads = new Thread[Math.max(config.acceptors, serverSockets.size())];
+        log.info("server listening on port {}", getPort());
+        for (int i = 0; i < acceptorThreads.length; i++) {
+            ServerSocket serverSocket = serverSockets.get(i % serverSockets.size());
+            acceptorThreads[i] = new Thread(() -> performWork(serverSocket), "smtp-acceptor-" + (i + 1));
+            acceptorThreads[i].start();
+        }
+    }
+
+    /**
+     * Register metrics with the platform MBean server.
+     *
+     * @param metrics metrics to register
+     * @param port port the server listens on, part of the name so that several servers can be registered
+     *
+     * @return the name the metrics have been registered with
+     */
+    private static ObjectName registerMBean(SmtpMetrics metrics, int port) {
+        try {
+            ObjectName name = new ObjectName("com.dumbster.smtp:type=SimpleSmtpServer,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            return name;
+        } catch (JMException e) {
+            throw new IllegalStateException("could not register metrics MBean", e);
+        }
     }
 
     /**
@@ -115,78 +255,147 @@ public final class SimpleSmtpServer implements AutoCloseable {
      * @throws IOException when listening on the socket causes one
      */
     public static SimpleSmtpServer start(int port) throws IOException {
-        return new SimpleSmtpServer(new ServerSocket(Math.max(port, AUTO_SMTP_PORT)));
+        return builder().port(port).start();
+    }
+
+    /**
+     * Creates a builder to configure a server before starting it.
+     *
+     * @return a new builder
+     */
+    public static Builder builder() {
+        return new Builder();
     }
 
     /**
      * Handle an SMTP transaction, i.e. all activity between initial connect and QUIT command.
      *
-     * @param out output stream
-     * @param input input stream
-     * @param queue list of SmtpMessage
-     */
-    private static void handleTransaction(PrintWriter out, Iterator<String> input, Queue<SmtpMessage> queue) {
-        // Initialize the state machine
-        SmtpRequest smtpRequest = new SmtpRequest(SmtpActionType.CONNECT, "", SmtpState.CONNECT);
-
-        // Execute the connection request
-        SmtpResponse smtpResponse = smtpRequest.execute();
-
-        // Send initial response
-        sendResponse(out, smtpResponse);
-
-        SmtpState smtpState = smtpResponse.getNextState();
-        SmtpMessage msg = new SmtpMessage();
-
-        while (smtpState != SmtpState.CONNECT) {
-            String line = input.next();
-
-            if (line == null)
-                break;
-
-            log.debug("C: {}", line);
-
-            // Create request from client input and current state
-            SmtpRequest request = SmtpRequest.createRequest(line, smtpState);
-            // Execute request and create response object
-            SmtpResponse response = request.execute();
-            // Move to next internal state
-            smtpState = response.getNextState();
-            // Send response to client
-            sendResponse(out, response);
-            // Store input in message
-            msg.store(response, request.params);
-
-            // If message reception is complete save it
-            if (smtpState == SmtpState.QUIT) {
-                queue.add(msg);
-                msg = new SmtpMessage();
-            } else if (smtpState == SmtpState.GREET) {
-                queue.clear();
-                msg = new SmtpMessage();
-            } else if (smtpState == SmtpState.GREET_AUTH) {
-                out.print("250-AUTH PLAIN" + CRLF);
-                smtpState = SmtpState.AUTH_PLAIN;
+     * @param socket connection to the client, closed after QUIT
+     *
+     * @throws IOException when reading from the client causes one
+     */
+    private void handleTransaction(Socket socket) throws IOException {
+        SmtpSession session = newSession();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        StringBuilder replies = new StringBuilder();
+        InputStream input = socket.getInputStream();
+        PrintWriter out = writer(socket);
+
+        if (socket instanceof SSLSocket)
+            session.tlsStarted();
+        session.open(socket.getRemoteSocketAddress(), replies);
+        pause(session);
+        sendResponse(out, replies);
+
+        while (!session.isClosed()) {
+            socket.setSoTimeout(soTimeout(session));
+            int read;
+            try {
+                read = input.read(buffer.array());
+            } catch (SocketTimeoutException e) {
+                if (session.expire(replies)) {
+                    metrics.sessionTimedOut();
+                    sendResponse(out, replies);
+                }
+                continue;
+            }
+            if (read < 0)
+                throw new EOFException("client disconnected before QUIT");
+            buffer.clear();
+            buffer.limit(read);
+
+            session.receive(buffer, replies);
+            pause(session);
+            sendResponse(out, replies);
+
+            if (session.isStartingTls()) {
+                socket = startTls(socket);
+                input = socket.getInputStream();
+                out = writer(socket);
+                session.tlsStarted();
             }
         }
+        out.flush();
+        socket.close();
+    }
 
+    /**
+     * @param session session to read input for
+     *
+     * @return milliseconds to wait for input until the session times out, 0 for no limit
+     */
+    private static int soTimeout(SmtpSession session) {
+        long timeout = session.timeoutNanos();
+        if (timeout == Long.MAX_VALUE)
+            return 0;
+        // round up, a timeout of 0 would wait forever
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (timeout + 999_999) / 1_000_000));
     }
 
     /**
-     * Send response to client.
+     * Wait as long as injected faults or a lagging subscriber hold back the replies of a session. Only the thread of
+     * the session waits.
      *
-     * @param out socket output stream
-     * @param smtpResponse response object
+     * @param session session to wait for
+     *
+     * @throws InterruptedIOException when interrupted while waiting
      */
-    private static void sendResponse(PrintWriter out, SmtpResponse smtpResponse) {
-        int code = smtpResponse.getCode();
-        if (code > 0) {
-            String message = smtpResponse.getMessage();
+    private static void pause(SmtpSession session) throws InterruptedIOException {
+        try {
+            long nanos;
+            while ((nanos = session.pauseNanos()) > 0)
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            while (session.isHeldBack()) {
+                CountDownLatch released = new CountDownLatch(1);
+                session.whenReleased(released::countDown);
+                released.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while delaying reply");
+        }
+    }
 
-            log.debug("S: {} {}{}", code, message, CRLF);
+    /**
+     * @return a new session as configured for this server
+     */
+    private SmtpSession newSession() {
+        return new SmtpSession(receivedEmails, authenticator, startTlsContext != null, transcriptLines, metrics,
+                               faults, readTimeout, maxSessionDuration);
+    }
 
-            out.print(code + " " + message + CRLF);
+    /**
+     * Establish TLS on a connection after STARTTLS, layered over the plain socket.
+     *
+     * @param socket plain connection to the client
+     *
+     * @return the TLS connection, closing it closes the plain socket as well
+     *
+     * @throws IOException when the handshake fails
+     */
+    private Socket startTls(Socket socket) throws IOException {
+        SSLSocket tls = (SSLSocket) startTlsContext.getSocketFactory()
+            .createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        tls.setUseClientMode(false);
+        tls.startHandshake();
+        return tls;
+    }
+
+    private static PrintWriter writer(Socket socket) throws IOException {
+        return new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), ISO_8859_1));
+    }
+
+    /**
+     * Send pending replies to client.
+     *
+     * @param out socket output stream
+     * @param replies replies to send, cleared afterwards
+     */
+    private static void sendResponse(PrintWriter out, StringBuilder replies) {
+        if (replies.length() > 0) {
+            out.append(replies);
             out.flush();
+            replies.setLength(0);
         }
     }
 
@@ -194,7 +403,17 @@ public final class SimpleSmtpServer implements AutoCloseable {
      * @return the port the server is listening on
      */
     public int getPort() {
-        return serverSocket.getLocalPort();
+        return serverSockets.get(0).getLocalPort();
+    }
+
+    /**
+     * Counters and latencies of this server, updated while it runs. Also available via JMX if enabled with
+     * {@link Builder#jmx()}, and to Micrometer via {@link SmtpMeterBinder}.
+     *
+     * @return the metrics of this server
+     */
+    public SmtpMetrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -208,6 +427,15 @@ public final class SimpleSmtpServer implements AutoCloseable {
         return receivedEmails;
     }
 
+    /**
+     * The store received email is kept in, which is the same object as {@link #getReceivedEmails()}.
+     *
+     * @return the store of received email
+     */
+    public MailStore getMailStore() {
+        return receivedEmails;
+    }
+
     /**
      * All received email copied in a {@link ArrayList} to support the original semantics.
      * Modifying this list does not change the backing queue {@link #getReceivedEmails()}.
@@ -218,6 +446,125 @@ public final class SimpleSmtpServer implements AutoCloseable {
         return new ArrayList<>(receivedEmails);
     }
 
+    /**
+     * Received email by envelope sender, looked up in an index instead of searching all email.
+     *
+     * @param address address given by MAIL FROM, matched case-insensitively
+     *
+     * @return received email sent by the given address, oldest first
+     */
+    public List<SmtpMessage> findBySender(String address) {
+        return receivedEmails.findBySender(address);
+    }
+
+    /**
+     * Received email by envelope recipient, looked up in an index instead of searching all email.
+     *
+     * @param address address given by RCPT TO, matched case-insensitively
+     *
+     * @return received email sent to the given address, oldest first
+     */
+    public List<SmtpMessage> findByRecipient(String address) {
+        return receivedEmails.findByRecipient(address);
+    }
+
+    /**
+     * Received email by subject, looked up in an index instead of searching all email.
+     *
+     * @param subject value of the Subject header
+     *
+     * @return received email with the given subject, oldest first
+     */
+    public List<SmtpMessage> findBySubject(String subject) {
+        return receivedEmails.findBySubject(subject);
+    }
+
+    /**
+     * Received email by message id, looked up in an index instead of searching all email.
+     *
+     * @param messageId value of the Message-ID header, with or without angle brackets
+     *
+     * @return received email with the given id, oldest first
+     */
+    public List<SmtpMessage> findByMessageId(String messageId) {
+        return receivedEmails.findByMessageId(messageId);
+    }
+
+    /**
+     * Block until at least the given number of emails has been received, instead of polling for them.
+     *
+     * @param count number of emails to wait for
+     * @param timeout how long to wait
+     * @param unit unit of the timeout
+     *
+     * @return all received email copied in a list
+     *
+     * @throws InterruptedException when interrupted while waiting
+     * @throws TimeoutException when fewer emails have been received after the timeout
+     * @see MailStore#awaitMessages(int, long, TimeUnit)
+     */
+    public List<SmtpMessage> awaitMessages(int count, long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException {
+        return receivedEmails.awaitMessages(count, timeout, unit);
+    }
+
+    /**
+     * Block until an email matching the condition has been received, instead of polling for it.
+     *
+     * @param condition condition the email has to satisfy
+     * @param timeout how long to wait
+     * @param unit unit of the timeout
+     *
+     * @return the matching email
+     *
+     * @throws InterruptedException when interrupted while waiting
+     * @throws TimeoutException when no matching email has been received before the timeout
+     * @see MailStore#awaitMessage(Predicate, long, TimeUnit)
+     */
+    public SmtpMessage awaitMessage(Predicate<SmtpMessage> condition, long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException {
+        return receivedEmails.awaitMessage(condition, timeout, unit);
+    }
+
+    /**
+     * @param condition condition the email has to satisfy
+     *
+     * @return a future completed with the matching email once it has been received
+     * @see MailStore#awaitMessageAsync(Predicate)
+     */
+    public CompletableFuture<SmtpMessage> awaitMessageAsync(Predicate<SmtpMessage> condition) {
+        return receivedEmails.awaitMessageAsync(condition);
+    }
+
+    /**
+     * Get every email received from now on handed to a listener as soon as it arrives, instead of copying all
+     * received email over and over.
+     *
+     * @param listener listener to deliver to, called from a thread of its own
+     * @param bufferSize maximum number of emails received but not yet delivered, sessions delivering further emails
+     *                   wait for this listener once it is reached
+     *
+     * @return the subscription, close it to stop the delivery
+     * @see MailStore#subscribe(MessageListener, int)
+     */
+    public MessageSubscription subscribe(MessageListener listener, int bufferSize) {
+        return receivedEmails.subscribe(listener, bufferSize);
+    }
+
+    /**
+     * Get every email received from now on handed to a listener as soon as it arrives.
+     *
+     * @param listener listener to deliver to, called from a thread of its own
+     * @param bufferSize maximum number of emails received but not yet delivered
+     * @param overflowPolicy what to do with further emails once the buffer is full
+     *
+     * @return the subscription, close it to stop the delivery
+     * @see MailStore#subscribe(MessageListener, int, OverflowPolicy)
+     */
+    public MessageSubscription subscribe(MessageListener listener, int bufferSize, OverflowPolicy overflowPolicy) {
+        return receivedEmails.subscribe(listener, bufferSize, overflowPolicy);
+    }
+
     /**
      * forgets all received emails
      */
@@ -226,19 +573,42 @@ public final class SimpleSmtpServer implements AutoCloseable {
     }
 
     /**
-     * Stops the server. Server is shutdown after processing of the current request is complete.
+     * Stops the server. Connections of active sessions are closed right away, aborting messages not completely
+     * received yet. Messages already acknowledged are kept.
      */
     public void stop() {
         if (stopped)
             return;
 
         closeSocket();
-        // and block until worker is finished
+        for (Socket socket : activeSockets)
+            closeQuietly(socket);
+        // wake up sessions paused by injected faults, then block until workers are finished
         try {
-            workerThread.join(STOP_TIMEOUT);
+            for (Thread acceptorThread : acceptorThreads) {
+                acceptorThread.interrupt();
+                acceptorThread.join(STOP_TIMEOUT);
+            }
+            if (sessionExecutor != null) {
+                sessionExecutor.shutdownNow();
+                sessionExecutor.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            if (nioEngine != null)
+                nioEngine.stop(STOP_TIMEOUT);
         } catch (InterruptedException e) {
             log.warn("interrupted when waiting for worker thread to finish", e);
         }
+        unregisterMBean();
+    }
+
+    private void unregisterMBean() {
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                log.warn("problem when unregistering metrics MBean", e);
+            }
+        }
     }
 
     /**
@@ -250,20 +620,21 @@ public final class SimpleSmtpServer implements AutoCloseable {
     }
 
     /**
-     * Main loop of the SMTP server.
+     * Main loop of an acceptor thread.
+     *
+     * @param serverSocket socket to accept connections from
      */
-    private void performWork() {
-        log.info("server listening on port {}", serverSocket.getLocalPort());
+    private void performWork(ServerSocket serverSocket) {
         try {
             while (!stopped) { // Server: loop until stopped
-                try (Socket socket = serverSocket.accept();
-                     Scanner input = new Scanner(new InputStreamReader(socket.getInputStream(), ISO_8859_1))
-                                         .useDelimiter(CRLF);
-                     PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), ISO_8859_1))) {
-
-                    synchronized (lock) {
-                        handleTransaction(out, input, receivedEmails);
-                    }
+                if (sessionPermits != null)
+                    sessionPermits.acquire();
+                try {
+                    dispatch(serverSocket.accept());
+                } catch (Exception e) {
+                    if (sessionPermits != null)
+                        sessionPermits.release();
+                    throw e;
                 }
             }
         } catch (Exception e) {
@@ -271,15 +642,382 @@ public final class SimpleSmtpServer implements AutoCloseable {
         }
     }
 
-    private void closeSocket() {
+    /**
+     * Hand an accepted connection to the engine, the session executor or serve it right away.
+     * A permit acquired for the connection is released once its session finishes.
+     *
+     * @param socket connection to the client
+     *
+     * @throws IOException when closing a rejected connection causes one
+     */
+    private void dispatch(Socket socket) throws IOException {
+        metrics.connectionAccepted();
+        if (nioEngine != null) {
+            nioEngine.register(socket.getChannel());
+        } else if (sessionExecutor == null) {
+            serve(socket);
+        } else {
+            try {
+                sessionExecutor.execute(() -> {
+                    try {
+                        serve(socket);
+                    } finally {
+                        if (sessionPermits != null)
+                            sessionPermits.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                metrics.connectionRejected();
+                socket.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Runs a single SMTP session on an accepted connection and closes it afterwards.
+     *
+     * @param socket connection to the client
+     */
+    private void serve(Socket socket) {
+        metrics.sessionStarted();
+        activeSockets.add(socket);
+        try (Socket s = socket) {
+            // stop() may have missed the socket
+            if (stopped)
+                return;
+            s.setTcpNoDelay(true);
+            handleTransaction(s);
+        } catch (Exception e) {
+            metrics.sessionFailed();
+            log.debug("session ended abnormally", e);
+        } finally {
+            activeSockets.remove(socket);
+            metrics.sessionEnded();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("problem when closing connection", e);
+        }
+    }
+
+    private synchronized void closeSocket() {
         if (!stopped) {
+            stopped = true;
+            Listeners.close(serverSockets);
+        }
+    }
+
+    /**
+     * Configures and starts a {@link SimpleSmtpServer}.
+     */
+    public static final class Builder {
+
+        private int port = DEFAULT_SMTP_PORT;
+
+        private int backlog = DEFAULT_BACKLOG;
+
+        private int acceptors = 1;
+
+        private int listeners = 1;
+
+        private int maxSessions = 1;
+
+        private boolean virtualThreads;
+
+        private int eventLoops;
+
+        private MailStore mailStore;
+
+        private SSLContext sslContext;
+
+        private boolean implicitTls;
+
+        private Authenticator authenticator = Authenticator.acceptAll();
+
+        private int transcriptLines;
+
+        private boolean jmx;
+
+        private FaultProfile faults;
+
+        private long readTimeout;
+
+        private long maxSessionDuration;
+
+        private Builder() {
+        }
+
+        /**
+         * @param port port number the server should listen to, {@link #AUTO_SMTP_PORT} to pick any free port
+         *
+         * @return this builder
+         */
+        public Builder port(int port) {
+            this.port = Math.max(port, AUTO_SMTP_PORT);
+            return this;
+        }
+
+        /**
+         * @param backlog maximum number of connections the operating system queues until they are accepted, per
+         *                listening socket. Defaults to 50, may be capped by the operating
+         *                system (e.g. {@code net.core.somaxconn} on Linux).
+         *
+         * @return this builder
+         */
+        public Builder backlog(int backlog) {
+            if (backlog < 1)
+                throw new IllegalArgumentException("backlog must be positive: " + backlog);
+            this.backlog = backlog;
+            return this;
+        }
+
+        /**
+         * Accept connections with the given number of threads instead of one, raising the rate at which connections
+         * are established. Sessions still run as configured by {@link #maxSessions(int)}, {@link #virtualThreads()}
+         * or {@link #nonBlocking(int)}, one of which is needed to accept with more than one thread.
+         *
+         * @param acceptors number of acceptor threads
+         *
+         * @return this builder
+         */
+        public Builder acceptors(int acceptors) {
+            if (acceptors < 1)
+                throw new IllegalArgumentException("acceptors must be positive: " + acceptors);
+            this.acceptors = acceptors;
+            return this;
+        }
+
+        /**
+         * Listen with several sockets sharing the port via SO_REUSEPORT, each with an acceptor thread of its own, so
+         * that the kernel spreads incoming connections across them instead of queueing all of them in one backlog.
+         * Needs JDK 9 or later and an operating system supporting it (e.g. Linux), otherwise a single socket is
+         * used. Not supported with {@link #implicitTls()}.
+         *
+         * @param listeners number of listening sockets
+         *
+         * @return this builder
+         */
+        public Builder reusePort(int listeners) {
+            if (listeners < 1)
+                throw new IllegalArgumentException("listeners must be positive: " + listeners);
+            this.listeners = listeners;
+            return this;
+        }
+
+        /**
+         * Handle up to the given number of client connections concurrently, each one in a session of its own.
+         * The default of 1 handles connections one after another.
+         *
+         * @param maxSessions maximum number of concurrent sessions
+         *
+         * @return this builder
+         */
+        public Builder maxSessions(int maxSessions) {
+            if (maxSessions < 1)
+                throw new IllegalArgumentException("maxSessions must be positive: " + maxSessions);
+            this.maxSessions = maxSessions;
+            return this;
+        }
+
+        /**
+         * Run each client connection in a virtual thread of its own (JDK 21 and later), so that thousands of idle
+         * connections stay cheap. Sessions are unlimited unless limited with {@link #maxSessions(int)}.
+         * Older JDKs fall back to a platform thread per connection.
+         *
+         * @return this builder
+         */
+        public Builder virtualThreads() {
+            this.virtualThreads = true;
+            return this;
+        }
+
+        /**
+         * Use the non-blocking engine, which multiplexes all client connections on the given number of event loop
+         * threads. Tens of thousands of concurrent sessions are no problem this way.
+         * {@link #maxSessions(int)} and {@link #virtualThreads()} do not apply to this engine.
+         *
+         * @param eventLoops number of event loop threads
+         *
+         * @return this builder
+         */
+        public Builder nonBlocking(int eventLoops) {
+            if (eventLoops < 1)
+                throw new IllegalArgumentException("eventLoops must be positive: " + eventLoops);
+            this.eventLoops = eventLoops;
+            return this;
+        }
+
+        /**
+         * Keep received email in the given store instead of an unbounded one, see {@link MailStore#bounded} and
+         * {@link MailStore#spilling}.
+         *
+         * @param mailStore store for received email
+         *
+         * @return this builder
+         */
+        public Builder mailStore(MailStore mailStore) {
+            this.mailStore = mailStore;
+            return this;
+        }
+
+        /**
+         * Verify the credentials of clients authenticating with AUTH PLAIN, LOGIN or CRAM-MD5, e.g. with a
+         * {@link CredentialTable}. By default any credentials are accepted. Authentication stays optional either way.
+         *
+         * @param authenticator decides which credentials clients may authenticate with
+         *
+         * @return this builder
+         */
+        public Builder authenticator(Authenticator authenticator) {
+            this.authenticator = authenticator;
+            return this;
+        }
+
+        /**
+         * Record the last protocol lines exchanged before each message with its {@link SessionRecord}.
+         * Client address, HELO name and timing of the transaction are recorded in any case.
+         *
+         * @param maxLines number of lines to keep per session, 0 to record none
+         *
+         * @return this builder
+         */
+        public Builder recordTranscript(int maxLines) {
+            if (maxLines < 0)
+                throw new IllegalArgumentException("maxLines must not be negative: " + maxLines);
+            this.transcriptLines = maxLines;
+            return this;
+        }
+
+        /**
+         * Close sessions whose client sends nothing for the given time with a 421 reply (RFC 5321 section 4.5.3.2),
+         * reaping idle connections. Time spent waiting for injected delays does not count.
+         *
+         * @param timeout how long a client may stay silent, 0 for no limit (the default)
+         * @param unit unit of the timeout
+         *
+         * @return this builder
+         */
+        public Builder readTimeout(long timeout, TimeUnit unit) {
+            if (timeout < 0)
+                throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+            this.readTimeout = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Close sessions lasting longer than the given time with a 421 reply, no matter whether the client is busy.
+         *
+         * @param duration how long a session may last, 0 for no limit (the default)
+         * @param unit unit of the duration
+         *
+         * @return this builder
+         */
+        public Builder maxSessionDuration(long duration, TimeUnit unit) {
+            if (duration < 0)
+                throw new IllegalArgumentException("duration must not be negative: " + duration);
+            this.maxSessionDuration = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Inject faults into every session, to test how clients cope with a slow or flaky server.
+         *
+         * @param faults faults to inject, {@code null} for none
+         *
+         * @return this builder
+         */
+        public Builder faults(FaultProfile faults) {
+            this.faults = faults;
+            return this;
+        }
+
+        /**
+         * Register the {@link SimpleSmtpServer#getMetrics() metrics} with the platform MBean server as
+         * {@code com.dumbster.smtp:type=SimpleSmtpServer,port=<port>} while the server runs.
+         *
+         * @return this builder
+         */
+        public Builder jmx() {
+            this.jmx = true;
+            return this;
+        }
+
+        /**
+         * Offer STARTTLS after EHLO, using the self-signed certificate of {@link TlsContexts#server()}.
+         * Connect with a client context from {@link TlsContexts#client()} to trust it.
+         *
+         * @return this builder
+         */
+        public Builder startTls() {
+            return startTls(TlsContexts.server());
+        }
+
+        /**
+         * Offer STARTTLS after EHLO. Not supported by the {@link #nonBlocking(int) non-blocking engine}.
+         *
+         * @param sslContext context to establish TLS with, sessions cached in it may be resumed by clients
+         *
+         * @return this builder
+         */
+        public Builder startTls(SSLContext sslContext) {
+            this.sslContext = sslContext;
+            this.implicitTls = false;
+            return this;
+        }
+
+        /**
+         * Expect TLS right after connecting (SMTPS) instead of plain SMTP, using the self-signed certificate of
+         * {@link TlsContexts#server()}. Connect with a client context from {@link TlsContexts#client()} to trust it.
+         *
+         * @return this builder
+         */
+        public Builder implicitTls() {
+            return implicitTls(TlsContexts.server());
+        }
+
+        /**
+         * Expect TLS right after connecting (SMTPS) instead of plain SMTP.
+         * Not supported by the {@link #nonBlocking(int) non-blocking engine}.
+         *
+         * @param sslContext context to establish TLS with, sessions cached in it may be resumed by clients
+         *
+         * @return this builder
+         */
+        public Builder implicitTls(SSLContext sslContext) {
+            this.sslContext = sslContext;
+            this.implicitTls = true;
+            return this;
+        }
+
+        /**
+         * Creates an instance of a started SimpleSmtpServer.
+         *
+         * @return a reference to the running SMTP server
+         *
+         * @throws IOException when listening on the socket causes one
+         */
+        public SimpleSmtpServer start() throws IOException {
+            if (sslContext != null && eventLoops > 0)
+                throw new IllegalArgumentException("TLS is not supported by the non-blocking engine");
+            if (implicitTls && listeners > 1)
+                throw new IllegalArgumentException("SO_REUSEPORT is not supported with implicit TLS");
+            if (Math.max(acceptors, listeners) > 1 && maxSessions == 1 && !virtualThreads && eventLoops == 0)
+                throw new IllegalArgumentException("more than one acceptor needs concurrent sessions");
+            List<ServerSocket> serverSockets =
+                Listeners.open(port, backlog, listeners, implicitTls ? sslContext : null, eventLoops > 0);
             try {
-                serverSocket.close();
-                stopped = true;
-            } catch (IOException ex) {
-                log.error("problem when closing server socket", ex);
+                return new SimpleSmtpServer(serverSockets, this);
+            } catch (IOException | RuntimeException e) {
+                Listeners.close(serverSockets);
+                throw e;
             }
         }
+
     }
 
 }
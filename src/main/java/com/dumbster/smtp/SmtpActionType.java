@@ -39,24 +39,19 @@ enum SmtpActionType {
     EHLO(false),
 
     /**
-     * AUTH PLAIN action.
+     * STARTTLS action.
      */
-    AUTH_PLAIN(false),
+    STARTTLS(false),
 
     /**
-     * AUTH PLAIN with user/password action.
+     * AUTH action, with mechanism and optional initial response.
      */
-    AUTH_PLAIN_EXT(false),
+    AUTH(false),
 
     /**
-     * AUTH SUCCESS action.
+     * Client response to an authentication challenge.
      */
-    AUTH_SUCCESS(false),
-
-    /**
-     * AUTH FAILED action.
-     */
-    AUTH_FAILED(false),
+    AUTH_RESPONSE(false),
 
     /**
      * AUTH UNSUPPORTED action.
@@ -78,6 +73,11 @@ enum SmtpActionType {
      */
     DATA(false),
 
+    /**
+     * BDAT chunk action.
+     */
+    BDAT(false),
+
     /**
      * DATA END "." action.
      */
@@ -0,0 +1,175 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Collects the message content sent after a DATA command. Input is scanned for the terminating
+ * &lt;CRLF&gt;.&lt;CRLF&gt; and the leading dot of dot-stuffed lines is removed (see RFC 5321, section 4.5.2);
+ * everything in between is copied in bulk. Content sent in BDAT chunks is copied as is.
+ * Instances are not thread-safe.
+ */
+final class SmtpDataDecoder {
+
+    private enum Position {
+        /** at the beginning of a line */
+        LINE_START,
+        /** somewhere within a line */
+        IN_LINE,
+        /** after a CR within a line */
+        CR,
+        /** after a dot at the beginning of a line */
+        DOT,
+        /** after a dot and CR at the beginning of a line */
+        DOT_CR
+    }
+
+    private static final int INITIAL_CAPACITY = 4 * 1024;
+
+    /**
+     * Buffers grown beyond this size are released after each message, so idle sessions do not hold on to them.
+     */
+    private static final int RETAINED_CAPACITY = 64 * 1024;
+
+    private byte[] data = new byte[INITIAL_CAPACITY];
+
+    private int length;
+
+    private Position position = Position.LINE_START;
+
+    /**
+     * Consume message content up to the terminating line.
+     *
+     * @param in client input, consumed up to and including the terminating line at most
+     *
+     * @return true if the message is complete, false if the buffer was drained before
+     */
+    boolean decode(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            int next = in.position();
+            byte b = in.get(next);
+            switch (position) {
+                case IN_LINE:
+                    int limit = in.limit();
+                    int end = next;
+                    while (end < limit && in.get(end) != '\r')
+                        end++;
+                    append(in, end - next);
+                    if (end < limit) {
+                        in.get();
+                        position = Position.CR;
+                    }
+                    break;
+                case CR:
+                    if (b == '\n') {
+                        in.get();
+                        append((byte) '\r');
+                        append((byte) '\n');
+                        position = Position.LINE_START;
+                    } else {
+                        append((byte) '\r');
+                        position = Position.IN_LINE;
+                    }
+                    break;
+                case LINE_START:
+                    if (b == '.') {
+                        in.get();
+                        position = Position.DOT;
+                    } else {
+                        position = Position.IN_LINE;
+                    }
+                    break;
+                case DOT:
+                    if (b == '\r') {
+                        in.get();
+                        position = Position.DOT_CR;
+                    } else {
+                        // dot-stuffed line, drop the leading dot
+                        position = Position.IN_LINE;
+                    }
+                    break;
+                case DOT_CR:
+                    if (b == '\n') {
+                        in.get();
+                        position = Position.LINE_START;
+                        return true;
+                    }
+                    append((byte) '\r');
+                    position = Position.IN_LINE;
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Consume content of a BDAT chunk, which is neither scanned for a terminating line nor dot-unstuffed.
+     *
+     * @param in client input
+     * @param max number of bytes left in the chunk
+     *
+     * @return number of bytes consumed
+     */
+    int copy(ByteBuffer in, int max) {
+        int count = Math.min(max, in.remaining());
+        append(in, count);
+        return count;
+    }
+
+    /**
+     * @return buffer holding the message content received so far, lines terminated by CRLF
+     */
+    byte[] data() {
+        return data;
+    }
+
+    /**
+     * @return length of the message content received so far
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Forget the content received so far and prepare for the next message.
+     */
+    void reset() {
+        if (data.length > RETAINED_CAPACITY)
+            data = new byte[INITIAL_CAPACITY];
+        length = 0;
+        position = Position.LINE_START;
+    }
+
+    private void append(ByteBuffer in, int count) {
+        ensureCapacity(count);
+        in.get(data, length, count);
+        length += count;
+    }
+
+    private void append(byte b) {
+        ensureCapacity(1);
+        data[length++] = b;
+    }
+
+    private void ensureCapacity(int count) {
+        if (length + count > data.length)
+            data = Arrays.copyOf(data, Math.max(length + count, data.length * 2));
+    }
+
+}
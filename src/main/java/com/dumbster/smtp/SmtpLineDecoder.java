@@ -0,0 +1,116 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits client input into CRLF terminated lines as it arrives. Lines may be spread over any number of buffers, the
+ * decoder keeps incomplete lines until their end arrives. Lines longer than the limit are skipped up to their CRLF
+ * and reported by {@link #isTooLong()}, so a client cannot make the buffer grow without bounds. Instances are not
+ * thread-safe.
+ */
+final class SmtpLineDecoder {
+
+    /**
+     * Longest line accepted without its CRLF, the limit of RFC 5321 section 4.5.3.1.6 for text lines. It is above
+     * the 512 octets allowed for command lines, since service extensions may add parameters to MAIL and RCPT.
+     */
+    static final int MAX_LINE_LENGTH = 998;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int maxLength;
+
+    private byte[] line = new byte[INITIAL_CAPACITY];
+
+    private int length;
+
+    private boolean complete;
+
+    private boolean tooLong;
+
+    SmtpLineDecoder() {
+        this(MAX_LINE_LENGTH);
+    }
+
+    /**
+     * @param maxLength longest line accepted without its CRLF
+     */
+    SmtpLineDecoder(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Consume input up to the end of the next line. The line is then available from {@link #line()} and
+     * {@link #length()} until the next call.
+     *
+     * @param in client input, consumed up to and including the next CRLF
+     *
+     * @return true if a line is complete, false if the buffer was drained before a line ended
+     */
+    boolean next(ByteBuffer in) {
+        if (complete) {
+            if (tooLong)
+                line = new byte[INITIAL_CAPACITY];
+            length = 0;
+            complete = false;
+            tooLong = false;
+        }
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n' && length > 0 && line[length - 1] == '\r') {
+                length = tooLong ? 0 : length - 1;
+                complete = true;
+                return true;
+            }
+            if (length > maxLength) {
+                // keep only the last byte, it may be the CR of the CRLF ending the line
+                tooLong = true;
+                line[0] = line[length - 1];
+                length = 1;
+            } else if (length == line.length) {
+                line = Arrays.copyOf(line, Math.min(length * 2, maxLength + 1));
+            }
+            line[length++] = b;
+        }
+        return false;
+    }
+
+    /**
+     * @return buffer holding the current line, only valid until the next call to {@link #next(ByteBuffer)}
+     */
+    byte[] line() {
+        return line;
+    }
+
+    /**
+     * @return length of the current line without its CRLF, 0 if it was too long
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return true if the current line exceeded the limit and was skipped
+     */
+    boolean isTooLong() {
+        return tooLong;
+    }
+
+}
@@ -18,30 +18,88 @@
  */
 package com.dumbster.smtp;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
 /**
  * Container for a complete SMTP message - headers and message body.
+ * Messages received by the server keep their content as received and only parse the headers on the first access
+ * to a header, and decode the body on the first access to the body. Parsing is thread-safe.
  */
 public class SmtpMessage {
 
-    /** Headers: Map of List of String hashed on header name. */
-    private List<Header> headers;
+    /** Headers: Map of List of String hashed on lower case header name, in the order they were received. */
+    private Map<String, Header> headers;
+
+    /** Header received last, continuation lines are appended to it. */
+    private Header lastHeader;
 
     /** Message body. */
     private StringBuilder body;
 
+    /** Message body as returned by {@link #getBody()}, null until requested or after the body changed. */
+    private String bodyString;
+
+    /** Size of the message content as received, in bytes. */
+    private int size;
+
+    /** Message content as received, lines terminated by CRLF, null if the message was built line by line. */
+    private byte[] content;
+
+    /** Whether the headers still have to be parsed from the content. */
+    private boolean headersPending;
+
+    /** Whether the body still has to be decoded from the content. */
+    private boolean bodyPending;
+
+    /** Offset of the body within the content, known once the headers are parsed. */
+    private int bodyStart;
+
+    /** The message as MIME entity, null until requested. */
+    private MimePart mimePart;
+
+    /** Envelope sender as given by MAIL FROM, null if the message was not received by a session. */
+    private String envelopeSender;
+
+    /** Envelope recipients as given by RCPT TO. */
+    private List<String> envelopeRecipients = new ArrayList<>(1);
+
+    /** Credentials the client authenticated with, null if it did not. */
+    private Credentials credentials;
+
+    /** What the server recorded about the session the message was received in, null if not received by a session. */
+    private SessionRecord sessionRecord;
+
+    /** Where a store which hands out copies of its messages keeps this one, null if it keeps the message itself. */
+    private Object storeEntry;
+
     /** Constructor. Initializes headers Map and body buffer. */
     public SmtpMessage() {
-        headers = new ArrayList<>(10);
+        headers = new LinkedHashMap<>(16);
         body = new StringBuilder();
     }
 
+    /**
+     * Create a message from its complete content, which is parsed when first accessed.
+     *
+     * @param content message content as received, lines terminated by CRLF and already dot-unstuffed; owned by
+     *                the message from now on
+     */
+    SmtpMessage(byte[] content) {
+        this();
+        setContent(content);
+    }
+
     /**
      * Update the headers or body depending on the SmtpResponse object and line of input.
      *
@@ -52,52 +110,287 @@ public class SmtpMessage {
         if (params == null)
             return;
 
+        mimePart = null;
         if (SmtpState.DATA_HDR == response.getNextState()) {
-            if (params.length() > 0 && Character.isWhitespace(params.charAt(0))) {
-                appendToLastHeader(params);
-            } else {
-                int headerNameEnd = params.indexOf(':');
-                if (headerNameEnd >= 0) {
-                    String name = params.substring(0, headerNameEnd).trim();
-                    String value = params.substring(headerNameEnd + 1).trim();
-                    addHeader(name, value);
-                }
-            }
+            parseHeaders();
+            storeHeaderLine(params);
+            size += params.length() + 2;
         } else if (SmtpState.DATA_BODY == response.getNextState()) {
+            decodeBody();
             body.append(params);
             body.append('\n');
+            bodyString = null;
+            size += params.length() + 2;
+        }
+    }
+
+    /**
+     * Set the complete content of a DATA command, lines terminated by CRLF and already dot-unstuffed.
+     * The content is copied, headers and body are parsed when first accessed.
+     *
+     * @param data buffer holding the message content
+     * @param length length of the message content
+     */
+    void storeData(byte[] data, int length) {
+        setContent(Arrays.copyOf(data, length));
+    }
+
+    private synchronized void setContent(byte[] content) {
+        if (this.content != null || !headers.isEmpty() || body.length() > 0)
+            throw new IllegalStateException("message content already stored");
+        this.content = content;
+        this.size += content.length;
+        this.headersPending = true;
+        this.bodyPending = true;
+    }
+
+    /**
+     * Parse the headers from the content, unless already done.
+     */
+    private synchronized void parseHeaders() {
+        if (!headersPending)
+            return;
+        int pos = 0;
+        int length = content.length;
+        while (pos < length) {
+            int end = indexOfLineEnd(content, pos, length);
+            if (end == pos) {
+                // blank line separates headers from body
+                pos += 2;
+                break;
+            }
+            storeHeaderLine(new String(content, pos, end - pos, ISO_8859_1));
+            pos = end + 2;
+        }
+        bodyStart = Math.min(pos, length);
+        // only now, so that headers are never taken as parsed before they are
+        headersPending = false;
+    }
+
+    /**
+     * Decode the body from the content, unless already done.
+     */
+    private synchronized void decodeBody() {
+        if (!bodyPending)
+            return;
+        parseHeaders();
+        bodyPending = false;
+        if (bodyStart < content.length)
+            appendToBody(content, bodyStart, content.length);
+    }
+
+    private void storeHeaderLine(String line) {
+        if (line.length() > 0 && Character.isWhitespace(line.charAt(0))) {
+            appendToLastHeader(line);
+        } else {
+            int headerNameEnd = line.indexOf(':');
+            if (headerNameEnd >= 0) {
+                String name = line.substring(0, headerNameEnd).trim();
+                String value = line.substring(headerNameEnd + 1).trim();
+                addHeader(name, value);
+            }
+        }
+    }
+
+    /**
+     * Append body lines, converting their CRLF line ends to a single LF.
+     */
+    private void appendToBody(byte[] data, int from, int to) {
+        body.ensureCapacity(body.length() + to - from + 1);
+        for (int i = from; i < to; i++) {
+            byte b = data[i];
+            if (b == '\r' && i + 1 < to && data[i + 1] == '\n') {
+                body.append('\n');
+                i++;
+            } else {
+                body.append((char) (b & 0xFF));
+            }
+        }
+        if (to - from < 2 || data[to - 2] != '\r' || data[to - 1] != '\n')
+            body.append('\n');
+    }
+
+    /**
+     * @return index of the next CRLF, or the end of the data if there is none
+     */
+    private static int indexOfLineEnd(byte[] data, int from, int to) {
+        for (int i = from; i < to - 1; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n')
+                return i;
+        }
+        return to;
+    }
+
+    /**
+     * Get the message content as received, i.e. headers and body after the DATA command with lines terminated by
+     * CRLF and dot-stuffing removed. Messages which were not received by a session get their content recreated
+     * from headers and body.
+     *
+     * @return read-only view of the content
+     */
+    public ByteBuffer getRawMessage() {
+        byte[] raw;
+        synchronized (this) {
+            raw = content;
         }
+        if (raw == null)
+            raw = toContent();
+        return ByteBuffer.wrap(raw).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the MIME structure of the message. Parts are parsed when first accessed and their content is decoded
+     * while it is read.
+     *
+     * @return the message as MIME entity, with the message headers as its headers
+     */
+    public synchronized MimePart getMimePart() {
+        if (mimePart == null)
+            mimePart = MimePart.of(content != null ? content : toContent());
+        return mimePart;
+    }
+
+    /**
+     * Recreate the content of a message built line by line.
+     */
+    private byte[] toContent() {
+        StringBuilder content = new StringBuilder(size + 64);
+        for (String name : getHeaderNames()) {
+            for (String value : getHeaderValues(name))
+                content.append(name).append(": ").append(value).append("\r\n");
+        }
+        content.append("\r\n");
+        String body = getBody();
+        int start = 0;
+        int end;
+        while ((end = body.indexOf('\n', start)) >= 0) {
+            content.append(body, start, end).append("\r\n");
+            start = end + 1;
+        }
+        content.append(body, start, body.length());
+        return content.toString().getBytes(ISO_8859_1);
+    }
+
+    /**
+     * Set the envelope sender.
+     *
+     * @param address reverse path of the MAIL FROM command without angle brackets, empty for the null sender
+     */
+    void setEnvelopeSender(String address) {
+        envelopeSender = address;
+    }
+
+    /**
+     * Add an envelope recipient.
+     *
+     * @param address forward path of a RCPT TO command without angle brackets
+     */
+    void addEnvelopeRecipient(String address) {
+        envelopeRecipients.add(address);
+    }
+
+    /**
+     * Get the envelope sender, which need not match the From header.
+     *
+     * @return address given by MAIL FROM, empty for the null sender, null if the message was not received via SMTP
+     */
+    public String getEnvelopeSender() {
+        return envelopeSender;
+    }
+
+    /**
+     * Get the envelope recipients, which need not match the To or Cc headers.
+     *
+     * @return addresses given by RCPT TO, in the order received
+     */
+    public List<String> getEnvelopeRecipients() {
+        return Collections.unmodifiableList(envelopeRecipients);
+    }
+
+    /**
+     * Set the credentials the client authenticated with.
+     *
+     * @param credentials decoded credentials, null if the client did not authenticate
+     */
+    void setCredentials(Credentials credentials) {
+        this.credentials = credentials;
+    }
+
+    /**
+     * Get the credentials the client authenticated with before sending the message.
+     *
+     * @return decoded credentials, null if the client did not authenticate
+     */
+    public Credentials getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * Set what the server recorded about the session the message was received in.
+     *
+     * @param sessionRecord record of the session
+     */
+    void setSessionRecord(SessionRecord sessionRecord) {
+        this.sessionRecord = sessionRecord;
+    }
+
+    /**
+     * Get what the server recorded about the session the message was received in: client address, HELO name,
+     * timing of each phase of the transaction and optionally the protocol transcript.
+     *
+     * @return record of the session, null if the message was not received via SMTP
+     */
+    public SessionRecord getSessionRecord() {
+        return sessionRecord;
+    }
+
+    /**
+     * Set where the store this message was read from keeps it, so that the store can recognize the message later.
+     *
+     * @param storeEntry entry of the store
+     */
+    void setStoreEntry(Object storeEntry) {
+        this.storeEntry = storeEntry;
+    }
+
+    /**
+     * Get where the store this message was read from keeps it.
+     *
+     * @return entry of the store, null if the message was not read from a store handing out copies
+     */
+    Object getStoreEntry() {
+        return storeEntry;
     }
 
     /**
      * Get an Iterator over the header names.
      *
-     * @return an Iterator over the set of header names (String)
+     * @return an Iterator over the set of header names (String), spelled as first received, in the order received
      */
     public Set<String> getHeaderNames() {
-        return headers.stream()
-                      .map(header -> header.name)
-                      .collect(Collectors.toCollection(() -> new LinkedHashSet<>(headers.size())));
+        parseHeaders();
+        Set<String> names = new LinkedHashSet<>(headers.size() * 2);
+        for (Header header : headers.values())
+            names.add(header.name);
+        return names;
     }
 
     /**
      * Get the value(s) associated with the given header name.
      *
-     * @param name header name
+     * @param name header name, case-insensitive
      * @return value(s) associated with the header name
      */
     public List<String> getHeaderValues(String name) {
-        return headers.stream()
-                      .filter(header -> header.name.equals(name))
-                      .findFirst()
-                      .map(header -> Collections.unmodifiableList(header.values))
-                      .orElse(Collections.emptyList());
+        parseHeaders();
+        Header header = headers.get(key(name));
+        return header == null ? Collections.emptyList() : Collections.unmodifiableList(header.values);
     }
 
     /**
      * Get the first values associated with a given header name.
      *
-     * @param name header name
+     * @param name header name, case-insensitive
      * @return first value associated with the header name
      */
     public String getHeaderValue(String name) {
@@ -105,13 +398,105 @@ public class SmtpMessage {
         return values.isEmpty() ? null : values.get(0);
     }
 
+    /**
+     * Get the first value associated with a given header name, scanning the content for just this header if the
+     * headers are not parsed yet. Stores index received messages with it, leaving the headers to the first lookup.
+     *
+     * @param name header name, case-insensitive
+     * @return first value associated with the header name, as {@link #getHeaderValue(String)} would return it
+     */
+    String peekHeaderValue(String name) {
+        byte[] raw;
+        synchronized (this) {
+            if (!headersPending)
+                return getHeaderValue(name);
+            raw = content;
+        }
+        byte[] wanted = key(name).getBytes(ISO_8859_1);
+        StringBuilder value = null;
+        int pos = 0;
+        int length = raw.length;
+        while (pos < length) {
+            int end = indexOfLineEnd(raw, pos, length);
+            if (end == pos)
+                break;
+            if (Character.isWhitespace((char) (raw[pos] & 0xFF))) {
+                if (value != null)
+                    value.append(' ').append(new String(raw, pos, end - pos, ISO_8859_1).trim());
+            } else {
+                int colon = indexOf(raw, ':', pos, end);
+                if (colon >= 0) {
+                    if (value != null)
+                        break;
+                    if (nameMatches(raw, pos, colon, wanted))
+                        value = new StringBuilder(new String(raw, colon + 1, end - colon - 1, ISO_8859_1).trim());
+                }
+            }
+            pos = end + 2;
+        }
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * @return index of the first occurrence of the byte, -1 if there is none
+     */
+    private static int indexOf(byte[] data, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == c)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param wanted header name in lower case
+     *
+     * @return true if the header name between the given offsets, surrounding whitespace ignored, is the wanted one
+     */
+    private static boolean nameMatches(byte[] data, int from, int to, byte[] wanted) {
+        // trimmed like String.trim() does
+        while (from < to && (data[from] & 0xFF) <= ' ')
+            from++;
+        while (to > from && (data[to - 1] & 0xFF) <= ' ')
+            to--;
+        if (to - from != wanted.length)
+            return false;
+        for (int i = 0; i < wanted.length; i++) {
+            if (Character.toLowerCase((char) (data[from + i] & 0xFF)) != (char) (wanted[i] & 0xFF))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true once the headers are parsed, or if the message was built line by line
+     */
+    synchronized boolean isHeadersParsed() {
+        return !headersPending;
+    }
+
     /**
      * Get the message body.
      *
      * @return message body
      */
     public String getBody() {
-        return body.toString();
+        decodeBody();
+        String result = bodyString;
+        if (result == null) {
+            result = body.toString();
+            bodyString = result;
+        }
+        return result;
+    }
+
+    /**
+     * Get the size of the message content, i.e. headers and body as received after the DATA command.
+     *
+     * @return message size in bytes
+     */
+    public int getSize() {
+        return size;
     }
 
     /**
@@ -121,35 +506,45 @@ public class SmtpMessage {
      * @param value header value
      */
     private void addHeader(String name, String value) {
-        headers.stream()
-               .filter(header -> header.name.equals(name))
-               .findFirst()
-               .map(header -> header.values.add(value))
-               .orElseGet(() -> {
-                   Header h = new Header();
-                   h.name = name;
-                   h.values = new ArrayList<>(1);
-                   headers.add(h);
-                   h.values.add(value);
-                   return null;
-               });
+        Header header = headers.get(key(name));
+        if (header == null) {
+            header = new Header();
+            header.name = name;
+            header.values = new ArrayList<>(1);
+            headers.put(key(name), header);
+        }
+        header.values.add(value);
+        lastHeader = header;
     }
 
+    /**
+     * Append a continuation line to the last header. A continuation line before the first header belongs to no
+     * header and is skipped.
+     */
     private void appendToLastHeader(String value) {
-        if (headers.isEmpty()) {
-            throw new IllegalStateException("found continuation line before first header");
-        } else {
-            Header header = headers.get(headers.size() - 1);
-            String lastValue = header.values.get(header.values.size() - 1);
-            String newValue = lastValue + " " + value.trim();
-            header.values.set(header.values.size() - 1, newValue);
-        }
+        if (lastHeader == null)
+            return;
+        List<String> values = lastHeader.values;
+        String lastValue = values.get(values.size() - 1);
+        String newValue = lastValue + " " + value.trim();
+        values.set(values.size() - 1, newValue);
+    }
+
+    /**
+     * Header names are case-insensitive (RFC 5322, section 1.2.2).
+     *
+     * @param name header name
+     * @return key of the header in the map
+     */
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
     }
 
     @Override
     public String toString() {
+        decodeBody();
         StringBuilder msg = new StringBuilder();
-        for (Header header : headers) {
+        for (Header header : headers.values()) {
             for (String value : header.values) {
                 msg.append(header.name);
                 msg.append(": ");
@@ -0,0 +1,116 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Binds the {@link SmtpMetrics} of a server to a Micrometer {@link MeterRegistry}. Meters read the live metrics when
+ * published, so nothing is recorded twice. Latencies are published as timers with count and total time, plus time
+ * gauges {@code <name>.max} and {@code <name>.percentile} tagged with {@code phi} 0.5, 0.9 and 0.99, the way
+ * Micrometer names client-side percentiles. Micrometer is an optional dependency, it has to be on the class path
+ * only if this class is used.
+ *
+ * <pre>
+ * new SmtpMeterBinder(server.getMetrics()).bindTo(registry);
+ * </pre>
+ */
+public final class SmtpMeterBinder implements MeterBinder {
+
+    private final SmtpMetrics metrics;
+
+    /**
+     * @param metrics metrics to publish, see {@link SimpleSmtpServer#getMetrics()}
+     */
+    public SmtpMeterBinder(SmtpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("smtp.sessions.active", metrics, SmtpMetrics::getActiveSessions)
+            .description("sessions currently running")
+            .register(registry);
+        Gauge.builder("smtp.queue.depth", metrics, SmtpMetrics::getQueueDepth)
+            .description("received messages kept in the mail store")
+            .register(registry);
+
+        counter(registry, "smtp.connections.accepted", "accepted client connections",
+                SmtpMetrics::getAcceptedConnections);
+        counter(registry, "smtp.connections.rejected", "connections closed before their session started",
+                SmtpMetrics::getRejectedConnections);
+        counter(registry, "smtp.sessions.failed", "sessions ended by an error or a disconnect before QUIT",
+                SmtpMetrics::getFailedSessions);
+        counter(registry, "smtp.sessions.timedout", "sessions closed because the client was idle or took too long",
+                SmtpMetrics::getTimedOutSessions);
+        counter(registry, "smtp.messages.received", "messages stored", SmtpMetrics::getMessagesReceived);
+        counter(registry, "smtp.messages.rejected", "messages rejected by the mail store",
+                SmtpMetrics::getMessagesRejected);
+        FunctionCounter.builder("smtp.bytes.received", metrics, SmtpMetrics::getBytesReceived)
+            .description("bytes read from clients")
+            .baseUnit("bytes")
+            .register(registry);
+
+        latency(registry, "smtp.data.transfer", "time from DATA or the first BDAT until the message was received",
+                metrics.dataTransferHistogram(), Tags.empty());
+        for (SmtpActionType action : SmtpActionType.values()) {
+            latency(registry, "smtp.command.latency", "time taken to handle a command line",
+                    metrics.commandHistogram(action), Tags.of("command", action.name()));
+        }
+    }
+
+    private void counter(MeterRegistry registry, String name, String description, ToDoubleFunction<SmtpMetrics> f) {
+        FunctionCounter.builder(name, metrics, f)
+            .description(description)
+            .register(registry);
+    }
+
+    private static void latency(MeterRegistry registry, String name, String description, LatencyHistogram histogram,
+                                Tags tags) {
+        FunctionTimer.builder(name, histogram, LatencyHistogram::count, LatencyHistogram::totalNanos,
+                              TimeUnit.NANOSECONDS)
+            .description(description)
+            .tags(tags)
+            .register(registry);
+        gauge(registry, name + ".max", description, histogram, LatencySnapshot::getMaxNanos, tags);
+        gauge(registry, name + ".percentile", description, histogram, LatencySnapshot::getP50Nanos,
+              tags.and("phi", "0.5"));
+        gauge(registry, name + ".percentile", description, histogram, LatencySnapshot::getP90Nanos,
+              tags.and("phi", "0.9"));
+        gauge(registry, name + ".percentile", description, histogram, LatencySnapshot::getP99Nanos,
+              tags.and("phi", "0.99"));
+    }
+
+    private static void gauge(MeterRegistry registry, String name, String description, LatencyHistogram histogram,
+                              ToLongFunction<LatencySnapshot> f, Tags tags) {
+        TimeGauge.builder(name, histogram, TimeUnit.NANOSECONDS, h -> f.applyAsLong(h.snapshot()))
+            .description(description)
+            .tags(tags)
+            .register(registry);
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live metrics of a server, see {@link SimpleSmtpServer#getMetrics()}. Counters only grow while the server runs, so
+ * rates are computed from the difference between two readings. Sessions update the metrics with a few atomic
+ * additions, which is why they are always collected.
+ */
+public final class SmtpMetrics implements SmtpMetricsMXBean {
+
+    private final MailStore store;
+
+    private final LongAdder activeSessions = new LongAdder();
+
+    private final LongAdder acceptedConnections = new LongAdder();
+
+    private final LongAdder rejectedConnections = new LongAdder();
+
+    private final LongAdder failedSessions = new LongAdder();
+
+    private final LongAdder timedOutSessions = new LongAdder();
+
+    private final LongAdder messagesReceived = new LongAdder();
+
+    private final LongAdder messagesRejected = new LongAdder();
+
+    private final LongAdder bytesReceived = new LongAdder();
+
+    private final LatencyHistogram dataTransferTime = new LatencyHistogram();
+
+    /**
+     * Command latencies indexed by the ordinal of the command.
+     */
+    private final LatencyHistogram[] commandLatency = new LatencyHistogram[SmtpActionType.values().length];
+
+    /**
+     * @param store store whose size is reported as queue depth
+     */
+    SmtpMetrics(MailStore store) {
+        this.store = store;
+        for (int i = 0; i < commandLatency.length; i++)
+            commandLatency[i] = new LatencyHistogram();
+    }
+
+    void connectionAccepted() {
+        acceptedConnections.increment();
+    }
+
+    void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    void sessionStarted() {
+        activeSessions.increment();
+    }
+
+    void sessionEnded() {
+        activeSessions.decrement();
+    }
+
+    void sessionFailed() {
+        failedSessions.increment();
+    }
+
+    void sessionTimedOut() {
+        timedOutSessions.increment();
+    }
+
+    void bytesReceived(int count) {
+        bytesReceived.add(count);
+    }
+
+    void commandHandled(SmtpActionType action, long nanos) {
+        commandLatency[action.ordinal()].record(nanos);
+    }
+
+    void messageReceived(long transferNanos) {
+        messagesReceived.increment();
+        dataTransferTime.record(transferNanos);
+    }
+
+    void messageRejected() {
+        messagesRejected.increment();
+    }
+
+    /**
+     * @param action command
+     *
+     * @return latency histogram of the command
+     */
+    LatencyHistogram commandHistogram(SmtpActionType action) {
+        return commandLatency[action.ordinal()];
+    }
+
+    /**
+     * @return histogram of the time taken to transfer message content
+     */
+    LatencyHistogram dataTransferHistogram() {
+        return dataTransferTime;
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    @Override
+    public long getFailedSessions() {
+        return failedSessions.sum();
+    }
+
+    @Override
+    public long getTimedOutSessions() {
+        return timedOutSessions.sum();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @Override
+    public long getMessagesRejected() {
+        return messagesRejected.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return store.size();
+    }
+
+    @Override
+    public LatencySnapshot getDataTransferTime() {
+        return dataTransferTime.snapshot();
+    }
+
+    /**
+     * {@inheritDoc} Commands which were not received yet are left out.
+     */
+    @Override
+    public Map<String, LatencySnapshot> getCommandLatency() {
+        Map<String, LatencySnapshot> latencies = new TreeMap<>();
+        for (SmtpActionType action : SmtpActionType.values()) {
+            if (commandLatency[action.ordinal()].count() > 0)
+                latencies.put(action.name(), commandLatency[action.ordinal()].snapshot());
+        }
+        return latencies;
+    }
+
+    @Override
+    public String toString() {
+        return "SmtpMetrics{activeSessions=" + getActiveSessions() + ", acceptedConnections=" + getAcceptedConnections()
+            + ", messagesReceived=" + getMessagesReceived() + ", bytesReceived=" + getBytesReceived()
+            + ", queueDepth=" + getQueueDepth() + "}";
+    }
+
+}
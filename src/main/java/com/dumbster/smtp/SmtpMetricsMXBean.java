@@ -0,0 +1,83 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link SmtpMetrics}, registered with the platform MBean server under
+ * {@code com.dumbster.smtp:type=SimpleSmtpServer,port=<port>} when enabled with
+ * {@link SimpleSmtpServer.Builder#jmx()}.
+ */
+public interface SmtpMetricsMXBean {
+
+    /**
+     * @return number of sessions currently running
+     */
+    long getActiveSessions();
+
+    /**
+     * @return number of connections accepted since the server started
+     */
+    long getAcceptedConnections();
+
+    /**
+     * @return number of accepted connections closed without running a session, e.g. because the server stopped
+     */
+    long getRejectedConnections();
+
+    /**
+     * @return number of sessions ended by an error before QUIT, e.g. because the client disconnected
+     */
+    long getFailedSessions();
+
+    /**
+     * @return number of sessions closed by the server because the client was idle or the session took too long
+     */
+    long getTimedOutSessions();
+
+    /**
+     * @return number of messages stored
+     */
+    long getMessagesReceived();
+
+    /**
+     * @return number of messages rejected because the mail store was full
+     */
+    long getMessagesRejected();
+
+    /**
+     * @return number of bytes received from clients, commands and message content
+     */
+    long getBytesReceived();
+
+    /**
+     * @return number of messages currently held by the mail store
+     */
+    int getQueueDepth();
+
+    /**
+     * @return time from the start of message content (DATA or the first BDAT) until it was received completely
+     */
+    LatencySnapshot getDataTransferTime();
+
+    /**
+     * @return time the server took to handle each command until its reply was ready, by command
+     */
+    Map<String, LatencySnapshot> getCommandLatency();
+
+}
@@ -21,6 +21,8 @@ package com.dumbster.smtp;
 
 import lombok.AllArgsConstructor;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
 /**
  * Contains an SMTP client request. Handles state transitions using the following state transition table.
  * <PRE>
@@ -35,6 +37,7 @@ import lombok.AllArgsConstructor;
  * rcpt       | 503/CONNECT | 503/GREET | 503/MAIL  | 250/RCPT     | 503/DATA_HDR  | 503/DATA_BODY | 503/QUIT
  * data       | 503/CONNECT | 503/GREET | 503/MAIL  | 354/DATA_HDR | 503/DATA_HDR  | 503/DATA_BODY | 503/QUIT
  * data_end   | 503/CONNECT | 503/GREET | 503/MAIL  | 503/RCPT     | 250/QUIT      | 250/QUIT      | 503/QUIT
+ * bdat       | 503/CONNECT | 503/GREET | 503/MAIL  | 250/BDAT     | 503/DATA_HDR  | 503/DATA_BODY | 503/QUIT
  * unrecog    | 500/CONNECT | 500/GREET | 500/MAIL  | 500/RCPT     | ---/DATA_HDR  | ---/DATA_BODY | 500/QUIT
  * quit       | 503/CONNECT | 503/GREET | 503/MAIL  | 503/RCPT     | 503/DATA_HDR  | 503/DATA_BODY | 250/CONNECT
  * blank_line | 503/CONNECT | 503/GREET | 503/MAIL  | 503/RCPT     | ---/DATA_BODY | ---/DATA_BODY | 503/QUIT
@@ -43,15 +46,68 @@ import lombok.AllArgsConstructor;
  * expn       | 252/CONNECT | 252/GREET | 252/MAIL  | 252/RCPT     | 252/DATA_HDR  | 252/DATA_BODY | 252/QUIT
  * help       | 211/CONNECT | 211/GREET | 211/MAIL  | 211/RCPT     | 211/DATA_HDR  | 211/DATA_BODY | 211/QUIT
  * noop       | 250/CONNECT | 250/GREET | 250/MAIL  | 250/RCPT     | 250|DATA_HDR  | 250/DATA_BODY | 250/QUIT
+ * starttls   | 503/CONNECT | 503/GREET | 220/GREET | 503/RCPT     | 503/DATA_HDR  | 503/DATA_BODY | 503/QUIT
  * </PRE>
+ * In BDAT state further bdat chunks are accepted (250/BDAT), the reply to a chunk is only sent once the session has
+ * received its content. starttls is accepted after EHLO as well (220/GREET), the client has to greet again once TLS
+ * is established.
+ * After EHLO (AUTH_PLAIN) auth with a supported mechanism is answered 334/CREDENTIALS, any other mechanism
+ * 504/AUTH_PLAIN. In CREDENTIALS state every line is a response to the challenge: 235/MAIL, or 501/AUTH_PLAIN if
+ * the client cancels with {@code *}. The session decides whether to send another challenge or reject the credentials.
  */
 @AllArgsConstructor
 class SmtpRequest {
 
+    /**
+     * Responses with constant messages, shared by all requests.
+     */
+    private static final SmtpResponse[] NOT_SUPPORTED = perState(252, "Not supported");
+    private static final SmtpResponse[] NO_HELP = perState(211, "No help available");
+    private static final SmtpResponse[] OK = perState(250, "OK");
+    private static final SmtpResponse[] NOT_RECOGNIZED = perState(500, "Command not recognized");
+    private static final SmtpResponse[] NO_REPLY = perState(-1, "");
+    private static final SmtpResponse[][] BAD_SEQUENCE = badSequencePerAction();
+    private static final SmtpResponse SERVICE_READY =
+        new SmtpResponse(220, "localhost Dumbster SMTP service ready", SmtpState.GREET);
+    private static final SmtpResponse UNRECOGNIZED_AUTH_TYPE =
+        new SmtpResponse(504, "Unrecognized authentication type.", SmtpState.AUTH_PLAIN);
+    private static final SmtpResponse SEND_CREDENTIALS = new SmtpResponse(334, "", SmtpState.CREDENTIALS);
+    private static final SmtpResponse AUTHENTICATED =
+        new SmtpResponse(235, "2.7.0 Authentication successful", SmtpState.MAIL);
+    private static final SmtpResponse AUTH_CANCELLED =
+        new SmtpResponse(501, "5.0.0 Authentication cancelled", SmtpState.AUTH_PLAIN);
+    private static final SmtpResponse START_MAIL_INPUT =
+        new SmtpResponse(354, "Send message content; end with <CRLF>.<CRLF>", SmtpState.DATA_HDR);
+    private static final SmtpResponse MAIL_DELIVERED = new SmtpResponse(250, "Mail delivered.", SmtpState.QUIT);
+    private static final SmtpResponse RECEIVE_CHUNK = new SmtpResponse(250, "OK", SmtpState.BDAT);
+    private static final SmtpResponse[] SYNTAX_ERROR = perState(501, "Syntax error in parameters or arguments");
+    private static final SmtpResponse READY_TO_START_TLS =
+        new SmtpResponse(220, "2.0.0 Ready to start TLS", SmtpState.GREET);
+    private static final SmtpResponse BYE = new SmtpResponse(221, "Bye", SmtpState.CONNECT);
+
+    /**
+     * Upper case command prefixes as ASCII bytes.
+     */
+    private static final byte[] RSET = ascii("RSET");
+    private static final byte[] QUIT = ascii("QUIT");
+    private static final byte[] NOOP = ascii("NOOP");
+    private static final byte[] EXPN = ascii("EXPN");
+    private static final byte[] VRFY = ascii("VRFY");
+    private static final byte[] HELP = ascii("HELP");
+    private static final byte[] AUTH = ascii("AUTH ");
+    private static final byte[] HELO = ascii("HELO ");
+    private static final byte[] EHLO = ascii("EHLO ");
+    private static final byte[] MAIL_FROM = ascii("MAIL FROM:");
+    private static final byte[] RCPT_TO = ascii("RCPT TO:");
+    private static final byte[] DATA = ascii("DATA");
+    private static final byte[] BDAT = ascii("BDAT ");
+    private static final byte[] LAST = ascii("LAST");
+    private static final byte[] STARTTLS = ascii("STARTTLS");
+
     /**
      * SMTP action/command received from client.
      */
-    private final SmtpActionType action;
+    final SmtpActionType action;
 
     /**
      * Additional information passed from the client with the SMTP action.
@@ -72,69 +128,94 @@ class SmtpRequest {
      * @return a populated SmtpRequest object
      */
     static SmtpRequest createRequest(String s, SmtpState state) {
+        byte[] line = s.getBytes(ISO_8859_1);
+        return createRequest(line, line.length, state);
+    }
+
+    /**
+     * Create an SMTP request object given a line of the input stream from the client and the current internal state.
+     * Commands are matched case-insensitively on the raw bytes, only parameters are decoded into strings.
+     * While receiving message content every line is content, even if it looks like a command.
+     *
+     * @param line buffer holding the line of input without CRLF
+     * @param length length of the line
+     * @param state current state
+     *
+     * @return a populated SmtpRequest object
+     */
+    static SmtpRequest createRequest(byte[] line, int length, SmtpState state) {
         SmtpActionType action;
         String params = null;
-        String su = s.toUpperCase();
 
-        if (su.startsWith("RSET")) {
-            action = SmtpActionType.RSET;
-        } else if (su.startsWith("QUIT")) {
-            action = SmtpActionType.QUIT;
-        } else if (su.startsWith("NOOP")) {
-            action = SmtpActionType.NOOP;
-        } else if (su.startsWith("EXPN")) {
-            action = SmtpActionType.EXPN;
-        } else if (su.startsWith("VRFY")) {
-            action = SmtpActionType.VRFY;
-        } else if (su.startsWith("HELP")) {
-            action = SmtpActionType.HELP;
-        } else if (state == SmtpState.DATA_HDR) {
-            if (s.equals(".")) {
+        if (state == SmtpState.DATA_HDR) {
+            if (isDot(line, length)) {
                 action = SmtpActionType.DATA_END;
-            } else if (s.length() < 1) {
+            } else if (length < 1) {
                 action = SmtpActionType.BLANK_LINE;
             } else {
                 action = SmtpActionType.UNRECOG;
-                params = s;
+                params = decode(line, 0, length);
             }
         } else if (state == SmtpState.DATA_BODY) {
-            if (s.equals(".")) {
+            if (isDot(line, length)) {
                 action = SmtpActionType.DATA_END;
             } else {
                 action = SmtpActionType.UNRECOG;
-                params = s;
+                params = decode(line, 0, length);
             }
         } else if (state == SmtpState.CREDENTIALS) {
-            if (s.length() == 0) {
-                action = SmtpActionType.AUTH_FAILED;
-            } else {
-                action = SmtpActionType.AUTH_SUCCESS;
-                params = s;
-            }
+            // every line is a response to the challenge, even if it looks like a command
+            action = SmtpActionType.AUTH_RESPONSE;
+            params = decode(line, 0, length).trim();
+        } else if (startsWith(line, length, RSET)) {
+            action = SmtpActionType.RSET;
+        } else if (startsWith(line, length, QUIT)) {
+            action = SmtpActionType.QUIT;
+        } else if (startsWith(line, length, NOOP)) {
+            action = SmtpActionType.NOOP;
+        } else if (startsWith(line, length, EXPN)) {
+            action = SmtpActionType.EXPN;
+        } else if (startsWith(line, length, VRFY)) {
+            action = SmtpActionType.VRFY;
+        } else if (startsWith(line, length, HELP)) {
+            action = SmtpActionType.HELP;
         } else if (state == SmtpState.AUTH_PLAIN) {
-            if (su.length() > 10 && su.startsWith("AUTH PLAIN")) {
-                action = SmtpActionType.AUTH_PLAIN_EXT;
-                params = s.substring(11);
-            } else if (su.equals("AUTH PLAIN")) {
-                action = SmtpActionType.AUTH_PLAIN;
+            if (startsWith(line, length, AUTH)) {
+                action = SmtpActionType.AUTH;
+                params = decode(line, AUTH.length, length).trim();
+            } else if (startsWith(line, length, MAIL_FROM)) {
+                // authentication is offered, not required
+                action = SmtpActionType.MAIL;
+                params = decode(line, 10, length);
+            } else if (startsWith(line, length, BDAT)) {
+                // out of sequence, but recognized so that its chunk is skipped
+                action = SmtpActionType.BDAT;
+                params = decode(line, 5, length);
+            } else if (length == STARTTLS.length && startsWith(line, length, STARTTLS)) {
+                action = SmtpActionType.STARTTLS;
             } else {
                 action = SmtpActionType.AUTH_UNSUPPORTED;
             }
         } else {
-            if (su.startsWith("HELO ")) {
+            if (startsWith(line, length, HELO)) {
                 action = SmtpActionType.HELO;
-                params = s.substring(5);
-            } else if (su.startsWith("EHLO ")) {
+                params = decode(line, 5, length);
+            } else if (startsWith(line, length, EHLO)) {
                 action = SmtpActionType.EHLO;
-                params = s.substring(5);
-            } else if (su.startsWith("MAIL FROM:")) {
+                params = decode(line, 5, length);
+            } else if (startsWith(line, length, MAIL_FROM)) {
                 action = SmtpActionType.MAIL;
-                params = s.substring(10);
-            } else if (su.startsWith("RCPT TO:")) {
+                params = decode(line, 10, length);
+            } else if (startsWith(line, length, RCPT_TO)) {
                 action = SmtpActionType.RCPT;
-                params = s.substring(8);
-            } else if (su.startsWith("DATA")) {
+                params = decode(line, 8, length);
+            } else if (startsWith(line, length, DATA)) {
                 action = SmtpActionType.DATA;
+            } else if (startsWith(line, length, BDAT)) {
+                action = SmtpActionType.BDAT;
+                params = decode(line, 5, length);
+            } else if (length == STARTTLS.length && startsWith(line, length, STARTTLS)) {
+                action = SmtpActionType.STARTTLS;
             } else {
                 action = SmtpActionType.UNRECOG;
             }
@@ -143,8 +224,91 @@ class SmtpRequest {
         return new SmtpRequest(action, params, state);
     }
 
+    /**
+     * Case-insensitive prefix match on ASCII input.
+     *
+     * @param line line of input
+     * @param length length of the line
+     * @param prefix upper case prefix
+     *
+     * @return true iff the line starts with the prefix
+     */
+    private static boolean startsWith(byte[] line, int length, byte[] prefix) {
+        if (length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            byte b = line[i];
+            if (b >= 'a' && b <= 'z')
+                b -= 'a' - 'A';
+            if (b != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param params parameters of a BDAT command, the chunk size optionally followed by LAST
+     *
+     * @return size of the chunk, -1 if the parameters are invalid
+     */
+    static int chunkSize(String params) {
+        int end = params.indexOf(' ');
+        String size = end < 0 ? params : params.substring(0, end);
+        if (size.isEmpty() || size.length() > 9 || end >= 0 && !isLastChunk(params))
+            return -1;
+        for (int i = 0; i < size.length(); i++) {
+            if (size.charAt(i) < '0' || size.charAt(i) > '9')
+                return -1;
+        }
+        return Integer.parseInt(size);
+    }
+
+    /**
+     * @param params parameters of a BDAT command
+     *
+     * @return true if the chunk is the last one of the message
+     */
+    static boolean isLastChunk(String params) {
+        int start = params.indexOf(' ') + 1;
+        byte[] rest = params.substring(start).trim().getBytes(ISO_8859_1);
+        return start > 0 && rest.length == LAST.length && startsWith(rest, rest.length, LAST);
+    }
+
+    /**
+     * @param params parameters of an AUTH command, the mechanism optionally followed by an initial response
+     *
+     * @return the mechanism
+     */
+    static String mechanism(String params) {
+        int end = params.indexOf(' ');
+        return end < 0 ? params : params.substring(0, end);
+    }
+
+    /**
+     * @param params parameters of an AUTH command
+     *
+     * @return the initial response, {@code null} if there is none
+     */
+    static String initialResponse(String params) {
+        int start = params.indexOf(' ');
+        return start < 0 ? null : params.substring(start + 1).trim();
+    }
+
+    private static boolean isDot(byte[] line, int length) {
+        return length == 1 && line[0] == '.';
+    }
+
+    private static String decode(byte[] line, int from, int to) {
+        return from >= to ? "" : new String(line, from, to - from, ISO_8859_1);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(ISO_8859_1);
+    }
+
     /**
      * Execute the SMTP request returning a response. This method models the state transition table for the SMTP server.
+     * Responses with constant messages are shared instances, only HELO/EHLO replies are created per request.
      *
      * @return reponse to the request
      */
@@ -154,130 +318,170 @@ class SmtpRequest {
             switch (action) {
                 case EXPN:
                 case VRFY:
-                    response = new SmtpResponse(252, "Not supported", this.state);
+                    response = NOT_SUPPORTED[state.ordinal()];
                     break;
                 case HELP:
-                    response = new SmtpResponse(211, "No help available", this.state);
+                    response = NO_HELP[state.ordinal()];
                     break;
                 case NOOP:
-                    response = new SmtpResponse(250, "OK", this.state);
+                    response = OK[state.ordinal()];
                     break;
                 case RSET:
-                    response = new SmtpResponse(250, "OK", SmtpState.GREET);
+                    response = OK[SmtpState.GREET.ordinal()];
                     break;
                 default:
-                    response = new SmtpResponse(500, "Command not recognized", this.state);
+                    response = NOT_RECOGNIZED[state.ordinal()];
                     break;
             }
         } else { // Stateful commands
             switch (action) {
                 case CONNECT:
                     if (SmtpState.CONNECT == state) {
-                        response = new SmtpResponse(220, "localhost Dumbster SMTP service ready", SmtpState.GREET);
+                        response = SERVICE_READY;
                     } else {
-                        response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
+                        response = badSequence();
                     }
                     break;
                 case HELO:
                     if (SmtpState.GREET == state) {
                         response = new SmtpResponse(250, "localhost Hello " + this.params, SmtpState.MAIL);
                     } else {
-                        response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
+                        response = badSequence();
                     }
                     break;
                 case EHLO:
                     if (SmtpState.GREET == state) {
                         response = new SmtpResponse(250, "localhost Hello " + this.params, SmtpState.GREET_AUTH);
                     } else {
-                        response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
+                        response = badSequence();
                     }
                     break;
-                case AUTH_UNSUPPORTED:
-                    if (SmtpState.AUTH_PLAIN == state) {
-                        response = new SmtpResponse(504, "Unrecognized authentication type.", this.state);
+                case STARTTLS:
+                    if (SmtpState.MAIL == state || SmtpState.AUTH_PLAIN == state) {
+                        response = READY_TO_START_TLS;
                     } else {
-                        response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
+                        response = badSequence();
                     }
                     break;
-                case AUTH_PLAIN:
+                case AUTH_UNSUPPORTED:
                     if (SmtpState.AUTH_PLAIN == state) {
-                        response = new SmtpResponse(334, "", SmtpState.CREDENTIALS);
+                        response = UNRECOGNIZED_AUTH_TYPE;
                     } else {
-                        response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
+                        response = badSequence();
                     }
                     break;
-                case AUTH_PLAIN_EXT:
-                    if (SmtpState.AUTH_PLAIN == state) {
-                        response = new SmtpResponse(235, "2.7.0 Authentication successful", SmtpState.MAIL);
+                case AUTH:
+                    if (SmtpState.AUTH_PLAIN != state) {
+                        response = badSequence();
+                    } else if (AuthMechanism.forName(mechanism(params)) == null) {
+                        response = UNRECOGNIZED_AUTH_TYPE;
                     } else {
-                        response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
+                        response = SEND_CREDENTIALS;
                     }
                     break;
-                case AUTH_SUCCESS:
-                    if (SmtpState.CREDENTIALS == state) {
-                        response = new SmtpResponse(235, "2.7.0 Authentication successful", SmtpState.MAIL);
+                case AUTH_RESPONSE:
+                    if (SmtpState.CREDENTIALS != state) {
+                        response = badSequence();
+                    } else if ("*".equals(params)) {
+                        response = AUTH_CANCELLED;
                     } else {
-                        response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
+                        response = AUTHENTICATED;
                     }
                     break;
                 case MAIL:
-                    if (SmtpState.MAIL == state || SmtpState.QUIT == state) {
-                        response = new SmtpResponse(250, "OK", SmtpState.RCPT);
+                    if (SmtpState.MAIL == state || SmtpState.QUIT == state || SmtpState.AUTH_PLAIN == state) {
+                        response = OK[SmtpState.RCPT.ordinal()];
                     } else {
-                        response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
+                        response = badSequence();
                     }
                     break;
                 case RCPT:
                     if (SmtpState.RCPT == state) {
-                        response = new SmtpResponse(250, "OK", this.state);
+                        response = OK[state.ordinal()];
                     } else {
-                        response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
+                        response = badSequence();
                     }
                     break;
                 case DATA:
                     if (SmtpState.RCPT == state) {
-                        response =
-                            new SmtpResponse(354, "Send message content; end with <CRLF>.<CRLF>", SmtpState.DATA_HDR);
+                        response = START_MAIL_INPUT;
+                    } else {
+                        response = badSequence();
+                    }
+                    break;
+                case BDAT:
+                    if (SmtpState.RCPT != state && SmtpState.BDAT != state) {
+                        response = badSequence();
+                    } else if (chunkSize(params) < 0) {
+                        response = SYNTAX_ERROR[state.ordinal()];
                     } else {
-                        response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
+                        response = RECEIVE_CHUNK;
                     }
                     break;
                 case UNRECOG:
                     if (SmtpState.DATA_HDR == state || SmtpState.DATA_BODY == state) {
-                        response = new SmtpResponse(-1, "", this.state);
+                        response = NO_REPLY[state.ordinal()];
                     } else {
-                        response = new SmtpResponse(500, "Command not recognized", this.state);
+                        response = NOT_RECOGNIZED[state.ordinal()];
                     }
                     break;
                 case DATA_END:
                     if (SmtpState.DATA_HDR == state || SmtpState.DATA_BODY == state) {
-                        response = new SmtpResponse(250, "Mail delivered.", SmtpState.QUIT);
+                        response = MAIL_DELIVERED;
                     } else {
-                        response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
+                        response = badSequence();
                     }
                     break;
                 case BLANK_LINE:
                     if (SmtpState.DATA_HDR == state) {
-                        response = new SmtpResponse(-1, "", SmtpState.DATA_BODY);
+                        response = NO_REPLY[SmtpState.DATA_BODY.ordinal()];
                     } else if (SmtpState.DATA_BODY == state) {
-                        response = new SmtpResponse(-1, "", this.state);
+                        response = NO_REPLY[state.ordinal()];
                     } else {
-                        response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
+                        response = badSequence();
                     }
                     break;
                 case QUIT:
                     if (SmtpState.QUIT == state || SmtpState.GREET == state) {
-                        response = new SmtpResponse(221, "Bye", SmtpState.CONNECT);
+                        response = BYE;
                     } else {
-                        response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
+                        response = badSequence();
                     }
                     break;
                 default:
-                    response = new SmtpResponse(500, "Command not recognized", this.state);
+                    response = NOT_RECOGNIZED[state.ordinal()];
                     break;
             }
         }
         return response;
     }
 
+    private SmtpResponse badSequence() {
+        return BAD_SEQUENCE[action.ordinal()][state.ordinal()];
+    }
+
+    /**
+     * Creates one response per state, each one leaving the state unchanged.
+     *
+     * @param code response code
+     * @param message response message
+     *
+     * @return responses indexed by the ordinal of their state
+     */
+    private static SmtpResponse[] perState(int code, String message) {
+        SmtpState[] states = SmtpState.values();
+        SmtpResponse[] responses = new SmtpResponse[states.length];
+        for (SmtpState state : states)
+            responses[state.ordinal()] = new SmtpResponse(code, message, state);
+        return responses;
+    }
+
+    private static SmtpResponse[][] badSequencePerAction() {
+        SmtpActionType[] actions = SmtpActionType.values();
+        SmtpResponse[][] responses = new SmtpResponse[actions.length][];
+        for (SmtpActionType action : actions)
+            responses[action.ordinal()] = perState(503, "Bad sequence of commands: " + action);
+        return responses;
+    }
+
 }
@@ -0,0 +1,157 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.extension.ParameterContext;
+import org.junit.jupiter.api.extension.ParameterResolver;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * JUnit 5 extension handing each test a {@link Mailbox} of its own on a server shared by all tests, instead of
+ * starting and stopping a server per test. The server is started on first use and stopped once all tests have run.
+ * Tests may run in parallel, since each one only sees the messages sent to its own mailbox.
+ * JUnit 5 is an optional dependency, it has to be on the class path only if this class is used.
+ *
+ * <pre>
+ * &#64;ExtendWith(SmtpServerExtension.class)
+ * class MailerTest {
+ *
+ *     &#64;Test
+ *     void sendsWelcomeMail(Mailbox mailbox) throws Exception {
+ *         mailer.connect("localhost", mailbox.getPort()).send(mailbox.address("user@example.com"));
+ *         assertEquals("Welcome", mailbox.awaitMessages(1, 5, SECONDS).get(0).getHeaderValue("Subject"));
+ *     }
+ * }
+ * </pre>
+ *
+ * A mailbox is created per test method, and shared by the lifecycle methods of the test. A mailbox injected into the
+ * constructor of a test class lasts as long as the class, i.e. it is shared by all of its tests.
+ * The server can be configured by registering the extension with {@code @RegisterExtension}, the server is then
+ * shared by the tests using this instance of the extension.
+ */
+public final class SmtpServerExtension implements ParameterResolver {
+
+    /**
+     * Maximum number of concurrent sessions of the server shared by default.
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 16;
+
+    private static final ExtensionContext.Namespace NAMESPACE =
+        ExtensionContext.Namespace.create(SmtpServerExtension.class);
+
+    private static final AtomicLong PARTITIONS = new AtomicLong();
+
+    private final Consumer<SimpleSmtpServer.Builder> configuration;
+
+    /**
+     * Key of the shared server in the root store, the same for all instances using the default configuration.
+     */
+    private final Object serverKey;
+
+    /**
+     * Share a server running sessions in threads of their own, with at most {@value #DEFAULT_MAX_SESSIONS} sessions
+     * at the same time.
+     */
+    public SmtpServerExtension() {
+        this.configuration = builder -> builder.maxSessions(DEFAULT_MAX_SESSIONS);
+        this.serverKey = SharedServer.class;
+    }
+
+    /**
+     * Share a server configured by the given function, e.g. {@code builder -> builder.nonBlocking(2)}.
+     * The server listens on a free port unless configured otherwise, and always keeps messages in a
+     * {@link PartitionedMailStore}.
+     *
+     * @param configuration configures the server
+     */
+    public SmtpServerExtension(Consumer<SimpleSmtpServer.Builder> configuration) {
+        this.configuration = configuration;
+        this.serverKey = this;
+    }
+
+    @Override
+    public boolean supportsParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+        return parameterContext.getParameter().getType() == Mailbox.class;
+    }
+
+    /**
+     * @return the mailbox of the context, i.e. of the test method or the test class, created on first use and
+     *         removed once the context is done
+     */
+    @Override
+    public Object resolveParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+        return extensionContext.getStore(NAMESPACE)
+                               .getOrComputeIfAbsent(MailboxResource.class, k -> newMailbox(extensionContext),
+                                                     MailboxResource.class)
+                               .mailbox;
+    }
+
+    private MailboxResource newMailbox(ExtensionContext context) {
+        SharedServer shared = context.getRoot().getStore(NAMESPACE)
+                                     .getOrComputeIfAbsent(serverKey, k -> new SharedServer(configuration),
+                                                           SharedServer.class);
+        return new MailboxResource(new Mailbox(shared.server, "test" + PARTITIONS.incrementAndGet()));
+    }
+
+    /**
+     * Mailbox of a test, removed when JUnit closes the context of the test.
+     */
+    private static final class MailboxResource implements ExtensionContext.Store.CloseableResource {
+
+        private final Mailbox mailbox;
+
+        MailboxResource(Mailbox mailbox) {
+            this.mailbox = mailbox;
+        }
+
+        @Override
+        public void close() {
+            mailbox.close();
+        }
+
+    }
+
+    /**
+     * Server shared by all tests, stopped when JUnit closes the root context.
+     */
+    private static final class SharedServer implements ExtensionContext.Store.CloseableResource {
+
+        private final SimpleSmtpServer server;
+
+        SharedServer(Consumer<SimpleSmtpServer.Builder> configuration) {
+            SimpleSmtpServer.Builder builder = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT);
+            configuration.accept(builder);
+            try {
+                server = builder.mailStore(MailStore.partitioned(Mailbox.RULE)).start();
+            } catch (IOException e) {
+                throw new UncheckedIOException("could not start shared SMTP server", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            server.stop();
+        }
+
+    }
+
+}
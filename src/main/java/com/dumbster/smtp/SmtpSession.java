@@ -0,0 +1,762 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ * Copyright 2016 Joachim Nicolay
+ * Copyright 2004 Jason Paul Kitchen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * State of a single SMTP session, i.e. all activity between initial connect and QUIT command.
+ * The session is fed client input as it arrives and appends its replies to a buffer, leaving all I/O to the caller.
+ * Commands are handled line by line, message content is collected in bulk without parsing it as commands.
+ * Instances are not thread-safe.
+ */
+@Slf4j
+final class SmtpSession {
+
+    private static final String CRLF = "\r\n";
+
+    /**
+     * Service extensions advertised in reply to EHLO.
+     */
+    private static final String[] EXTENSIONS = {"PIPELINING", "CHUNKING", "BINARYMIME", "AUTH PLAIN LOGIN CRAM-MD5"};
+
+    /**
+     * Service extensions advertised in reply to EHLO while TLS is offered but not yet established.
+     */
+    private static final String[] STARTTLS_EXTENSIONS =
+        {"STARTTLS", "PIPELINING", "CHUNKING", "BINARYMIME", "AUTH PLAIN LOGIN CRAM-MD5"};
+
+    private static final SmtpResponse BINARYMIME_NEEDS_BDAT =
+        new SmtpResponse(503, "Bad sequence of commands: BINARYMIME content must be sent with BDAT", SmtpState.RCPT);
+
+    private static final SmtpResponse AUTHENTICATED =
+        new SmtpRequest(SmtpActionType.AUTH_RESPONSE, "", SmtpState.CREDENTIALS).execute();
+
+    private static final SmtpResponse AUTHENTICATION_FAILED =
+        new SmtpResponse(535, "5.7.8 Authentication credentials invalid", SmtpState.AUTH_PLAIN);
+
+    private static final SmtpResponse MALFORMED_AUTH_RESPONSE =
+        new SmtpResponse(501, "5.5.2 Cannot decode response", SmtpState.AUTH_PLAIN);
+
+    private static final SmtpResponse INSUFFICIENT_STORAGE =
+        new SmtpResponse(452, "Insufficient system storage", SmtpState.QUIT);
+
+    private static final SmtpResponse EXCEEDED_STORAGE =
+        new SmtpResponse(552, "Requested mail action aborted: exceeded storage allocation", SmtpState.QUIT);
+
+    private static final SmtpResponse IDLE_TIMEOUT =
+        new SmtpResponse(421, "4.4.2 Idle timeout, closing transmission channel", SmtpState.CONNECT);
+
+    private static final SmtpResponse SESSION_EXPIRED =
+        new SmtpResponse(421, "4.4.2 Maximum session duration exceeded, closing transmission channel",
+                         SmtpState.CONNECT);
+
+    /**
+     * Closes the connection without a reply.
+     */
+    private static final SmtpResponse DISCONNECT = new SmtpResponse(-1, null, SmtpState.CONNECT);
+
+    /**
+     * Where completely received messages are stored.
+     */
+    private final MailStore store;
+
+    /**
+     * Decides which credentials clients may authenticate with.
+     */
+    private final Authenticator authenticator;
+
+    /**
+     * Metrics of the server the session runs in.
+     */
+    private final SmtpMetrics metrics;
+
+    /**
+     * Faults injected into the session, {@code null} if none.
+     */
+    private final FaultProfile faults;
+
+    /**
+     * Random numbers faults are drawn with, {@code null} if there are no faults.
+     */
+    private final SplittableRandom random;
+
+    /**
+     * {@link System#nanoTime()} before which replies must not be sent and no more input be read.
+     */
+    private long resumeAt = System.nanoTime();
+
+    /**
+     * Whether the last message was stored while a subscriber lagged behind, so that the session is held back until
+     * it catches up.
+     */
+    private boolean backpressure;
+
+    /**
+     * Nanoseconds the client may stay silent, 0 for no limit.
+     */
+    private final long readTimeout;
+
+    /**
+     * Nanoseconds the session may last, 0 for no limit.
+     */
+    private final long maxDuration;
+
+    /**
+     * {@link System#nanoTime()} when input was received last.
+     */
+    private long lastInput = resumeAt;
+
+    /**
+     * Current state of the SMTP state table.
+     */
+    private SmtpState smtpState = SmtpState.CONNECT;
+
+    /**
+     * Message currently being received.
+     */
+    private SmtpMessage msg = new SmtpMessage();
+
+    private final SmtpLineDecoder lineDecoder = new SmtpLineDecoder();
+
+    private final SmtpDataDecoder dataDecoder = new SmtpDataDecoder();
+
+    /**
+     * Number of bytes of the current BDAT chunk still to be received.
+     */
+    private int chunkRemaining;
+
+    /**
+     * Number of bytes of a rejected BDAT chunk still to be skipped.
+     */
+    private int discardRemaining;
+
+    /**
+     * Whether the current BDAT chunk is the last one of the message.
+     */
+    private boolean lastChunk;
+
+    /**
+     * Whether the client announced binary content with MAIL FROM, which may only be sent with BDAT.
+     */
+    private boolean binaryMime;
+
+    /**
+     * Whether STARTTLS is offered to the client.
+     */
+    private final boolean startTls;
+
+    /**
+     * Whether TLS is established, either implicitly or by STARTTLS.
+     */
+    private boolean secure;
+
+    /**
+     * Whether the client is waiting for the TLS handshake after STARTTLS.
+     */
+    private boolean startingTls;
+
+    /**
+     * AUTH exchange in progress, or the last one.
+     */
+    private AuthExchange auth;
+
+    /**
+     * Credentials the client authenticated with, {@code null} if it did not.
+     */
+    private Credentials credentials;
+
+    /**
+     * Last lines exchanged, {@code null} if no transcript is recorded.
+     */
+    private final Transcript transcript;
+
+    private SocketAddress clientAddress;
+
+    private Instant connectedAt;
+
+    private long connectNanos;
+
+    /**
+     * Name given with HELO or EHLO.
+     */
+    private String heloName;
+
+    /**
+     * Nanoseconds from the connect until MAIL FROM of the current message was accepted, -1 before.
+     */
+    private long mailElapsed = -1;
+
+    /**
+     * Nanoseconds from the connect until the content of the current message started, -1 before.
+     */
+    private long dataStartElapsed = -1;
+
+    /**
+     * @param store where completely received messages are stored
+     */
+    SmtpSession(MailStore store) {
+        this(store, Authenticator.acceptAll(), false, 0, new SmtpMetrics(store), null, 0, 0);
+    }
+
+    /**
+     * @param store where completely received messages are stored
+     * @param authenticator decides which credentials clients may authenticate with
+     * @param startTls whether to offer STARTTLS, the caller has to establish TLS once {@link #isStartingTls()}
+     * @param transcriptLines number of protocol lines recorded with each message, 0 to record none
+     * @param metrics metrics of the server the session runs in
+     * @param faults faults to inject, {@code null} for none. The caller has to wait for {@link #pauseNanos()}.
+     * @param readTimeout nanoseconds the client may stay silent, 0 for no limit
+     * @param maxDuration nanoseconds the session may last, 0 for no limit. The caller has to {@link #expire} it.
+     */
+    SmtpSession(MailStore store, Authenticator authenticator, boolean startTls, int transcriptLines,
+                SmtpMetrics metrics, FaultProfile faults, long readTimeout, long maxDuration) {
+        this.store = store;
+        this.authenticator = authenticator;
+        this.metrics = metrics;
+        this.faults = faults;
+        this.random = faults != null ? faults.newRandom() : null;
+        this.readTimeout = readTimeout;
+        this.maxDuration = maxDuration;
+        this.startTls = startTls;
+        this.transcript = transcriptLines > 0 ? new Transcript(transcriptLines) : null;
+    }
+
+    /**
+     * Greet a freshly connected client.
+     *
+     * @param client address the client connected from, {@code null} if unknown
+     * @param out buffer the greeting is appended to
+     */
+    void open(SocketAddress client, StringBuilder out) {
+        clientAddress = client;
+        connectedAt = Instant.now();
+        connectNanos = System.nanoTime();
+        lastInput = connectNanos;
+
+        // Initialize the state machine
+        SmtpRequest smtpRequest = new SmtpRequest(SmtpActionType.CONNECT, "", SmtpState.CONNECT);
+
+        // Execute the connection request
+        SmtpResponse smtpResponse = smtpRequest.execute();
+        SmtpResponse fault = injectFault(SmtpActionType.CONNECT, SmtpState.CONNECT);
+        if (fault != null)
+            smtpResponse = fault;
+
+        // Send initial response
+        sendResponse(out, smtpResponse);
+
+        smtpState = smtpResponse.getNextState();
+    }
+
+    /**
+     * Handle client input. Everything up to the end of the input is consumed, unless the client says goodbye before.
+     * Input following STARTTLS is discarded, since it was sent before TLS was established.
+     *
+     * @param in client input
+     * @param out buffer replies are appended to
+     */
+    void receive(ByteBuffer in, StringBuilder out) {
+        metrics.bytesReceived(in.remaining());
+        lastInput = System.nanoTime();
+        while (!isClosed() && !startingTls && in.hasRemaining()) {
+            if (discardRemaining > 0) {
+                int skipped = Math.min(in.remaining(), discardRemaining);
+                in.position(in.position() + skipped);
+                discardRemaining -= skipped;
+            } else if (chunkRemaining > 0) {
+                int copied = dataDecoder.copy(in, chunkRemaining);
+                throttle(copied);
+                chunkRemaining -= copied;
+                if (chunkRemaining == 0)
+                    endChunk(out);
+            } else if (smtpState == SmtpState.DATA_HDR || smtpState == SmtpState.DATA_BODY) {
+                int start = in.position();
+                boolean complete = dataDecoder.decode(in);
+                throttle(in.position() - start);
+                if (complete)
+                    endData(out);
+            } else if (lineDecoder.next(in)) {
+                if (lineDecoder.isTooLong())
+                    rejectLine(out);
+                else
+                    receive(lineDecoder.line(), lineDecoder.length(), out);
+            }
+        }
+        if (startingTls)
+            in.position(in.limit());
+    }
+
+    /**
+     * Reject a line longer than {@link SmtpLineDecoder#MAX_LINE_LENGTH}, which was skipped without being handled.
+     *
+     * @param out buffer the reply is appended to
+     */
+    private void rejectLine(StringBuilder out) {
+        log.debug("C: <line too long>");
+        if (transcript != null)
+            transcript.add("C: <line too long>");
+        sendResponse(out, new SmtpResponse(500, "5.5.2 Line too long", smtpState));
+    }
+
+    /**
+     * Handle a single line of client input, recording how long it took.
+     *
+     * @param line buffer holding the line of input without its terminating CRLF
+     * @param length length of the line
+     * @param out buffer replies are appended to
+     */
+    private void receive(byte[] line, int length, StringBuilder out) {
+        long start = System.nanoTime();
+        SmtpActionType action = execute(line, length, out);
+        metrics.commandHandled(action, System.nanoTime() - start);
+    }
+
+    /**
+     * Handle a single line of client input.
+     *
+     * @param line buffer holding the line of input without its terminating CRLF
+     * @param length length of the line
+     * @param out buffer replies are appended to
+     *
+     * @return the command the line was taken for
+     */
+    private SmtpActionType execute(byte[] line, int length, StringBuilder out) {
+        if (log.isDebugEnabled() || transcript != null) {
+            String text = new String(line, 0, length, ISO_8859_1);
+            log.debug("C: {}", text);
+            if (transcript != null)
+                transcript.add("C: " + text);
+        }
+
+        // Create request from client input and current state
+        SmtpRequest request = SmtpRequest.createRequest(line, length, smtpState);
+        SmtpResponse fault = injectFault(request.action, smtpState);
+        if (fault != null) {
+            if (request.action == SmtpActionType.BDAT)
+                discardChunk(request.params);
+            smtpState = fault.getNextState();
+            sendResponse(out, fault);
+            return request.action;
+        }
+        // Execute request and create response object
+        SmtpResponse response = request.execute();
+        if (request.action == SmtpActionType.DATA && binaryMime && response.getCode() == 354)
+            response = BINARYMIME_NEEDS_BDAT;
+        if (request.action == SmtpActionType.STARTTLS && response.getCode() == 220) {
+            if (!startTls)
+                response = new SmtpResponse(502, "5.5.1 Command not implemented", smtpState);
+            else if (secure)
+                response = new SmtpResponse(503, "5.5.1 TLS already active", smtpState);
+            else
+                startingTls = true;
+        } else if (request.action == SmtpActionType.AUTH && response.getCode() == 334) {
+            response = startAuth(request.params);
+        } else if (request.action == SmtpActionType.AUTH_RESPONSE && response.getCode() == 235) {
+            response = continueAuth(request.params);
+        }
+        if (response.getNextState() == SmtpState.BDAT && request.action == SmtpActionType.BDAT) {
+            // reply once the chunk is received
+            smtpState = SmtpState.BDAT;
+            if (dataStartElapsed < 0)
+                dataStartElapsed = elapsed();
+            startChunk(request.params, out);
+            return request.action;
+        }
+        if (request.action == SmtpActionType.BDAT)
+            discardChunk(request.params);
+        // Move to next internal state
+        smtpState = response.getNextState();
+        // Send response to client
+        if (smtpState == SmtpState.GREET_AUTH)
+            sendEhloResponse(out, response, startTls && !secure ? STARTTLS_EXTENSIONS : EXTENSIONS);
+        else
+            sendResponse(out, response);
+        // Store input in message
+        msg.store(response, request.params);
+        if (response.getCode() == 250) {
+            if (request.action == SmtpActionType.MAIL) {
+                msg.setEnvelopeSender(address(request.params));
+                binaryMime = request.params.toUpperCase(Locale.ROOT).contains("BODY=BINARYMIME");
+                mailElapsed = elapsed();
+                dataStartElapsed = -1;
+            }
+            else if (request.action == SmtpActionType.RCPT)
+                msg.addEnvelopeRecipient(address(request.params));
+            else if (request.action == SmtpActionType.HELO || request.action == SmtpActionType.EHLO)
+                heloName = request.params.trim();
+        } else if (response.getCode() == 354) {
+            dataStartElapsed = elapsed();
+        }
+
+        if (smtpState == SmtpState.GREET) {
+            msg = new SmtpMessage();
+            dataDecoder.reset();
+            binaryMime = false;
+            mailElapsed = -1;
+            dataStartElapsed = -1;
+        } else if (smtpState == SmtpState.GREET_AUTH) {
+            smtpState = SmtpState.AUTH_PLAIN;
+        }
+        return request.action;
+    }
+
+    /**
+     * Start an AUTH exchange, which is complete right away if the client sent an initial response.
+     *
+     * @param params parameters of the AUTH command, already validated
+     *
+     * @return the first challenge, or the outcome of the initial response
+     */
+    private SmtpResponse startAuth(String params) {
+        AuthMechanism mechanism = AuthMechanism.forName(SmtpRequest.mechanism(params));
+        auth = new AuthExchange(mechanism);
+        String initialResponse = SmtpRequest.initialResponse(params);
+        if (initialResponse == null)
+            return new SmtpResponse(334, auth.challenge(), SmtpState.CREDENTIALS);
+        // CRAM-MD5 has to see the challenge first
+        return mechanism == AuthMechanism.CRAM_MD5 ? MALFORMED_AUTH_RESPONSE : continueAuth(initialResponse);
+    }
+
+    /**
+     * Handle a client response of the AUTH exchange and verify the credentials once they are complete.
+     *
+     * @param response base64 encoded client response
+     *
+     * @return the next challenge, or whether the client is authenticated
+     */
+    private SmtpResponse continueAuth(String response) {
+        try {
+            if (!auth.respond(response))
+                return new SmtpResponse(334, auth.challenge(), SmtpState.CREDENTIALS);
+        } catch (IllegalArgumentException e) {
+            return MALFORMED_AUTH_RESPONSE;
+        }
+        if (!authenticator.authenticate(auth.credentials()))
+            return AUTHENTICATION_FAILED;
+        credentials = auth.credentials();
+        return AUTHENTICATED;
+    }
+
+    /**
+     * Complete the message once its content is received.
+     *
+     * @param out buffer replies are appended to
+     */
+    private void endData(StringBuilder out) {
+        if (log.isDebugEnabled())
+            log.debug("C: {}.", new String(dataDecoder.data(), 0, dataDecoder.length(), ISO_8859_1));
+
+        storeMessage(out);
+    }
+
+    /**
+     * Prepare to receive the content of a BDAT chunk.
+     *
+     * @param params parameters of the BDAT command, already validated
+     * @param out buffer replies are appended to
+     */
+    private void startChunk(String params, StringBuilder out) {
+        chunkRemaining = SmtpRequest.chunkSize(params);
+        lastChunk = SmtpRequest.isLastChunk(params);
+        if (chunkRemaining == 0)
+            endChunk(out);
+    }
+
+    /**
+     * Skip the content of a rejected BDAT chunk, which the client sends regardless of the reply (RFC 3030).
+     *
+     * @param params parameters of the BDAT command
+     */
+    private void discardChunk(String params) {
+        discardRemaining = Math.max(0, SmtpRequest.chunkSize(params));
+    }
+
+    /**
+     * Acknowledge a BDAT chunk once its content is received, completing the message after the last one.
+     *
+     * @param out buffer replies are appended to
+     */
+    private void endChunk(StringBuilder out) {
+        if (lastChunk) {
+            if (log.isDebugEnabled())
+                log.debug("C: {} bytes in chunks", dataDecoder.length());
+            storeMessage(out);
+        } else {
+            sendResponse(out, new SmtpResponse(250, dataDecoder.length() + " octets received", SmtpState.BDAT));
+        }
+    }
+
+    /**
+     * Store the completely received message, unless the store is full.
+     *
+     * @param out buffer replies are appended to
+     */
+    private void storeMessage(StringBuilder out) {
+        msg.storeData(dataDecoder.data(), dataDecoder.length());
+        msg.setCredentials(credentials);
+        if (transcript != null)
+            transcript.add("C: <" + dataDecoder.length() + " octets of message content>");
+        long dataEndElapsed = elapsed();
+        msg.setSessionRecord(record(dataEndElapsed));
+
+        // an injected fault discards the message
+        SmtpResponse response = injectFault(SmtpActionType.DATA_END, SmtpState.QUIT);
+        if (response != null) {
+            log.debug("message discarded by injected fault");
+        } else if (store.receive(msg, dataDecoder.data(), dataDecoder.length())) {
+            metrics.messageReceived(dataEndElapsed - dataStartElapsed);
+            backpressure = store.isBackedUp();
+            response = new SmtpRequest(SmtpActionType.DATA_END, null, SmtpState.DATA_BODY).execute();
+        } else {
+            metrics.messageRejected();
+            response = store.exceedsCapacity(msg) ? EXCEEDED_STORAGE : INSUFFICIENT_STORAGE;
+        }
+        dataDecoder.reset();
+        binaryMime = false;
+        smtpState = response.getNextState();
+        sendResponse(out, response);
+
+        msg = new SmtpMessage();
+        mailElapsed = -1;
+        dataStartElapsed = -1;
+    }
+
+    /**
+     * Draw the faults injected for a command, delaying the reply as configured.
+     *
+     * @param action command
+     * @param errorState state after an error reply other than 421
+     *
+     * @return the reply replacing the normal handling of the command, {@code null} to handle it normally
+     */
+    private SmtpResponse injectFault(SmtpActionType action, SmtpState errorState) {
+        if (faults == null)
+            return null;
+        if (faults.disconnect(action, random)) {
+            log.debug("disconnecting at {} by injected fault", action);
+            return DISCONNECT;
+        }
+        pause(faults.delayNanos(action, random));
+        int code = faults.errorCode(action, random);
+        return code > 0 ? FaultProfile.errorResponse(code, errorState) : null;
+    }
+
+    /**
+     * Hold back further replies and input as if reading message content took as long as the bandwidth allows.
+     *
+     * @param bytes number of bytes of message content received
+     */
+    private void throttle(int bytes) {
+        if (faults != null)
+            pause(faults.readNanos(bytes));
+    }
+
+    /**
+     * Hold back further replies and input, in addition to any pause already pending.
+     *
+     * @param nanos how long to pause
+     */
+    private void pause(long nanos) {
+        if (nanos > 0) {
+            long now = System.nanoTime();
+            resumeAt = (resumeAt - now > 0 ? resumeAt : now) + nanos;
+        }
+    }
+
+    /**
+     * @return nanoseconds the caller has to wait because of injected faults before sending the replies to the input
+     *         so far and reading more input, 0 to go on right away. Callers have to check {@link #isHeldBack()}
+     *         afterwards.
+     */
+    long pauseNanos() {
+        return faults != null ? Math.max(0, resumeAt - System.nanoTime()) : 0;
+    }
+
+    /**
+     * Tell whether the session has to hold back its replies and input until a lagging subscriber caught up. Callers
+     * wait for {@link #whenReleased(Runnable)} and ask again, instead of polling.
+     *
+     * @return true while the session is held back
+     */
+    boolean isHeldBack() {
+        if (backpressure && !store.isBackedUp()) {
+            backpressure = false;
+            // the client was not idle while held back
+            long now = System.nanoTime();
+            if (resumeAt - now < 0)
+                resumeAt = now;
+        }
+        return backpressure;
+    }
+
+    /**
+     * Get called back once the session may no longer be held back.
+     *
+     * @param callback called once, possibly from another thread
+     */
+    void whenReleased(Runnable callback) {
+        store.whenNotBackedUp(callback);
+    }
+
+    /**
+     * Time left until the session times out. The client is idle only while the server waits for input, so time spent
+     * in a pause does not count.
+     *
+     * @return nanoseconds until the session times out, {@link Long#MAX_VALUE} if it never does
+     */
+    long timeoutNanos() {
+        long now = System.nanoTime();
+        long timeout = Long.MAX_VALUE;
+        if (readTimeout > 0 && !backpressure)
+            timeout = (resumeAt - lastInput > 0 ? resumeAt : lastInput) + readTimeout - now;
+        if (maxDuration > 0)
+            timeout = Math.min(timeout, connectNanos + maxDuration - now);
+        return timeout;
+    }
+
+    /**
+     * Close the session with a 421 reply if it timed out.
+     *
+     * @param out buffer the reply is appended to
+     *
+     * @return true if the session timed out
+     */
+    boolean expire(StringBuilder out) {
+        if (isClosed() || timeoutNanos() > 0)
+            return false;
+        boolean expired = maxDuration > 0 && System.nanoTime() - connectNanos >= maxDuration;
+        SmtpResponse response = expired ? SESSION_EXPIRED : IDLE_TIMEOUT;
+        sendResponse(out, response);
+        smtpState = response.getNextState();
+        return true;
+    }
+
+    /**
+     * @param dataEndElapsed nanoseconds from the connect until the content of the current message was received
+     *
+     * @return what was recorded about the session and the current message
+     */
+    private SessionRecord record(long dataEndElapsed) {
+        long[] elapsed = {0, mailElapsed, dataStartElapsed, dataEndElapsed};
+        return new SessionRecord(clientAddress, heloName, connectedAt, elapsed,
+                                 transcript != null ? transcript.snapshot() : Collections.emptyList());
+    }
+
+    /**
+     * @return nanoseconds since the client connected
+     */
+    private long elapsed() {
+        return System.nanoTime() - connectNanos;
+    }
+
+    /**
+     * Extract the address from the parameters of a MAIL FROM or RCPT TO command, dropping the angle brackets and
+     * any ESMTP parameters following it.
+     *
+     * @param params parameters of the command, e.g. {@code <user@example.com> SIZE=1000}
+     *
+     * @return the bare address
+     */
+    static String address(String params) {
+        String path = params.trim();
+        if (path.startsWith("<")) {
+            int end = path.indexOf('>');
+            return end < 0 ? path.substring(1) : path.substring(1, end);
+        }
+        int end = path.indexOf(' ');
+        return end < 0 ? path : path.substring(0, end);
+    }
+
+    /**
+     * @return true once the client sent STARTTLS, all further input has to be read through TLS
+     */
+    boolean isStartingTls() {
+        return startingTls;
+    }
+
+    /**
+     * Tell the session that TLS is established, either right after connecting or after STARTTLS.
+     */
+    void tlsStarted() {
+        startingTls = false;
+        secure = true;
+        credentials = null;
+    }
+
+    /**
+     * @return true once the client said goodbye
+     */
+    boolean isClosed() {
+        return smtpState == SmtpState.CONNECT;
+    }
+
+    /**
+     * Send the multi-line reply to EHLO, the greeting followed by one line per supported extension.
+     *
+     * @param out buffer the response is appended to
+     * @param smtpResponse response object holding the greeting
+     * @param extensions extensions to advertise
+     */
+    private void sendEhloResponse(StringBuilder out, SmtpResponse smtpResponse, String[] extensions) {
+        int code = smtpResponse.getCode();
+        out.append(code).append('-').append(smtpResponse.getMessage()).append(CRLF);
+        for (int i = 0; i < extensions.length; i++)
+            out.append(code).append(i < extensions.length - 1 ? '-' : ' ').append(extensions[i]).append(CRLF);
+        if (transcript != null) {
+            transcript.add("S: " + code + "-" + smtpResponse.getMessage());
+            for (int i = 0; i < extensions.length; i++)
+                transcript.add("S: " + code + (i < extensions.length - 1 ? '-' : ' ') + extensions[i]);
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("S: {} {} {}", code, smtpResponse.getMessage(), String.join(", ", extensions));
+    }
+
+    /**
+     * Send response to client.
+     *
+     * @param out buffer the response is appended to
+     * @param smtpResponse response object
+     */
+    private void sendResponse(StringBuilder out, SmtpResponse smtpResponse) {
+        int code = smtpResponse.getCode();
+        if (code > 0) {
+            String message = smtpResponse.getMessage();
+
+            if (log.isDebugEnabled())
+                log.debug("S: {} {}{}", code, message, CRLF);
+            if (transcript != null)
+                transcript.add("S: " + code + " " + message);
+
+            out.append(code).append(' ').append(message).append(CRLF);
+        }
+    }
+
+}
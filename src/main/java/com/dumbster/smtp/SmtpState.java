@@ -39,7 +39,7 @@ public enum SmtpState {
     GREET_AUTH,
 
     /**
-     * AUTH PLAIN state: waiting for authentication
+     * AUTH PLAIN state: waiting for authentication with any supported mechanism, which is optional
      */
     AUTH_PLAIN,
 
@@ -71,6 +71,11 @@ public enum SmtpState {
     /**
      * QUIT state: end of client transmission.
      */
-    QUIT
+    QUIT,
+
+    /**
+     * BDAT state: waiting for the next BDAT chunk. Last, so that the ordinals of the other states stay unchanged.
+     */
+    BDAT
 
 }
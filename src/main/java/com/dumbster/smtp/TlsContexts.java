@@ -0,0 +1,104 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TLS contexts for servers and clients on the local machine, based on a self-signed certificate for
+ * {@code localhost} and {@code 127.0.0.1} shipped with Dumbster. Clients created by {@link #client()} trust this
+ * certificate only, so they are good for tests but must not be used for anything else.
+ */
+public final class TlsContexts {
+
+    private static final String KEYSTORE = "localhost.p12";
+
+    private static final char[] PASSWORD = "dumbster".toCharArray();
+
+    /**
+     * Number of TLS sessions each server keeps for resumption.
+     */
+    private static final int SESSION_CACHE_SIZE = 10_000;
+
+    /**
+     * How long a server keeps TLS sessions for resumption.
+     */
+    private static final long SESSION_TIMEOUT = TimeUnit.HOURS.toSeconds(1);
+
+    private TlsContexts() {
+    }
+
+    /**
+     * Creates a server context presenting the self-signed certificate. Sessions are cached, so that clients
+     * reconnecting with the same context resume their session instead of repeating the full handshake.
+     *
+     * @return a new server context
+     */
+    public static SSLContext server() {
+        try {
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore(), PASSWORD);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            context.getServerSessionContext().setSessionTimeout((int) SESSION_TIMEOUT);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("could not create server TLS context", e);
+        }
+    }
+
+    /**
+     * Creates a client context trusting the self-signed certificate of {@link #server()} and nothing else.
+     * Sessions are cached per context, so reuse the context to resume sessions.
+     *
+     * @return a new client context
+     */
+    public static SSLContext client() {
+        try {
+            TrustManagerFactory trustManagers =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(keyStore());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trustManagers.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("could not create client TLS context", e);
+        }
+    }
+
+    private static KeyStore keyStore() throws GeneralSecurityException {
+        try (InputStream in = TlsContexts.class.getResourceAsStream(KEYSTORE)) {
+            if (in == null)
+                throw new IllegalStateException("missing keystore " + KEYSTORE);
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(in, PASSWORD);
+            return keyStore;
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not read keystore " + KEYSTORE, e);
+        }
+    }
+
+}
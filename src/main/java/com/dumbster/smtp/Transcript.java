@@ -0,0 +1,57 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last lines exchanged in a session, older lines are dropped once the limit is reached.
+ * Instances are not thread-safe.
+ */
+final class Transcript {
+
+    private final int maxLines;
+
+    private final ArrayDeque<String> lines;
+
+    /**
+     * @param maxLines number of lines to keep
+     */
+    Transcript(int maxLines) {
+        this.maxLines = maxLines;
+        this.lines = new ArrayDeque<>(Math.min(maxLines, 64));
+    }
+
+    /**
+     * @param line line to add, dropping the oldest one if the transcript is full
+     */
+    void add(String line) {
+        if (lines.size() == maxLines)
+            lines.removeFirst();
+        lines.addLast(line);
+    }
+
+    /**
+     * @return a copy of the lines, oldest first
+     */
+    List<String> snapshot() {
+        return new ArrayList<>(lines);
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps every message in an unbounded {@link ConcurrentLinkedQueue}.
+ */
+final class UnboundedMailStore extends MailStore {
+
+    private final Queue<SmtpMessage> messages = new ConcurrentLinkedQueue<>();
+
+    private final MessageIndex<SmtpMessage> index = new MessageIndex<>();
+
+    @Override
+    public boolean offer(SmtpMessage message) {
+        // index first, so that a concurrent poll never leaves a stale index entry behind
+        index.add(message, MessageKeys.of(message));
+        return messages.offer(message);
+    }
+
+    @Override
+    public SmtpMessage poll() {
+        SmtpMessage message = messages.poll();
+        if (message != null)
+            index.remove(message, MessageKeys.of(message));
+        return message;
+    }
+
+    @Override
+    public SmtpMessage peek() {
+        return messages.peek();
+    }
+
+    @Override
+    public Iterator<SmtpMessage> iterator() {
+        Iterator<SmtpMessage> iterator = messages.iterator();
+        return new Iterator<SmtpMessage>() {
+
+            private SmtpMessage current;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public SmtpMessage next() {
+                current = iterator.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                iterator.remove();
+                index.remove(current, MessageKeys.of(current));
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return messages.size();
+    }
+
+    @Override
+    public void clear() {
+        // poll one by one instead of clearing, so that messages offered meanwhile stay in the index
+        while (!messages.isEmpty())
+            poll();
+    }
+
+    @Override
+    List<SmtpMessage> find(MessageKeys.Field field, String value) {
+        return index.find(field, value);
+    }
+
+}
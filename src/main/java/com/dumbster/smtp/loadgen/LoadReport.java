@@ -0,0 +1,100 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp.loadgen;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery statistics of a {@link SmtpLoadGenerator} run.
+ */
+public final class LoadReport {
+
+    /**
+     * Latency of each delivered message in nanoseconds, sorted.
+     */
+    private final long[] latencies;
+
+    private final int failedConnections;
+
+    private final long elapsedNanos;
+
+    LoadReport(long[] latencies, int failedConnections, long elapsedNanos) {
+        this.latencies = latencies;
+        Arrays.sort(this.latencies);
+        this.failedConnections = failedConnections;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return number of messages the server accepted
+     */
+    public int getDelivered() {
+        return latencies.length;
+    }
+
+    /**
+     * @return number of connections which broke off before delivering all their messages
+     */
+    public int getFailedConnections() {
+        return failedConnections;
+    }
+
+    /**
+     * @param unit unit to return the time in
+     *
+     * @return wall clock time of the whole run
+     */
+    public long getElapsed(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return delivered messages per second
+     */
+    public double getThroughput() {
+        return latencies.length / (elapsedNanos / 1e9);
+    }
+
+    /**
+     * Latency of a message from MAIL FROM to the reply to its content.
+     *
+     * @param percentile percentile between 0 and 100, e.g. 99.9
+     * @param unit unit to return the latency in
+     *
+     * @return the latency at the given percentile (nearest rank), 0 if no message was delivered
+     */
+    public long getLatency(double percentile, TimeUnit unit) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+        if (latencies.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+        return unit.convert(latencies[Math.max(rank, 1) - 1], TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d messages in %d ms, %.0f messages/s, %d failed connections, latency in us: "
+                             + "p50 %d, p90 %d, p99 %d, p99.9 %d, max %d",
+                             getDelivered(), getElapsed(TimeUnit.MILLISECONDS), getThroughput(), failedConnections,
+                             getLatency(50, TimeUnit.MICROSECONDS), getLatency(90, TimeUnit.MICROSECONDS),
+                             getLatency(99, TimeUnit.MICROSECONDS), getLatency(99.9, TimeUnit.MICROSECONDS),
+                             getLatency(100, TimeUnit.MICROSECONDS));
+    }
+
+}
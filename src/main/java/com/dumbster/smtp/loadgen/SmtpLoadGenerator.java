@@ -0,0 +1,395 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp.loadgen;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Drives an SMTP server with a number of concurrent connections, each one delivering messages over raw sockets as
+ * fast as the server accepts them, and measures how long each delivery takes. Much cheaper per message than a
+ * full mail client, so that the server rather than the client is the bottleneck. Only talks to the server over
+ * sockets, so that it can drive any SMTP server.
+ * <p>
+ * Can be run from the command line: {@code SmtpLoadGenerator port [connections [messages [size [pipelining]]]]}
+ */
+@Slf4j
+public final class SmtpLoadGenerator {
+
+    private static final String CRLF = "\r\n";
+
+    private static final String FILLER = "0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz";
+
+    private final String host;
+
+    private final int port;
+
+    private final int connections;
+
+    private final int messagesPerConnection;
+
+    private final boolean pipelining;
+
+    /**
+     * Initial response of AUTH PLAIN sent by every connection, {@code null} to send mail without authenticating.
+     */
+    private final String authPlain;
+
+    /**
+     * Content of every message, dot-stuffed and terminated by the final dot line.
+     */
+    private final byte[] content;
+
+    private SmtpLoadGenerator(Builder config) {
+        this.host = config.host;
+        this.port = config.port;
+        this.connections = config.connections;
+        this.messagesPerConnection = config.messagesPerConnection;
+        this.pipelining = config.pipelining;
+        this.authPlain = config.username == null ? null : Base64.getEncoder().encodeToString(
+            ("\0" + config.username + "\0" + config.password).getBytes(UTF_8));
+        this.content = content(config.messageSize);
+    }
+
+    /**
+     * @param port port of the server to drive
+     *
+     * @return a builder to configure the load
+     */
+    public static Builder builder(int port) {
+        return new Builder(port);
+    }
+
+    /**
+     * Open all connections, deliver all messages and close the connections again.
+     *
+     * @return delivery statistics
+     *
+     * @throws InterruptedException when interrupted while waiting for the connections to finish
+     */
+    public LoadReport run() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        try {
+            long start = System.nanoTime();
+            List<Future<long[]>> results = new ArrayList<>(connections);
+            for (int i = 0; i < connections; i++)
+                results.add(executor.submit(this::runConnection));
+
+            long[] latencies = new long[connections * messagesPerConnection];
+            int delivered = 0;
+            int failedConnections = 0;
+            for (Future<long[]> result : results) {
+                try {
+                    long[] connectionLatencies = result.get();
+                    System.arraycopy(connectionLatencies, 0, latencies, delivered, connectionLatencies.length);
+                    delivered += connectionLatencies.length;
+                } catch (ExecutionException e) {
+                    log.warn("connection failed", e.getCause());
+                    failedConnections++;
+                }
+            }
+            return new LoadReport(Arrays.copyOf(latencies, delivered), failedConnections,
+                                  System.nanoTime() - start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return latency of each delivered message in nanoseconds
+     */
+    private long[] runConnection() throws IOException {
+        long[] latencies = new long[messagesPerConnection];
+        try (Connection connection = new Connection(new Socket(host, port))) {
+            connection.expect('2');
+            // pipelining and authentication are only allowed once the server advertised them in reply to EHLO
+            connection.send((pipelining || authPlain != null ? "EHLO" : "HELO") + " load-generator" + CRLF);
+            connection.expect('2');
+            if (authPlain != null) {
+                connection.send("AUTH PLAIN " + authPlain + CRLF);
+                connection.expect('2');
+            }
+            for (int i = 0; i < messagesPerConnection; i++) {
+                long start = System.nanoTime();
+                if (pipelining) {
+                    connection.send("MAIL FROM:<sender@load.test>" + CRLF
+                                    + "RCPT TO:<receiver@load.test>" + CRLF
+                                    + "DATA" + CRLF);
+                    connection.expect('2');
+                    connection.expect('2');
+                    connection.expect('3');
+                } else {
+                    connection.send("MAIL FROM:<sender@load.test>" + CRLF);
+                    connection.expect('2');
+                    connection.send("RCPT TO:<receiver@load.test>" + CRLF);
+                    connection.expect('2');
+                    connection.send("DATA" + CRLF);
+                    connection.expect('3');
+                }
+                connection.send(content);
+                connection.expect('2');
+                latencies[i] = System.nanoTime() - start;
+            }
+            connection.send("QUIT" + CRLF);
+            connection.expect('2');
+        }
+        return latencies;
+    }
+
+    /**
+     * @return message content of about the given size, terminated by the final dot line
+     */
+    private static byte[] content(int size) {
+        StringBuilder content = new StringBuilder(size + FILLER.length() + 8)
+            .append("Subject: Load").append(CRLF)
+            .append(CRLF);
+        while (content.length() < size)
+            content.append(FILLER).append(CRLF);
+        return content.append('.').append(CRLF).toString().getBytes(ISO_8859_1);
+    }
+
+    /**
+     * Runs the load generator from the command line.
+     *
+     * @param args port [connections [messages per connection [message size [pipelining]]]]
+     *
+     * @throws InterruptedException when interrupted
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.err.println("usage: SmtpLoadGenerator port [connections [messages [size [pipelining]]]]");
+            System.exit(1);
+        }
+        Builder builder = builder(Integer.parseInt(args[0]));
+        if (args.length > 1)
+            builder.connections(Integer.parseInt(args[1]));
+        if (args.length > 2)
+            builder.messagesPerConnection(Integer.parseInt(args[2]));
+        if (args.length > 3)
+            builder.messageSize(Integer.parseInt(args[3]));
+        if (args.length > 4 && Boolean.parseBoolean(args[4]))
+            builder.pipelining();
+        System.out.println(builder.build().run());
+    }
+
+    /**
+     * Client side of a single connection. Replies are split into lines here rather than with the decoder of the
+     * server, so that the load generator does not depend on the server classes.
+     */
+    private static final class Connection implements AutoCloseable {
+
+        private final Socket socket;
+
+        private final InputStream in;
+
+        private final OutputStream out;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        /**
+         * Reply line being read, without its line terminator.
+         */
+        private byte[] line = new byte[512];
+
+        private int length;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+            buffer.limit(0);
+        }
+
+        void send(String commands) throws IOException {
+            send(commands.getBytes(ISO_8859_1));
+        }
+
+        void send(byte[] data) throws IOException {
+            out.write(data);
+            out.flush();
+        }
+
+        /**
+         * Read a complete, possibly multi-line, reply and check the first digit of its code.
+         */
+        void expect(char code) throws IOException {
+            while (true) {
+                readLine();
+                if (length < 3 || line[0] != code)
+                    throw new IOException("unexpected reply " + new String(line, 0, length, ISO_8859_1));
+                // continuation lines have a dash after the code
+                if (length == 3 || line[3] != '-')
+                    return;
+            }
+        }
+
+        /**
+         * Read the next reply line, terminated by LF or CRLF.
+         */
+        private void readLine() throws IOException {
+            length = 0;
+            while (true) {
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        if (length > 0 && line[length - 1] == '\r')
+                            length--;
+                        return;
+                    }
+                    if (length == line.length)
+                        line = Arrays.copyOf(line, 2 * length);
+                    line[length++] = b;
+                }
+                int read = in.read(buffer.array());
+                if (read < 0)
+                    throw new IOException("connection closed by server");
+                buffer.clear();
+                buffer.limit(read);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+
+    }
+
+    /**
+     * Configures a {@link SmtpLoadGenerator}.
+     */
+    public static final class Builder {
+
+        private final int port;
+
+        private String host = "localhost";
+
+        private int connections = 1;
+
+        private int messagesPerConnection = 1;
+
+        private int messageSize = 1024;
+
+        private boolean pipelining;
+
+        private String username;
+
+        private String password;
+
+        private Builder(int port) {
+            this.port = port;
+        }
+
+        /**
+         * @param host host the server runs on, localhost by default
+         *
+         * @return this builder
+         */
+        public Builder host(String host) {
+            this.host = host;
+            return this;
+        }
+
+        /**
+         * @param connections number of concurrent connections
+         *
+         * @return this builder
+         */
+        public Builder connections(int connections) {
+            if (connections < 1)
+                throw new IllegalArgumentException("connections must be positive: " + connections);
+            this.connections = connections;
+            return this;
+        }
+
+        /**
+         * @param messagesPerConnection number of messages each connection delivers
+         *
+         * @return this builder
+         */
+        public Builder messagesPerConnection(int messagesPerConnection) {
+            if (messagesPerConnection < 1)
+                throw new IllegalArgumentException("messagesPerConnection must be positive: "
+                                                   + messagesPerConnection);
+            this.messagesPerConnection = messagesPerConnection;
+            return this;
+        }
+
+        /**
+         * @param messageSize approximate size of each message in bytes, headers included
+         *
+         * @return this builder
+         */
+        public Builder messageSize(int messageSize) {
+            if (messageSize < 1)
+                throw new IllegalArgumentException("messageSize must be positive: " + messageSize);
+            this.messageSize = messageSize;
+            return this;
+        }
+
+        /**
+         * Send MAIL FROM, RCPT TO and DATA in one go instead of waiting for each reply (RFC 2920).
+         *
+         * @return this builder
+         */
+        public Builder pipelining() {
+            this.pipelining = true;
+            return this;
+        }
+
+        /**
+         * Authenticate every connection with AUTH PLAIN before sending mail. Connections with rejected credentials
+         * count as failed.
+         *
+         * @param username name of the user
+         * @param password password of the user
+         *
+         * @return this builder
+         */
+        public Builder authenticate(String username, String password) {
+            this.username = username;
+            this.password = password;
+            return this;
+        }
+
+        /**
+         * @return a load generator with this configuration
+         */
+        public SmtpLoadGenerator build() {
+            return new SmtpLoadGenerator(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Base64;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AuthenticationTest {
+
+    private SimpleSmtpServer server;
+
+    private RawSmtpClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = SimpleSmtpServer.builder()
+                                 .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                 .authenticator(new CredentialTable().add("user", "secret").add("guest", ""))
+                                 .start();
+        client = new RawSmtpClient(server.getPort());
+        client.expect("220").write("EHLO localhost\r\n");
+        assertTrue(client.expectMultiline("250").contains("AUTH PLAIN LOGIN CRAM-MD5"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void testPlainWithInitialResponse() throws Exception {
+        client.send("AUTH PLAIN " + encode("admin\0user\0secret"), "235");
+        Credentials credentials = deliver();
+
+        assertEquals(AuthMechanism.PLAIN, credentials.getMechanism());
+        assertEquals("admin", credentials.getAuthorizationId());
+        assertEquals("user", credentials.getUsername());
+        assertEquals("secret", credentials.getPassword());
+    }
+
+    @Test
+    public void testPlainAfterChallenge() throws Exception {
+        client.send("AUTH PLAIN", "334")
+              .send(encode("\0user\0secret"), "235");
+
+        assertEquals("user", deliver().getUsername());
+    }
+
+    @Test
+    public void testLogin() throws Exception {
+        client.write("AUTH LOGIN\r\n");
+        assertEquals("334 VXNlcm5hbWU6", client.readLine());
+        client.write(encode("user") + "\r\n");
+        assertEquals("334 UGFzc3dvcmQ6", client.readLine());
+        client.send(encode("secret"), "235");
+
+        Credentials credentials = deliver();
+        assertEquals(AuthMechanism.LOGIN, credentials.getMechanism());
+        assertEquals("secret", credentials.getPassword());
+    }
+
+    @Test
+    public void testCramMd5() throws Exception {
+        client.write("AUTH CRAM-MD5\r\n");
+        String reply = client.readLine();
+        assertTrue(reply.startsWith("334 "));
+        String challenge = new String(Base64.getDecoder().decode(reply.substring(4)), UTF_8);
+        assertTrue(challenge.matches("<\\d+\\.\\d+@localhost>"));
+        client.send(encode("user " + Credentials.cramMd5Digest("secret", challenge)), "235");
+
+        Credentials credentials = deliver();
+        assertEquals(AuthMechanism.CRAM_MD5, credentials.getMechanism());
+        assertNull(credentials.getPassword());
+        assertTrue(credentials.verify("secret"));
+        assertFalse(credentials.verify("guess"));
+    }
+
+    @Test
+    public void testCramMd5WithEmptyPassword() throws Exception {
+        assertEquals("093c6d9cd2b253adfb93a2ea3f054876", Credentials.cramMd5Digest("", "<1.2@localhost>"));
+
+        client.write("AUTH CRAM-MD5\r\n");
+        String challenge = new String(Base64.getDecoder().decode(client.readLine().substring(4)), UTF_8);
+        client.send(encode("guest " + Credentials.cramMd5Digest("", challenge)), "235");
+
+        Credentials credentials = deliver();
+        assertTrue(credentials.verify(""));
+        assertFalse(credentials.verify("secret"));
+    }
+
+    @Test
+    public void testRetryAfterFailure() throws Exception {
+        client.send("AUTH PLAIN " + encode("\0user\0guess"), "535")
+              .send("AUTH PLAIN " + encode("\0nobody\0secret"), "535")
+              .send("AUTH LOGIN " + encode("user"), "334")
+              .send(encode("secret"), "235");
+
+        assertEquals(AuthMechanism.LOGIN, deliver().getMechanism());
+    }
+
+    @Test
+    public void testMalformedAndCancelled() throws Exception {
+        client.send("AUTH PLAIN not-base64!", "501")
+              .send("AUTH PLAIN " + encode("user secret"), "501")
+              .send("AUTH LOGIN", "334")
+              .send("*", "501")
+              .send("AUTH DIGEST-MD5", "504");
+    }
+
+    @Test
+    public void testWithoutAuthentication() throws Exception {
+        assertNull(deliver());
+    }
+
+    private Credentials deliver() throws Exception {
+        client.sendMail("sender@example.com", "receiver@example.com", "Subject: Auth\r\n\r\nTest body");
+        return server.getReceivedEmails().poll().getCredentials();
+    }
+
+    private static String encode(String s) {
+        return Base64.getEncoder().encodeToString(s.getBytes(UTF_8));
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class AwaitMessagesTest {
+
+    private SimpleSmtpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = SimpleSmtpServer.start(SimpleSmtpServer.AUTO_SMTP_PORT);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testAwaitMessages() throws Exception {
+        send("First");
+        CompletableFuture<SmtpMessage> second =
+            server.awaitMessageAsync(email -> "Second".equals(email.getHeaderValue("Subject")));
+        assertFalse(second.isDone());
+
+        new Thread(() -> {
+            try {
+                send("Second");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).start();
+
+        List<SmtpMessage> emails = server.awaitMessages(2, 10, TimeUnit.SECONDS);
+        assertEquals(2, emails.size());
+        assertEquals("Second", second.get(10, TimeUnit.SECONDS).getHeaderValue("Subject"));
+        SmtpMessage first = server.awaitMessage(email -> email.getHeaderValue("Subject").startsWith("F"),
+                                                0, TimeUnit.SECONDS);
+        assertEquals("First", first.getHeaderValue("Subject"));
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testAwaitMessagesTimesOut() throws Exception {
+        server.awaitMessages(1, 10, TimeUnit.MILLISECONDS);
+    }
+
+    private void send(String subject) throws IOException {
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                  .send("HELO client", "250")
+                  .sendMail("sender@here.com", "receiver@there.com", "Subject: " + subject + "\r\n\r\nTest Body")
+                  .send("QUIT", "221");
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkingTest {
+
+    private SimpleSmtpServer server;
+
+    @After
+    public void tearDown() {
+        if (server != null)
+            server.stop();
+    }
+
+    @Test
+    public void testChunkOfRejectedBdatIsSkipped() throws Exception {
+        server = SimpleSmtpServer.start(SimpleSmtpServer.AUTO_SMTP_PORT);
+        sendRejectedChunk();
+    }
+
+    @Test
+    public void testChunkOfRejectedBdatIsSkippedNonBlocking() throws Exception {
+        server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).nonBlocking(1).start();
+        sendRejectedChunk();
+    }
+
+    @Test
+    public void testChunkOfBdatAfterEhloIsSkipped() throws Exception {
+        server = SimpleSmtpServer.start(SimpleSmtpServer.AUTO_SMTP_PORT);
+        String chunk = "HELP\r\n";
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220").write("EHLO client\r\n").expectMultiline("250");
+            client.write("BDAT " + chunk.length() + " LAST\r\n" + chunk)
+                  .expect("503")
+                  .send("NOOP", "250");
+        }
+        assertEquals(0, server.getReceivedEmails().size());
+    }
+
+    @Test
+    public void testChunking() throws Exception {
+        server = SimpleSmtpServer.start(SimpleSmtpServer.AUTO_SMTP_PORT);
+        String first = "Subject: Chunks\r\n\r\n.leading dot\r\n";
+        String second = "no line end";
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220").write("EHLO client\r\n");
+            List<String> ehlo = client.expectMultiline("250");
+            assertTrue(ehlo.contains("CHUNKING"));
+            assertTrue(ehlo.contains("BINARYMIME"));
+            client.send("MAIL FROM:<sender@here.com> BODY=BINARYMIME", "250")
+                  .send("RCPT TO:<receiver@there.com>", "250")
+                  .send("DATA", "503")
+                  .write("BDAT " + first.length() + "\r\n" + first.substring(0, 10))
+                  .write(first.substring(10))
+                  .expect("250 " + first.length() + " octets")
+                  .write("BDAT " + second.length() + "\r\n" + second + "BDAT 0 LAST\r\n")
+                  .expect("250")
+                  .expect("250 Mail delivered")
+                  .send("QUIT", "221");
+        }
+
+        SmtpMessage email = server.getReceivedEmails().poll();
+        assertEquals("Chunks", email.getHeaderValue("Subject"));
+        assertEquals(".leading dot\nno line end\n", email.getBody());
+        assertEquals(first.length() + second.length(), email.getSize());
+        SessionRecord record = email.getSessionRecord();
+        assertTrue(record.getDuration(SessionRecord.Phase.MAIL, SessionRecord.Phase.DATA_START, TimeUnit.NANOSECONDS)
+                   >= 0);
+    }
+
+    /**
+     * Send a chunk holding a command with a BDAT sent before MAIL FROM, then deliver a message to check that the
+     * command did not run.
+     */
+    private void sendRejectedChunk() throws IOException {
+        String chunk = "HELP\r\n";
+        String content = "Subject: Chunked\r\n\r\nbody\r\n";
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                  .send("HELO client", "250")
+                  .write("BDAT " + chunk.length() + "\r\n" + chunk)
+                  .expect("503")
+                  .send("MAIL FROM:<sender@here.com>", "250")
+                  .send("RCPT TO:<receiver@there.com>", "250")
+                  .write("BDAT " + content.length() + " LAST\r\n" + content)
+                  .expect("250")
+                  .send("QUIT", "221");
+        }
+        assertEquals(1, server.getReceivedEmails().size());
+        assertEquals("Chunked", server.getReceivedEmails().peek().getHeaderValue("Subject"));
+    }
+
+}
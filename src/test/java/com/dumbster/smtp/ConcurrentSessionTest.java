@@ -0,0 +1,192 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class ConcurrentSessionTest {
+
+    private static final int CLIENTS = 8;
+
+    private static final long CLIENT_PAUSE_MILLIS = 250;
+
+    @Test
+    public void testSerialSessionsQueueBehindEachOther() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).start()) {
+            long elapsed = sendInParallel(server.getPort());
+
+            assertEquals(CLIENTS, server.getReceivedEmails().size());
+            assertTrue("took " + elapsed + "ms", elapsed >= CLIENTS * CLIENT_PAUSE_MILLIS);
+        }
+    }
+
+    @Test
+    public void testConcurrentSessionsCompleteInParallel() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .maxSessions(CLIENTS)
+                                                       .start()) {
+            long elapsed = sendInParallel(server.getPort());
+
+            assertEquals(CLIENTS, server.getReceivedEmails().size());
+            // serial handling needs CLIENTS * CLIENT_PAUSE_MILLIS, allow twice the ideal 1/N share of it
+            assertTrue("took " + elapsed + "ms", elapsed < 2 * CLIENT_PAUSE_MILLIS);
+        }
+    }
+
+    @Test
+    public void testSessionsBeyondLimitWaitForFreeSlot() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .maxSessions(CLIENTS / 2)
+                                                       .start()) {
+            long elapsed = sendInParallel(server.getPort());
+
+            assertEquals(CLIENTS, server.getReceivedEmails().size());
+            assertTrue("took " + elapsed + "ms", elapsed >= 2 * CLIENT_PAUSE_MILLIS);
+        }
+    }
+
+    @Test
+    public void testVirtualThreadSessionsCompleteInParallel() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .virtualThreads()
+                                                       .start()) {
+            long elapsed = sendInParallel(server.getPort());
+
+            assertEquals(CLIENTS, server.getReceivedEmails().size());
+            assertTrue("took " + elapsed + "ms", elapsed < 2 * CLIENT_PAUSE_MILLIS);
+        }
+    }
+
+    @Test
+    public void testPerSessionExecutorUsesVirtualThreadsWhenAvailable() throws Exception {
+        Method isVirtual;
+        try {
+            isVirtual = Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            isVirtual = null;
+        }
+        assumeTrue("virtual threads need java 21", isVirtual != null);
+
+        ExecutorService executor = SessionExecutors.perSession(2525);
+        try {
+            Thread session = executor.submit(Thread::currentThread).get(1, TimeUnit.SECONDS);
+            assertEquals(true, isVirtual.invoke(session));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSessionThreadsNamedAfterPort() throws Exception {
+        ExecutorService executor = SessionExecutors.fixed(1, 2525);
+        try {
+            assertEquals("smtp-session-2525-1", executor.submit(() -> Thread.currentThread().getName())
+                                                        .get(1, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMultipleAcceptors() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .maxSessions(CLIENTS)
+                                                       .acceptors(4)
+                                                       .backlog(1024)
+                                                       .start()) {
+            long elapsed = sendInParallel(server.getPort());
+
+            assertEquals(CLIENTS, server.getReceivedEmails().size());
+            assertTrue("took " + elapsed + "ms", elapsed < 2 * CLIENT_PAUSE_MILLIS);
+        }
+    }
+
+    @Test
+    public void testReusePortListeners() throws Exception {
+        // falls back to a single listening socket where SO_REUSEPORT is not available
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .nonBlocking(2)
+                                                       .reusePort(4)
+                                                       .start()) {
+            sendInParallel(server.getPort());
+
+            assertEquals(CLIENTS, server.getReceivedEmails().size());
+            assertEquals(CLIENTS, server.getMetrics().getAcceptedConnections());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectAcceptorsWithSerialSessions() throws Exception {
+        SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).acceptors(2).start();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectNonPositiveSessionLimit() {
+        SimpleSmtpServer.builder().maxSessions(0);
+    }
+
+    private static long sendInParallel(int port) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                int n = i;
+                results.add(clients.submit(() -> {
+                    sendSlowly(port, "Mail " + n);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results)
+                result.get(30, TimeUnit.SECONDS);
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    /**
+     * Sends a single mail, but takes its time before doing so.
+     */
+    private static void sendSlowly(int port, String subject) throws IOException, InterruptedException {
+        try (RawSmtpClient client = new RawSmtpClient(port)) {
+            client.expect("220").send("HELO client", "250");
+            Thread.sleep(CLIENT_PAUSE_MILLIS);
+            client.sendMail("sender@here.com", "receiver@there.com", "Subject: " + subject + "\r\n\r\nbody")
+                  .send("QUIT", "221");
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DataStreamingTest {
+
+    private SimpleSmtpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = SimpleSmtpServer.start(SimpleSmtpServer.AUTO_SMTP_PORT);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testBodyLinesLookingLikeCommands() throws Exception {
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220").send("HELO client", "250")
+                  .sendMail("sender@here.com", "receiver@there.com",
+                            "Subject: Commands\r\n\r\nquit\r\nRSET\r\nnoop please")
+                  .send("QUIT", "221");
+        }
+
+        SmtpMessage email = server.getReceivedEmails().poll();
+        assertEquals("Commands", email.getHeaderValue("Subject"));
+        assertEquals("quit\nRSET\nnoop please\n", email.getBody());
+    }
+
+    @Test
+    public void testDotStuffedLines() throws Exception {
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220").send("HELO client", "250")
+                  .sendMail("sender@here.com", "receiver@there.com", "Subject: Dots\r\n\r\n..\r\n..leading\r\nin.side")
+                  .send("QUIT", "221");
+        }
+
+        assertEquals(".\n.leading\nin.side\n", server.getReceivedEmails().poll().getBody());
+    }
+
+    @Test
+    public void testLargeMessage() throws Exception {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 4 * 1024 * 1024)
+            body.append("0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz\r\n");
+
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220").send("HELO client", "250")
+                  .sendMail("sender@here.com", "receiver@there.com", "Subject: Large\r\n\r\n" + body)
+                  .send("QUIT", "221");
+        }
+
+        SmtpMessage email = server.getReceivedEmails().poll();
+        assertEquals("Large", email.getHeaderValue("Subject"));
+        assertEquals(body.toString().replace("\r\n", "\n") + "\n", email.getBody());
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FaultInjectionTest {
+
+    private SimpleSmtpServer server;
+
+    @After
+    public void tearDown() {
+        if (server != null)
+            server.stop();
+    }
+
+    @Test
+    public void testDelayedReplyDoesNotBlockOtherSessions() throws Exception {
+        start(FaultProfile.builder().delay("MAIL", 500, TimeUnit.MILLISECONDS), true);
+        try (RawSmtpClient slow = new RawSmtpClient(server.getPort());
+             RawSmtpClient fast = new RawSmtpClient(server.getPort())) {
+            slow.expect("220").send("HELO slow", "250");
+            fast.expect("220").send("HELO fast", "250");
+
+            long start = System.nanoTime();
+            slow.write("MAIL FROM:<sender@here.com>\r\n");
+            fast.send("NOOP", "250");
+            assertTrue(elapsedMillis(start) < 250);
+            slow.expect("250");
+            assertTrue(elapsedMillis(start) >= 500);
+        }
+    }
+
+    @Test
+    public void testDelayedReplyBlocking() throws Exception {
+        start(FaultProfile.builder().delay(FaultProfile.GREETING, 300, TimeUnit.MILLISECONDS), false);
+        long start = System.nanoTime();
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220");
+            assertTrue(elapsedMillis(start) >= 300);
+        }
+    }
+
+    @Test
+    public void testErrorReplies() throws Exception {
+        start(FaultProfile.builder().error("RCPT", 1, 452), false);
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                .send("HELO client", "250")
+                .send("MAIL FROM:<sender@here.com>", "250")
+                .send("RCPT TO:<receiver@there.com>", "452")
+                .send("RCPT TO:<receiver@there.com>", "452");
+        }
+        server.stop();
+
+        start(FaultProfile.builder().error(FaultProfile.END_OF_DATA, 1, 451), false);
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                .send("HELO client", "250")
+                .send("MAIL FROM:<sender@here.com>", "250")
+                .send("RCPT TO:<receiver@there.com>", "250")
+                .send("DATA", "354")
+                .send("Subject: Test\r\n\r\nTest Body\r\n.", "451")
+                .send("MAIL FROM:<sender@here.com>", "250");
+        }
+        assertEquals(0, server.getReceivedEmails().size());
+    }
+
+    @Test
+    public void testChunkIsSkippedAfterError() throws Exception {
+        start(FaultProfile.builder().error("BDAT", 1, 451), true);
+        String chunk = "RSET\r\nQUIT\r\n";
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                .send("HELO client", "250")
+                .send("MAIL FROM:<sender@here.com>", "250")
+                .send("RCPT TO:<receiver@there.com>", "250")
+                .write("BDAT " + chunk.length() + " LAST\r\n" + chunk)
+                .expect("451")
+                .send("RCPT TO:<receiver@there.com>", "250")
+                .send("NOOP", "250");
+        }
+        assertEquals(0, server.getReceivedEmails().size());
+    }
+
+    @Test
+    public void testServiceNotAvailableClosesConnection() throws Exception {
+        start(FaultProfile.builder().error("MAIL", 1, 421), true);
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                .send("HELO client", "250")
+                .send("MAIL FROM:<sender@here.com>", "421");
+            assertNull(client.readLine());
+        }
+    }
+
+    @Test
+    public void testDisconnect() throws Exception {
+        start(FaultProfile.builder().disconnect("DATA", 1), false);
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                .send("HELO client", "250")
+                .send("MAIL FROM:<sender@here.com>", "250")
+                .send("RCPT TO:<receiver@there.com>", "250")
+                .write("DATA\r\n");
+            assertNull(client.readLine());
+        }
+    }
+
+    @Test
+    public void testRandomErrorsAreReproducible() throws Exception {
+        start(FaultProfile.builder().error("NOOP", 0.5, 451).seed(42), true);
+        int errors = countErrors(100);
+        assertTrue("errors: " + errors, errors > 0 && errors < 100);
+        server.stop();
+
+        start(FaultProfile.builder().error("NOOP", 0.5, 451).seed(42), true);
+        assertEquals(errors, countErrors(100));
+    }
+
+    @Test
+    public void testDataBandwidth() throws Exception {
+        start(FaultProfile.builder().dataBandwidth(256 * 1024), true);
+        StringBuilder content = new StringBuilder("Subject: Test\r\n\r\n");
+        while (content.length() < 128 * 1024)
+            content.append("0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz\r\n");
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220").send("HELO client", "250");
+            long start = System.nanoTime();
+            client.sendMail("sender@here.com", "receiver@there.com", content.toString());
+            assertTrue(elapsedMillis(start) >= 450);
+        }
+        assertEquals(1, server.getReceivedEmails().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectUnknownCommand() {
+        FaultProfile.builder().delay("SEND", 1, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectUnsupportedErrorCode() {
+        FaultProfile.builder().error("MAIL", 0.5, 550);
+    }
+
+    private void start(FaultProfile.Builder faults, boolean nonBlocking) throws IOException {
+        SimpleSmtpServer.Builder builder = SimpleSmtpServer.builder()
+                                                           .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                           .faults(faults.build());
+        server = nonBlocking ? builder.nonBlocking(1).start() : builder.maxSessions(4).start();
+    }
+
+    private int countErrors(int attempts) throws IOException {
+        int errors = 0;
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220").send("HELO client", "250");
+            for (int i = 0; i < attempts; i++) {
+                client.write("NOOP\r\n");
+                if (client.readLine().startsWith("451"))
+                    errors++;
+            }
+        }
+        return errors;
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+}
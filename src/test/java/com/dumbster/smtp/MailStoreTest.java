@@ -0,0 +1,374 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MailStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDropOldestOnMessageLimit() {
+        MailStore store = MailStore.bounded(2, Long.MAX_VALUE, EvictionPolicy.DROP_OLDEST);
+        assertTrue(store.offer(message("1")));
+        assertTrue(store.offer(message("2")));
+        assertTrue(store.offer(message("3")));
+
+        assertEquals(2, store.size());
+        assertEquals("2", store.poll().getHeaderValue("Subject"));
+        assertEquals("3", store.poll().getHeaderValue("Subject"));
+        assertEquals(1, store.getEvictedCount());
+        assertEquals(0, store.getRejectedCount());
+    }
+
+    @Test
+    public void testDropOldestOnByteLimit() {
+        SmtpMessage first = message("1");
+        MailStore store = MailStore.bounded(10, 2 * first.getSize(), EvictionPolicy.DROP_OLDEST);
+        store.offer(first);
+        store.offer(message("2"));
+        store.offer(message("3"));
+
+        assertEquals(2, store.size());
+        assertEquals("2", store.peek().getHeaderValue("Subject"));
+        assertEquals(1, store.getEvictedCount());
+    }
+
+    @Test
+    public void testRejectWhenFull() {
+        MailStore store = MailStore.bounded(1, Long.MAX_VALUE, EvictionPolicy.REJECT);
+        assertTrue(store.offer(message("1")));
+        assertFalse(store.offer(message("2")));
+
+        assertEquals("1", store.poll().getHeaderValue("Subject"));
+        assertTrue(store.offer(message("3")));
+        assertEquals(1, store.getRejectedCount());
+        assertEquals(0, store.getEvictedCount());
+    }
+
+    @Test
+    public void testRejectMessageLargerThanStore() {
+        SmtpMessage message = message("1");
+        MailStore store = MailStore.bounded(10, message.getSize() - 1, EvictionPolicy.DROP_OLDEST);
+
+        assertFalse(store.offer(message));
+        assertTrue(store.exceedsCapacity(message));
+        assertEquals(1, store.getRejectedCount());
+    }
+
+    @Test
+    public void testSpillOldestToDisk() throws Exception {
+        File directory = folder.newFolder();
+        MailStore store = MailStore.spilling(1, Long.MAX_VALUE, directory.toPath());
+        store.offer(message("1"));
+        store.offer(message("2"));
+
+        assertEquals("2", store.peek().getHeaderValue("Subject"));
+        assertEquals(1, store.getEvictedCount());
+        File[] spilled = directory.listFiles();
+        assertEquals(1, spilled.length);
+        assertEquals("Subject: 1\r\nMessage-ID: <1@here.com>\r\n\r\nbody\r\n",
+                     new String(Files.readAllBytes(spilled[0].toPath()), ISO_8859_1));
+    }
+
+    @Test
+    public void testSpillKeepsRawContentAndExistingFiles() throws Exception {
+        File directory = folder.newFolder();
+        SmtpMessage first = message("1");
+        MailStore store = MailStore.spilling(1, Long.MAX_VALUE, directory.toPath());
+        store.offer(first);
+        store.offer(message("2"));
+
+        MailStore reused = MailStore.spilling(1, Long.MAX_VALUE, directory.toPath());
+        reused.offer(message("3"));
+        reused.offer(message("4"));
+
+        File[] spilled = directory.listFiles();
+        Arrays.sort(spilled);
+        assertEquals(2, spilled.length);
+        assertEquals(first.getRawMessage(), ByteBuffer.wrap(Files.readAllBytes(spilled[0].toPath())));
+        assertEquals("3", new SmtpMessage(Files.readAllBytes(spilled[1].toPath())).getHeaderValue("Subject"));
+    }
+
+    @Test
+    public void testIteratorRemoveFreesSpace() {
+        MailStore store = MailStore.bounded(1, Long.MAX_VALUE, EvictionPolicy.REJECT);
+        store.offer(message("1"));
+        Iterator<SmtpMessage> iterator = store.iterator();
+        iterator.next();
+        iterator.remove();
+
+        assertTrue(store.isEmpty());
+        assertTrue(store.offer(message("2")));
+    }
+
+    @Test
+    public void testMappedStoreKeepsMessagesInSegments() throws Exception {
+        File directory = folder.newFolder();
+        SmtpMessage first = message("1");
+        MailStore store = MailStore.mapped(directory.toPath(), 2 * first.getSize());
+        store.offer(first);
+        store.offer(message("2"));
+        store.offer(message("3"));
+
+        assertEquals(3, store.size());
+        assertEquals(2, directory.listFiles().length);
+        SmtpMessage polled = store.poll();
+        assertEquals("1", polled.getHeaderValue("Subject"));
+        assertEquals("body\n", polled.getBody());
+        assertEquals(first.getSize(), polled.getSize());
+
+        store.poll();
+        assertEquals(1, directory.listFiles().length);
+        assertEquals("3", store.peek().getHeaderValue("Subject"));
+        store.clear();
+        assertTrue(store.isEmpty());
+    }
+
+    @Test
+    public void testMappedStoreReceivesMessages() throws Exception {
+        MailStore store = MailStore.mapped(folder.newFolder().toPath());
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .mailStore(store)
+                                                       .start();
+             RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+
+            client.expect("220").send("HELO client", "250")
+                  .sendMail("sender@here.com", "receiver@there.com", "Subject: 1\r\n\r\nline\r\n..dot\r\nend")
+                  .send("QUIT", "221");
+
+            SmtpMessage message = server.getReceivedEmailCopy().get(0);
+            assertEquals("1", message.getHeaderValue("Subject"));
+            assertEquals("line\n.dot\nend\n", message.getBody());
+
+            assertTrue(server.getReceivedEmails().contains(message));
+            assertFalse(server.getReceivedEmails().contains(new SmtpMessage()));
+            assertFalse(server.getReceivedEmails().remove(new SmtpMessage()));
+            assertTrue(server.getReceivedEmails().remove(message));
+            assertFalse(server.getReceivedEmails().contains(message));
+            assertFalse(server.getReceivedEmails().remove(message));
+            assertTrue(server.getReceivedEmails().isEmpty());
+        }
+    }
+
+    @Test
+    public void testMappedStoresShareDirectory() throws Exception {
+        File directory = folder.newFolder();
+        MailStore first = MailStore.mapped(directory.toPath(), 4096);
+        receive(first, "1");
+
+        // both numbered after the segment of the first store, one of them has to skip the number taken
+        MailStore second = MailStore.mapped(directory.toPath(), 4096);
+        MailStore third = MailStore.mapped(directory.toPath(), 4096);
+        receive(second, "2");
+        receive(third, "3");
+
+        assertEquals(3, directory.listFiles().length);
+        assertEquals("1", first.peek().getHeaderValue("Subject"));
+        assertEquals("2", second.peek().getHeaderValue("Subject"));
+        assertEquals("3", third.peek().getHeaderValue("Subject"));
+
+        second.close();
+        assertTrue(second.isEmpty());
+        assertEquals(2, directory.listFiles().length);
+        first.close();
+        third.close();
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void testClosingPartitionedStoreDeletesSegments() throws Exception {
+        File directory = folder.newFolder();
+        PartitionedMailStore store = MailStore.partitioned(PartitionRule.recipientDomain(),
+                                                           () -> MailStore.mapped(directory.toPath(), 4096));
+        store.partition("one.com");
+        store.partition("two.com");
+        store.offer(message("1", "sender@here.com", "a@one.com"));
+        store.offer(message("2", "sender@here.com", "b@two.com"));
+        assertEquals(2, directory.listFiles().length);
+        SmtpMessage first = store.peek();
+        assertTrue(store.contains(first));
+        assertTrue(store.remove(first));
+        assertEquals(1, store.size());
+
+        store.close();
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void testServerRepliesWhenStoreIsFull() throws Exception {
+        MailStore store = MailStore.bounded(1, 100, EvictionPolicy.REJECT);
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .mailStore(store)
+                                                       .start();
+             RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+
+            client.expect("220").send("HELO client", "250")
+                  .sendMail("sender@here.com", "receiver@there.com", "Subject: 1\r\n\r\nbody");
+            client.send("MAIL FROM:<sender@here.com>", "250")
+                  .send("RCPT TO:<receiver@there.com>", "250")
+                  .send("DATA", "354")
+                  .send("Subject: 2\r\n\r\nbody\r\n.", "452");
+            client.send("MAIL FROM:<sender@here.com>", "250")
+                  .send("RCPT TO:<receiver@there.com>", "250")
+                  .send("DATA", "354")
+                  .send("Subject: 3\r\n\r\n" + new String(new char[100]).replace('\0', 'x') + "\r\n.", "552")
+                  .send("QUIT", "221");
+
+            assertEquals(1, server.getReceivedEmails().size());
+            assertEquals(2, store.getRejectedCount());
+        }
+    }
+
+    @Test
+    public void testFindMessages() {
+        for (MailStore store : new MailStore[] {MailStore.unbounded(),
+                                                MailStore.bounded(2, Long.MAX_VALUE, EvictionPolicy.DROP_OLDEST)}) {
+            SmtpMessage first = message("1", "sender@here.com", "a@there.com", "B@there.com");
+            SmtpMessage second = message("2", "other@here.com", "b@there.com");
+            store.offer(first);
+            store.offer(second);
+
+            assertEquals(Arrays.asList(first, second), store.findByRecipient("<b@THERE.com>"));
+            assertEquals(Collections.singletonList(second), store.findBySender("other@here.com"));
+            assertEquals(Collections.singletonList(first), store.findBySubject("1"));
+            assertEquals(Collections.singletonList(second), store.findByMessageId("2@here.com"));
+
+            store.poll();
+            assertEquals(Collections.singletonList(second), store.findByRecipient("b@there.com"));
+            store.offer(message("3", "sender@here.com", "b@there.com"));
+            assertEquals(Collections.singletonList("3"), subjects(store.findBySender("sender@here.com")));
+            store.clear();
+            assertTrue(store.findByRecipient("b@there.com").isEmpty());
+        }
+    }
+
+    @Test
+    public void testFindMessagesInMappedStore() throws Exception {
+        MailStore store = MailStore.mapped(folder.newFolder().toPath());
+        store.offer(message("1", "sender@here.com", "a@there.com"));
+        store.offer(message("2", "sender@here.com", "b@there.com"));
+
+        List<SmtpMessage> found = store.findBySender("sender@here.com");
+        assertEquals(Arrays.asList("1", "2"), subjects(found));
+        assertEquals(Collections.singletonList("b@there.com"), found.get(1).getEnvelopeRecipients());
+        store.poll();
+        assertTrue(store.findByRecipient("a@there.com").isEmpty());
+    }
+
+    @Test
+    public void testServerCapturesEnvelope() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).start();
+             RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+
+            client.expect("220").send("HELO client", "250")
+                  .send("MAIL FROM:<sender@here.com> SIZE=100", "250")
+                  .send("RCPT TO:<a@there.com>", "250")
+                  .send("RCPT TO: b@there.com", "250")
+                  .send("DATA", "354")
+                  .send("Subject: 1\r\nMessage-ID: <1@here.com>\r\n\r\nbody\r\n.", "250")
+                  .send("QUIT", "221");
+
+            SmtpMessage message = server.getReceivedEmails().peek();
+            assertEquals("sender@here.com", message.getEnvelopeSender());
+            assertEquals(Arrays.asList("a@there.com", "b@there.com"), message.getEnvelopeRecipients());
+            assertEquals(Collections.singletonList(message), server.findByRecipient("b@there.com"));
+            assertEquals(Collections.singletonList(message), server.findByMessageId("<1@here.com>"));
+        }
+    }
+
+    @Test
+    public void testIndexingLeavesHeadersUnparsed() throws Exception {
+        List<MailStore> stores =
+            Arrays.asList(MailStore.unbounded(), MailStore.bounded(10, 1000, EvictionPolicy.REJECT));
+        for (MailStore store : stores) {
+            try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                           .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                           .mailStore(store)
+                                                           .start();
+                 RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+
+                client.expect("220").send("HELO client", "250")
+                      .sendMail("sender@here.com", "receiver@there.com", "Subject: Lazy\r\n\r\nbody")
+                      .send("QUIT", "221");
+
+                SmtpMessage message = store.peek();
+                assertFalse(message.isHeadersParsed());
+                assertEquals(Collections.singletonList(message), store.findBySubject("Lazy"));
+                assertFalse(message.isHeadersParsed());
+                assertEquals("Lazy", message.getHeaderValue("Subject"));
+                assertTrue(message.isHeadersParsed());
+            }
+        }
+    }
+
+    /**
+     * Deliver a message to a server storing it in the given store, then stop the server.
+     */
+    private static void receive(MailStore store, String subject) throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .mailStore(store)
+                                                       .start();
+             RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220").send("HELO client", "250")
+                  .sendMail("sender@here.com", "receiver@there.com", "Subject: " + subject + "\r\n\r\nbody")
+                  .send("QUIT", "221");
+        }
+    }
+
+    private static List<String> subjects(List<SmtpMessage> messages) {
+        return messages.stream().map(message -> message.getHeaderValue("Subject")).collect(Collectors.toList());
+    }
+
+    private static SmtpMessage message(String subject, String sender, String... recipients) {
+        SmtpMessage message = message(subject);
+        message.setEnvelopeSender(sender);
+        for (String recipient : recipients)
+            message.addEnvelopeRecipient(recipient);
+        return message;
+    }
+
+    private static SmtpMessage message(String subject) {
+        byte[] data = ("Subject: " + subject + "\r\nMessage-ID: <" + subject + "@here.com>\r\n\r\nbody\r\n")
+            .getBytes(ISO_8859_1);
+        SmtpMessage message = new SmtpMessage();
+        message.storeData(data, data.length);
+        return message;
+    }
+
+}
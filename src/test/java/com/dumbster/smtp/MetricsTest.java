@@ -0,0 +1,196 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetricsTest {
+
+    private SimpleSmtpServer server;
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).start();
+        SmtpMetrics metrics = server.getMetrics();
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                .send("HELO client", "250")
+                .sendMail("sender@here.com", "receiver@there.com", "Subject: Test\r\n\r\nTest Body")
+                .sendMail("sender@here.com", "receiver@there.com", "Subject: Test\r\n\r\nTest Body")
+                .send("QUIT", "221");
+        }
+        awaitValue(0, metrics::getActiveSessions);
+        assertEquals(1, metrics.getAcceptedConnections());
+        assertEquals(0, metrics.getFailedSessions());
+        assertEquals(2, metrics.getMessagesReceived());
+        assertEquals(2, metrics.getQueueDepth());
+        assertTrue(metrics.getBytesReceived() > 100);
+        assertEquals(2, metrics.getDataTransferTime().getCount());
+
+        Map<String, LatencySnapshot> latency = metrics.getCommandLatency();
+        assertEquals(2, latency.get("MAIL").getCount());
+        assertEquals(1, latency.get("QUIT").getCount());
+        assertFalse(latency.containsKey("EHLO"));
+        assertTrue(latency.get("MAIL").getMaxNanos() >= latency.get("MAIL").getP50Nanos());
+    }
+
+    @Test
+    public void testRejectedMessagesAndFailedSessions() throws Exception {
+        server = SimpleSmtpServer.builder()
+            .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+            .mailStore(MailStore.bounded(1, Long.MAX_VALUE, EvictionPolicy.REJECT))
+            .start();
+        SmtpMetrics metrics = server.getMetrics();
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                .send("HELO client", "250")
+                .sendMail("sender@here.com", "receiver@there.com", "Subject: Test\r\n\r\nTest Body")
+                .send("MAIL FROM:<sender@here.com>", "250")
+                .send("RCPT TO:<receiver@there.com>", "250")
+                .send("DATA", "354")
+                .send("Subject: Test\r\n\r\nTest Body\r\n.", "452");
+        }
+        // the failure is counted before the session ends
+        awaitValue(0, metrics::getActiveSessions);
+        assertEquals(1, metrics.getFailedSessions());
+        assertEquals(1, metrics.getMessagesReceived());
+        assertEquals(1, metrics.getMessagesRejected());
+    }
+
+    @Test
+    public void testActiveSessionsNonBlocking() throws Exception {
+        server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).nonBlocking(1).start();
+        SmtpMetrics metrics = server.getMetrics();
+        try (RawSmtpClient first = new RawSmtpClient(server.getPort());
+             RawSmtpClient second = new RawSmtpClient(server.getPort())) {
+            first.expect("220");
+            second.expect("220");
+            assertEquals(2, metrics.getActiveSessions());
+            first.send("QUIT", "221");
+            awaitValue(1, metrics::getActiveSessions);
+        }
+        awaitValue(0, metrics::getActiveSessions);
+        assertEquals(2, metrics.getAcceptedConnections());
+        assertEquals(1, metrics.getFailedSessions());
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).jmx().start();
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.dumbster.smtp:type=SimpleSmtpServer,port=" + server.getPort());
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                .send("HELO client", "250")
+                .sendMail("sender@here.com", "receiver@there.com", "Subject: Test\r\n\r\nTest Body")
+                .send("QUIT", "221");
+        }
+        assertEquals(1L, mbeans.getAttribute(name, "MessagesReceived"));
+        assertEquals(1, mbeans.getAttribute(name, "QueueDepth"));
+
+        server.stop();
+        assertFalse(mbeans.isRegistered(name));
+    }
+
+    @Test
+    public void testFailedJmxRegistrationStartsNothing() throws Exception {
+        server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).start();
+        int port = server.getPort();
+        server.stop();
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.dumbster.smtp:type=SimpleSmtpServer,port=" + port);
+        mbeans.registerMBean(new SmtpMetrics(MailStore.unbounded()), name);
+        Set<Thread> threads = Thread.getAllStackTraces().keySet();
+        try {
+            SimpleSmtpServer.builder().port(port).nonBlocking(1).jmx().start();
+            fail("registration should have failed");
+        } catch (IllegalStateException e) {
+            for (Thread thread : Thread.getAllStackTraces().keySet())
+                assertTrue(thread.getName(), threads.contains(thread) || !thread.getName().startsWith("smtp-"));
+        } finally {
+            mbeans.unregisterMBean(name);
+        }
+
+        server = SimpleSmtpServer.builder().port(port).nonBlocking(1).jmx().start();
+        assertTrue(mbeans.isRegistered(name));
+    }
+
+    /**
+     * Sessions are counted as ended only after the connection is closed, which the client may notice earlier.
+     */
+    @Test
+    public void testMeterBinder() throws Exception {
+        server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).start();
+        MeterRegistry registry = new SimpleMeterRegistry();
+        new SmtpMeterBinder(server.getMetrics()).bindTo(registry);
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                .send("HELO client", "250")
+                .sendMail("sender@here.com", "receiver@there.com", "Subject: Test\r\n\r\nTest Body")
+                .send("QUIT", "221");
+        }
+        awaitValue(0, server.getMetrics()::getActiveSessions);
+
+        assertEquals(1, registry.get("smtp.connections.accepted").functionCounter().count(), 0);
+        assertEquals(1, registry.get("smtp.messages.received").functionCounter().count(), 0);
+        assertEquals(1, registry.get("smtp.queue.depth").gauge().value(), 0);
+        assertEquals(1, registry.get("smtp.data.transfer").functionTimer().count(), 0);
+        assertEquals(1, registry.get("smtp.command.latency").tag("command", "MAIL").functionTimer().count(), 0);
+        assertEquals(0, registry.get("smtp.command.latency").tag("command", "EHLO").functionTimer().count(), 0);
+
+        LatencySnapshot mail = server.getMetrics().getCommandLatency().get("MAIL");
+        double p50 = registry.get("smtp.command.latency.percentile").tags("command", "MAIL", "phi", "0.5")
+                             .timeGauge().value(TimeUnit.NANOSECONDS);
+        double p99 = registry.get("smtp.command.latency.percentile").tags("command", "MAIL", "phi", "0.99")
+                             .timeGauge().value(TimeUnit.NANOSECONDS);
+        double max = registry.get("smtp.command.latency.max").tag("command", "MAIL")
+                             .timeGauge().value(TimeUnit.NANOSECONDS);
+        assertEquals(mail.getP50Nanos(), p50, 1);
+        assertEquals(mail.getP99Nanos(), p99, 1);
+        assertEquals(mail.getMaxNanos(), max, 1);
+        assertTrue(p50 > 0 && p50 <= p99);
+        assertEquals(3, registry.find("smtp.data.transfer.percentile").timeGauges().size());
+    }
+
+    private static void awaitValue(long expected, LongSupplier value) throws InterruptedException {
+        for (int i = 0; i < 100 && value.getAsLong() != expected; i++)
+            Thread.sleep(20);
+        assertEquals(expected, value.getAsLong());
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Test;
+
+import javax.activation.DataHandler;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MimePartTest {
+
+    @Test
+    public void testMultipartWithAttachment() throws Exception {
+        byte[] attachment = new byte[10_000];
+        for (int i = 0; i < attachment.length; i++)
+            attachment[i] = (byte) i;
+
+        MimeMessage mime = new MimeMessage(Session.getInstance(new Properties()));
+        mime.setSubject("Attachment");
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("Grüße, a line long enough to be wrapped by quoted-printable encoding, "
+                     + "which happens after seventy-six characters", "UTF-8");
+        text.setHeader("Content-Transfer-Encoding", "quoted-printable");
+        MimeBodyPart file = new MimeBodyPart();
+        file.setDataHandler(new DataHandler(new ByteArrayDataSource(attachment, "application/octet-stream")));
+        file.setFileName("data.bin");
+        file.setHeader("Content-Transfer-Encoding", "base64");
+        MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(text);
+        multipart.addBodyPart(file);
+        mime.setContent(multipart);
+        mime.saveChanges();
+
+        MimePart root = received(mime).getMimePart();
+        assertTrue(root.isMultipart());
+        assertEquals("multipart/mixed", root.getMimeType());
+        assertEquals("Attachment", root.getHeaderValue("subject"));
+
+        List<MimePart> parts = root.getParts();
+        assertEquals(2, parts.size());
+        assertEquals("text/plain", parts.get(0).getMimeType());
+        assertEquals("quoted-printable", parts.get(0).getTransferEncoding());
+        assertEquals("Grüße, a line long enough to be wrapped by quoted-printable encoding, "
+                     + "which happens after seventy-six characters", parts.get(0).getContentAsString());
+
+        MimePart data = parts.get(1);
+        assertEquals("data.bin", data.getFileName());
+        assertFalse(data.isMultipart());
+        assertTrue(data.getParts().isEmpty());
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try (InputStream in = data.getContent()) {
+            int b;
+            while ((b = in.read()) >= 0)
+                decoded.write(b);
+        }
+        assertArrayEquals(attachment, decoded.toByteArray());
+    }
+
+    @Test
+    public void testNestedMultipart() {
+        String content = "Content-Type: multipart/mixed; boundary=\"outer\"\r\n"
+                         + "\r\n"
+                         + "preamble\r\n"
+                         + "--outer\r\n"
+                         + "Content-Type: multipart/alternative; boundary=outer-inner\r\n"
+                         + "\r\n"
+                         + "--outer-inner\r\n"
+                         + "\r\n"
+                         + "plain\r\n"
+                         + "--outer-inner\r\n"
+                         + "Content-Type: text/html; charset=ISO-8859-1\r\n"
+                         + "\r\n"
+                         + "<p>html</p>\r\n"
+                         + "--outer-inner--\r\n"
+                         + "--outer--\r\n"
+                         + "epilogue\r\n";
+        MimePart root = received(content).getMimePart();
+
+        assertEquals(1, root.getParts().size());
+        List<MimePart> alternatives = root.getParts().get(0).getParts();
+        assertEquals(2, alternatives.size());
+        assertEquals("text/plain", alternatives.get(0).getMimeType());
+        assertEquals("plain", alternatives.get(0).getContentAsString());
+        assertEquals("ISO-8859-1", alternatives.get(1).getContentTypeParameter("charset"));
+        assertEquals("<p>html</p>", alternatives.get(1).getContentAsString());
+    }
+
+    @Test
+    public void testSimpleMessage() {
+        SmtpMessage message = new SmtpMessage();
+        message.store(new SmtpResponse(-1, "", SmtpState.DATA_HDR), "Subject: Plain");
+        message.store(new SmtpResponse(-1, "", SmtpState.DATA_BODY), "body");
+
+        MimePart root = message.getMimePart();
+        assertEquals("text/plain", root.getMimeType());
+        assertEquals("7bit", root.getTransferEncoding());
+        assertNull(root.getFileName());
+        assertEquals("body\r\n", root.getContentAsString());
+    }
+
+    private static SmtpMessage received(MimeMessage mime) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mime.writeTo(out);
+        return received(new String(out.toByteArray(), ISO_8859_1));
+    }
+
+    private static SmtpMessage received(String content) {
+        byte[] data = content.getBytes(ISO_8859_1);
+        SmtpMessage message = new SmtpMessage();
+        message.storeData(data, data.length);
+        return message;
+    }
+
+}
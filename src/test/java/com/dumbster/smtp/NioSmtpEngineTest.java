@@ -0,0 +1,142 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class NioSmtpEngineTest {
+
+    private SimpleSmtpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).nonBlocking(2).start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testSend() throws Exception {
+        Properties mailProps = new Properties();
+        mailProps.setProperty("mail.smtp.host", "localhost");
+        mailProps.setProperty("mail.smtp.port", String.valueOf(server.getPort()));
+        mailProps.setProperty("mail.smtp.ehlo", "false");
+        Session session = Session.getInstance(mailProps, null);
+
+        MimeMessage msg = new MimeMessage(session);
+        msg.setFrom(new InternetAddress("sender@here.com"));
+        msg.setSubject("Test");
+        msg.setText("Test Body");
+        msg.setRecipient(Message.RecipientType.TO, new InternetAddress("receiver@there.com"));
+        Transport.send(msg);
+
+        assertEquals(1, server.getReceivedEmails().size());
+        SmtpMessage email = server.getReceivedEmails().poll();
+        assertEquals("Test", email.getHeaderValue("Subject"));
+        assertEquals("Test Body\n", email.getBody());
+        assertNotNull(email.getSessionRecord().getClientAddress());
+        assertNotNull(email.getSessionRecord().getHeloName());
+    }
+
+    @Test
+    public void testLineTooLong() throws Exception {
+        char[] local = new char[100_000];
+        Arrays.fill(local, 'a');
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                  .send("HELO client", "250")
+                  .send("MAIL FROM:<" + new String(local) + "@here.com>", "500")
+                  .sendMail("sender@here.com", "receiver@there.com", "Subject: After\r\n\r\nbody")
+                  .send("QUIT", "221");
+        }
+        assertEquals(1, server.getReceivedEmails().size());
+        assertEquals("After", server.getReceivedEmails().peek().getHeaderValue("Subject"));
+    }
+
+    @Test
+    public void testRepliesAreAppendedToPendingOutput() {
+        ByteBuffer pending = ByteBuffer.wrap(bytes("250 OK\r\n250 OK\r\n"));
+        pending.position(4);
+        assertEquals("OK\r\n250 OK\r\n421 bye\r\n", string(NioSmtpEngine.append(pending, bytes("421 bye\r\n"))));
+
+        pending.position(pending.limit());
+        assertEquals("421 bye\r\n", string(NioSmtpEngine.append(pending, bytes("421 bye\r\n"))));
+        assertEquals("421 bye\r\n", string(NioSmtpEngine.append(null, bytes("421 bye\r\n"))));
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(ISO_8859_1);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        return ISO_8859_1.decode(buffer).toString();
+    }
+
+    @Test
+    public void testManyConcurrentConnections() throws Exception {
+        List<RawSmtpClient> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < 2000; i++)
+                clients.add(new RawSmtpClient(server.getPort()).expect("220"));
+            for (RawSmtpClient client : clients)
+                client.send("HELO client", "250");
+            for (RawSmtpClient client : clients)
+                client.sendMail("sender@here.com", "receiver@there.com", "Subject: Test\r\n\r\nbody")
+                      .send("QUIT", "221");
+        } finally {
+            for (RawSmtpClient client : clients)
+                client.close();
+        }
+
+        assertEquals(2000, server.getReceivedEmails().size());
+    }
+
+    @Test
+    public void testLinesSplitAcrossPackets() throws Exception {
+        String transaction = "HELO client\r\nMAIL FROM:<sender@here.com>\r\nRCPT TO:<receiver@there.com>\r\nDATA\r\n"
+                             + "Subject: Split\r\n\r\nbody\r\n.\r\nQUIT\r\n";
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220");
+            for (char c : transaction.toCharArray())
+                client.write(String.valueOf(c));
+            client.expect("250").expect("250").expect("250").expect("354").expect("250").expect("221");
+        }
+
+        assertEquals("Split", server.getReceivedEmails().poll().getHeaderValue("Subject"));
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PartitionedMailStoreTest {
+
+    @Test
+    public void testRouteByRecipientTag() {
+        PartitionedMailStore store = MailStore.partitioned(PartitionRule.recipientTag());
+        MailStore a = store.partition("a");
+        MailStore b = store.partition("b");
+        MailStore defaultPartition = store.partition(PartitionedMailStore.DEFAULT_PARTITION);
+        store.offer(message("1", "user+a@there.com"));
+        store.offer(message("2", "other@there.com", "user+B@there.com"));
+        store.offer(message("3", "user@there.com"));
+        store.offer(message("4", "user+a@there.com"));
+        store.offer(message("5", "user+unknown@there.com"));
+
+        assertEquals(Arrays.asList("1", "4"), subjects(a));
+        assertEquals(Collections.singletonList("2"), subjects(b));
+        assertEquals(Collections.singletonList("3"), subjects(defaultPartition));
+        assertEquals(4, store.size());
+        assertEquals(1, store.getDroppedCount());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "")), store.getPartitionKeys());
+        assertEquals(Collections.singletonList("4"), subjects(store.findBySubject("4")));
+
+        a.clear();
+        assertEquals(2, store.size());
+        store.removePartition("b");
+        assertTrue(store.offer(message("6", "user+b@there.com")));
+        assertEquals(Collections.singletonList("3"), subjects(store));
+        assertEquals(2, store.getDroppedCount());
+        assertEquals(new HashSet<>(Arrays.asList("a", "")), store.getPartitionKeys());
+    }
+
+    @Test
+    public void testMixedCaseKeys() {
+        PartitionedMailStore store = MailStore.partitioned(PartitionRule.header("X-Partition"));
+        MailStore alice = store.partition("Alice");
+        assertSame(alice, store.partition("ALICE"));
+        store.offer(message("1", "u+Alice@e.f"));
+        byte[] data = "X-Partition: aLiCe\r\nSubject: 2\r\n\r\nbody\r\n".getBytes(ISO_8859_1);
+        SmtpMessage tagged = new SmtpMessage();
+        tagged.storeData(data, data.length);
+        store.offer(tagged);
+
+        PartitionedMailStore byTag = MailStore.partitioned(PartitionRule.recipientTag());
+        MailStore bob = byTag.partition("Bob");
+        byTag.offer(message("3", "u+Bob@e.f"));
+
+        assertEquals(Collections.singletonList("2"), subjects(alice));
+        assertEquals(Collections.singletonList("1"), subjects(store.partition(PartitionedMailStore.DEFAULT_PARTITION)));
+        assertEquals(Collections.singletonList("3"), subjects(bob));
+        assertTrue(byTag.partition(PartitionedMailStore.DEFAULT_PARTITION).isEmpty());
+        byTag.removePartition("BOB");
+        assertEquals(Collections.singleton(PartitionedMailStore.DEFAULT_PARTITION), byTag.getPartitionKeys());
+    }
+
+    @Test
+    public void testRemovePartitionWhileDelivering() throws Exception {
+        List<RecordingStore> created = new CopyOnWriteArrayList<>();
+        PartitionedMailStore store = MailStore.partitioned(PartitionRule.recipientTag(), () -> {
+            RecordingStore partition = new RecordingStore();
+            created.add(partition);
+            return partition;
+        });
+        int count = 20000;
+        for (int round = 0; round < 10; round++) {
+            MailStore partition = store.partition("a");
+            CountDownLatch started = new CountDownLatch(1);
+            Thread sender = new Thread(() -> {
+                for (int i = 0; i < count; i++) {
+                    SmtpMessage message = message(String.valueOf(i), "user+a@there.com");
+                    byte[] content = "Subject: x\r\n\r\nbody\r\n".getBytes(ISO_8859_1);
+                    store.receive(message, content, content.length);
+                    started.countDown();
+                }
+            });
+            sender.start();
+            started.await();
+            store.removePartition("a");
+            sender.join();
+            assertTrue(partition.isEmpty());
+        }
+        for (RecordingStore partition : created)
+            assertEquals(0, partition.storedAfterClose.get());
+        assertEquals(10L * count, store.getDroppedCount() + stored(created));
+    }
+
+    @Test
+    public void testRouteByDomainOrHeader() {
+        PartitionRule domain = PartitionRule.recipientDomain();
+        PartitionRule header = PartitionRule.header("X-Partition");
+        SmtpMessage message = message("1", "user@There.com");
+        assertEquals("there.com", domain.partitionOf(message));
+        assertNull(header.partitionOf(message));
+        assertEquals("there.com", header.orElse(domain).partitionOf(message));
+
+        byte[] data = "X-Partition: p1\r\nSubject: 2\r\n\r\nbody\r\n".getBytes(ISO_8859_1);
+        SmtpMessage tagged = new SmtpMessage();
+        tagged.storeData(data, data.length);
+        assertEquals("p1", header.orElse(domain).partitionOf(tagged));
+    }
+
+    @Test
+    public void testMailboxesOnSharedServer() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .maxSessions(4)
+                                                       .mailStore(MailStore.partitioned(Mailbox.RULE))
+                                                       .start()) {
+            Mailbox first = new Mailbox(server, "test1");
+            Mailbox second = new Mailbox(server, "test2");
+            assertEquals("user+test1@there.com", first.address("user@there.com"));
+            CompletableFuture<SmtpMessage> awaited = second.getMessages().awaitMessageAsync(message -> true);
+
+            try (RawSmtpClient client = new RawSmtpClient(first.getPort())) {
+                client.expect("220").send("HELO client", "250")
+                      .sendMail("sender@here.com", first.address("user@there.com"), "Subject: 1\r\n\r\nbody")
+                      .sendMail("sender@here.com", "user@there.com",
+                                "Subject: 2\r\n" + Mailbox.PARTITION_HEADER + ": test2\r\n\r\nbody")
+                      .send("QUIT", "221");
+            }
+
+            assertEquals(Collections.singletonList("1"), subjects(first.awaitMessages(1, 5, TimeUnit.SECONDS)));
+            assertEquals("2", awaited.get(5, TimeUnit.SECONDS).getHeaderValue("Subject"));
+            assertEquals(2, server.getReceivedEmails().size());
+
+            first.reset();
+            assertTrue(first.getMessages().isEmpty());
+            assertEquals(1, second.getMessages().size());
+            second.close();
+            try (RawSmtpClient client = new RawSmtpClient(second.getPort())) {
+                client.expect("220").send("HELO client", "250")
+                      .sendMail("sender@here.com", second.address("user@there.com"), "Subject: 3\r\n\r\nlate")
+                      .send("QUIT", "221");
+            }
+            PartitionedMailStore store = (PartitionedMailStore) server.getMailStore();
+            assertFalse(store.getPartitionKeys().contains("test2"));
+            assertTrue(store.partition(PartitionedMailStore.DEFAULT_PARTITION).isEmpty());
+            assertEquals(1, store.getDroppedCount());
+        }
+    }
+
+    @Test
+    public void testRemoveDefaultPartition() {
+        PartitionedMailStore store = MailStore.partitioned(PartitionRule.recipientTag(),
+                                                           () -> MailStore.bounded(10, 10, EvictionPolicy.REJECT));
+        SmtpMessage untagged = message("1", "user@there.com");
+        assertTrue(store.exceedsCapacity(untagged));
+
+        store.removePartition(PartitionedMailStore.DEFAULT_PARTITION);
+        assertFalse(store.exceedsCapacity(untagged));
+        assertTrue(store.offer(untagged));
+        assertTrue(store.isEmpty());
+        assertEquals(1, store.getDroppedCount());
+        assertTrue(store.getPartitionKeys().isEmpty());
+    }
+
+    private static long stored(List<RecordingStore> partitions) {
+        long stored = 0;
+        for (RecordingStore partition : partitions)
+            stored += partition.stored.get();
+        return stored;
+    }
+
+    private static List<String> subjects(Iterable<SmtpMessage> messages) {
+        List<String> subjects = new ArrayList<>();
+        for (SmtpMessage message : messages)
+            subjects.add(message.getHeaderValue("Subject"));
+        return subjects;
+    }
+
+    private static SmtpMessage message(String subject, String... recipients) {
+        byte[] data = ("Subject: " + subject + "\r\n\r\nbody\r\n").getBytes(ISO_8859_1);
+        SmtpMessage message = new SmtpMessage();
+        message.storeData(data, data.length);
+        for (String recipient : recipients)
+            message.addEnvelopeRecipient(recipient);
+        return message;
+    }
+
+    /**
+     * Counts messages stored, and messages stored once the partition has been closed.
+     */
+    private static final class RecordingStore extends MailStore {
+
+        private final Queue<SmtpMessage> messages = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger stored = new AtomicInteger();
+
+        private final AtomicInteger storedAfterClose = new AtomicInteger();
+
+        private volatile boolean closed;
+
+        @Override
+        public boolean offer(SmtpMessage message) {
+            (closed ? storedAfterClose : stored).incrementAndGet();
+            return messages.offer(message);
+        }
+
+        @Override
+        public SmtpMessage poll() {
+            return messages.poll();
+        }
+
+        @Override
+        public SmtpMessage peek() {
+            return messages.peek();
+        }
+
+        @Override
+        public Iterator<SmtpMessage> iterator() {
+            return messages.iterator();
+        }
+
+        @Override
+        public int size() {
+            return messages.size();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+}
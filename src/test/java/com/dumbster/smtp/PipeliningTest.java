@@ -0,0 +1,69 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PipeliningTest {
+
+    private SimpleSmtpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = SimpleSmtpServer.start(SimpleSmtpServer.AUTO_SMTP_PORT);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220").write("EHLO client\r\n");
+            List<String> ehlo = client.expectMultiline("250");
+            assertEquals("localhost Hello client", ehlo.get(0));
+            assertTrue(ehlo.contains("PIPELINING"));
+            client.write("MAIL FROM:<sender@here.com>\r\n"
+                         + "RCPT TO:<a@there.com>\r\n"
+                         + "RCPT TO:<b@there.com>\r\n"
+                         + "DATA\r\n")
+                  .expect("250").expect("250").expect("250").expect("354")
+                  .write("Subject: Pipelined\r\n\r\nbody\r\n.\r\n"
+                         + "MAIL FROM:<sender@here.com>\r\n"
+                         + "RCPT TO:<c@there.com>\r\n"
+                         + "DATA\r\n")
+                  .expect("250").expect("250").expect("250").expect("354")
+                  .send("Subject: Second\r\n\r\nbody\r\n.", "250")
+                  .send("QUIT", "221");
+        }
+
+        assertEquals(2, server.getReceivedEmails().size());
+        SmtpMessage email = server.getReceivedEmails().poll();
+        assertEquals("Pipelined", email.getHeaderValue("Subject"));
+        assertEquals(2, email.getEnvelopeRecipients().size());
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Minimal SMTP client talking to the server over a plain socket, for tests which need control over every byte sent.
+ */
+class RawSmtpClient implements AutoCloseable {
+
+    private Socket socket;
+
+    private BufferedReader in;
+
+    private OutputStream out;
+
+    RawSmtpClient(int port) throws IOException {
+        this(new Socket("localhost", port));
+    }
+
+    RawSmtpClient(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ISO_8859_1));
+        this.out = socket.getOutputStream();
+    }
+
+    /**
+     * Establish TLS after the server accepted STARTTLS.
+     *
+     * @return the TLS connection
+     */
+    SSLSocket startTls(SSLContext context) throws IOException {
+        SSLSocket tls =
+            (SSLSocket) context.getSocketFactory().createSocket(socket, "localhost", socket.getPort(), true);
+        tls.startHandshake();
+        socket = tls;
+        in = new BufferedReader(new InputStreamReader(tls.getInputStream(), ISO_8859_1));
+        out = tls.getOutputStream();
+        return tls;
+    }
+
+    /**
+     * Send a line and check the reply code.
+     */
+    RawSmtpClient send(String line, String expectedCode) throws IOException {
+        write(line + "\r\n");
+        return expect(expectedCode);
+    }
+
+    /**
+     * Send raw data without waiting for a reply.
+     */
+    RawSmtpClient write(String data) throws IOException {
+        out.write(data.getBytes(ISO_8859_1));
+        out.flush();
+        return this;
+    }
+
+    /**
+     * Read a reply line and check its code.
+     */
+    RawSmtpClient expect(String expectedCode) throws IOException {
+        String reply = readLine();
+        assertTrue("unexpected reply " + reply, reply != null && reply.startsWith(expectedCode));
+        return this;
+    }
+
+    /**
+     * Read a multi-line reply and check its code.
+     *
+     * @return the text of each line, without code and separator
+     */
+    List<String> expectMultiline(String expectedCode) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String reply;
+        do {
+            reply = readLine();
+            assertTrue("unexpected reply " + reply, reply != null && reply.startsWith(expectedCode));
+            lines.add(reply.substring(4));
+        } while (reply.charAt(3) == '-');
+        return lines;
+    }
+
+    String readLine() throws IOException {
+        return in.readLine();
+    }
+
+    /**
+     * Deliver a complete message in one transaction, the greeting is expected to be read already.
+     */
+    RawSmtpClient sendMail(String from, String to, String data) throws IOException {
+        return send("MAIL FROM:<" + from + ">", "250")
+            .send("RCPT TO:<" + to + ">", "250")
+            .send("DATA", "354")
+            .send(data + "\r\n.", "250");
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionRecordTest {
+
+    private SimpleSmtpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = SimpleSmtpServer.start(SimpleSmtpServer.AUTO_SMTP_PORT);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testSessionRecord() throws Exception {
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                  .send("HELO client.example.com", "250")
+                  .sendMail("sender@here.com", "receiver@there.com", "Subject: Recorded\r\n\r\nbody")
+                  .send("QUIT", "221");
+        }
+
+        SessionRecord record = server.getReceivedEmails().poll().getSessionRecord();
+        assertEquals("client.example.com", record.getHeloName());
+        assertTrue(((InetSocketAddress) record.getClientAddress()).getAddress().isLoopbackAddress());
+        assertFalse(record.getConnectedAt().isAfter(Instant.now()));
+        long mail = record.getElapsed(SessionRecord.Phase.MAIL, TimeUnit.NANOSECONDS);
+        long dataStart = record.getElapsed(SessionRecord.Phase.DATA_START, TimeUnit.NANOSECONDS);
+        long dataEnd = record.getElapsed(SessionRecord.Phase.DATA_END, TimeUnit.NANOSECONDS);
+        assertTrue(0 < mail && mail <= dataStart && dataStart <= dataEnd);
+        assertEquals(dataEnd - dataStart, record.getDuration(SessionRecord.Phase.DATA_START,
+                                                             SessionRecord.Phase.DATA_END, TimeUnit.NANOSECONDS));
+        assertTrue(record.getTranscript().isEmpty());
+    }
+
+    @Test
+    public void testTranscript() throws Exception {
+        try (SimpleSmtpServer recording = SimpleSmtpServer.builder()
+                                                          .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                          .recordTranscript(4)
+                                                          .start();
+             RawSmtpClient client = new RawSmtpClient(recording.getPort())) {
+            String data = "Subject: Recorded\r\n\r\nbody";
+            client.expect("220")
+                  .send("HELO client", "250")
+                  .sendMail("sender@here.com", "receiver@there.com", data)
+                  .send("QUIT", "221");
+
+            List<String> transcript = recording.getReceivedEmails().poll().getSessionRecord().getTranscript();
+            assertEquals(Arrays.asList("S: 250 OK", "C: DATA", "S: 354 Send message content; end with <CRLF>.<CRLF>",
+                                       "C: <" + (data.length() + 2) + " octets of message content>"), transcript);
+        }
+    }
+
+}
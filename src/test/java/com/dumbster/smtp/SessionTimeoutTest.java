@@ -0,0 +1,134 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTimeoutTest {
+
+    private SimpleSmtpServer server;
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testIdleSessionIsClosed() throws Exception {
+        server = SimpleSmtpServer.builder()
+                                 .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                 .maxSessions(2)
+                                 .readTimeout(200, TimeUnit.MILLISECONDS)
+                                 .start();
+        assertIdleSessionIsClosed();
+    }
+
+    @Test
+    public void testIdleSessionIsClosedNonBlocking() throws Exception {
+        server = SimpleSmtpServer.builder()
+                                 .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                 .nonBlocking(1)
+                                 .readTimeout(200, TimeUnit.MILLISECONDS)
+                                 .start();
+        assertIdleSessionIsClosed();
+    }
+
+    @Test
+    public void testBusySessionIsClosedAfterMaxDuration() throws Exception {
+        server = SimpleSmtpServer.builder()
+                                 .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                 .nonBlocking(1)
+                                 .readTimeout(200, TimeUnit.MILLISECONDS)
+                                 .maxSessionDuration(500, TimeUnit.MILLISECONDS)
+                                 .start();
+        long start = System.nanoTime();
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220").send("HELO client", "250");
+            String reply;
+            do {
+                Thread.sleep(50);
+                client.write("NOOP\r\n");
+                reply = client.readLine();
+            } while (reply.startsWith("250"));
+            assertTrue(reply, reply.startsWith("421 4.4.2 Maximum session duration"));
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsed + "ms", elapsed >= 500 && elapsed < 2000);
+    }
+
+    @Test
+    public void testStopClosesActiveSessions() throws Exception {
+        server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).maxSessions(2).start();
+        assertStopIsFast();
+    }
+
+    @Test
+    public void testStopClosesActiveSerialSession() throws Exception {
+        server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).start();
+        assertStopIsFast();
+    }
+
+    @Test
+    public void testStopWakesPausedSession() throws Exception {
+        server = SimpleSmtpServer.builder()
+                                 .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                 .maxSessions(2)
+                                 .faults(FaultProfile.builder().delay("NOOP", 1, TimeUnit.MINUTES).build())
+                                 .start();
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220").send("HELO client", "250").write("NOOP\r\n");
+            Thread.sleep(100);
+            long start = System.nanoTime();
+            server.stop();
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("took " + elapsed + "ms", elapsed < 1000);
+        }
+    }
+
+    private void assertIdleSessionIsClosed() throws IOException {
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220").send("HELO client", "250").expect("421 4.4.2 Idle timeout");
+            assertNull(client.readLine());
+        }
+        assertEquals(1, server.getMetrics().getTimedOutSessions());
+    }
+
+    private void assertStopIsFast() throws Exception {
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220").send("HELO client", "250");
+            long start = System.nanoTime();
+            server.stop();
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("took " + elapsed + "ms", elapsed < 1000);
+            try {
+                assertNull(client.readLine());
+            } catch (SocketException e) {
+                // connection reset, closed all the same
+            }
+        }
+    }
+
+}
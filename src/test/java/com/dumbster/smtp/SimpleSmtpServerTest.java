@@ -27,6 +27,7 @@ import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Properties;
 import java.util.Queue;
@@ -174,6 +175,21 @@ public class SimpleSmtpServerTest {
         assertEquals(body + "\n", email.getBody());
     }
 
+    @Test
+    public void testLineTooLong() throws Exception {
+        char[] local = new char[100_000];
+        Arrays.fill(local, 'a');
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                  .send("HELO client", "250")
+                  .send("MAIL FROM:<" + new String(local) + "@here.com>", "500")
+                  .sendMail("sender@here.com", "receiver@there.com", "Subject: After\r\n\r\nbody")
+                  .send("QUIT", "221");
+        }
+        assertEquals(1, server.getReceivedEmails().size());
+        assertEquals("After", server.getReceivedEmails().peek().getHeaderValue("Subject"));
+    }
+
     private Properties getMailProperties(int port) {
         Properties mailProps = new Properties();
         mailProps.setProperty("mail.smtp.host", "localhost");
@@ -0,0 +1,82 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SmtpLineDecoderTest {
+
+    @Test
+    public void testLineSpreadOverBuffers() {
+        SmtpLineDecoder decoder = new SmtpLineDecoder();
+        assertFalse(decoder.next(buffer("NO")));
+        assertFalse(decoder.next(buffer("OP\r")));
+        assertTrue(decoder.next(buffer("\nQUIT")));
+        assertEquals("NOOP", line(decoder));
+    }
+
+    @Test
+    public void testLineAtLimit() {
+        SmtpLineDecoder decoder = new SmtpLineDecoder(10);
+        assertTrue(decoder.next(buffer("0123456789\r\n")));
+        assertFalse(decoder.isTooLong());
+        assertEquals("0123456789", line(decoder));
+    }
+
+    @Test
+    public void testLineTooLong() {
+        SmtpLineDecoder decoder = new SmtpLineDecoder(10);
+        ByteBuffer in = buffer("0123456789A\r\nNOOP\r\n");
+        assertTrue(decoder.next(in));
+        assertTrue(decoder.isTooLong());
+        assertEquals(0, decoder.length());
+        assertTrue(decoder.next(in));
+        assertFalse(decoder.isTooLong());
+        assertEquals("NOOP", line(decoder));
+    }
+
+    @Test
+    public void testBufferStaysBounded() {
+        SmtpLineDecoder decoder = new SmtpLineDecoder();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10_000; i++)
+            text.append('a');
+        assertFalse(decoder.next(buffer(text + "\r")));
+        assertEquals(SmtpLineDecoder.MAX_LINE_LENGTH + 1, decoder.line().length);
+        assertTrue(decoder.next(buffer("\nNOOP\r\n")));
+        assertTrue(decoder.isTooLong());
+        assertTrue(decoder.next(buffer("NOOP\r\n")));
+        assertEquals("NOOP", line(decoder));
+        assertTrue(decoder.line().length < SmtpLineDecoder.MAX_LINE_LENGTH);
+    }
+
+    private static ByteBuffer buffer(String text) {
+        return ByteBuffer.wrap(text.getBytes(ISO_8859_1));
+    }
+
+    private static String line(SmtpLineDecoder decoder) {
+        return new String(decoder.line(), 0, decoder.length(), ISO_8859_1);
+    }
+
+}
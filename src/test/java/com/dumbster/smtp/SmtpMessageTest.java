@@ -0,0 +1,113 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SmtpMessageTest {
+
+    private static final String CONTENT = "Subject: Test\r\nX-Long: first\r\n  second\r\n\r\nline 1\r\nline 2";
+
+    @Test
+    public void testParseReceivedContent() {
+        SmtpMessage message = received(CONTENT);
+
+        assertEquals(CONTENT.length(), message.getSize());
+        assertEquals("Test", message.getHeaderValue("Subject"));
+        assertEquals("first second", message.getHeaderValue("X-Long"));
+        assertEquals("line 1\nline 2\n", message.getBody());
+        assertSame(message.getBody(), message.getBody());
+        assertEquals("Subject: Test\nX-Long: first second\n\nline 1\nline 2\n\n", message.toString());
+    }
+
+    @Test
+    public void testRawMessageKeepsContentAsReceived() {
+        ByteBuffer raw = received(CONTENT).getRawMessage();
+
+        assertTrue(raw.isReadOnly());
+        assertEquals(CONTENT, ISO_8859_1.decode(raw).toString());
+    }
+
+    @Test
+    public void testRawMessageRecreatedFromLines() {
+        SmtpMessage message = new SmtpMessage();
+        message.store(new SmtpResponse(-1, "", SmtpState.DATA_HDR), "Subject: Test");
+        message.store(new SmtpResponse(-1, "", SmtpState.DATA_BODY), "body");
+
+        assertEquals("Subject: Test\r\n\r\nbody\r\n", ISO_8859_1.decode(message.getRawMessage()).toString());
+    }
+
+    @Test
+    public void testHeadersAreCaseInsensitive() {
+        SmtpMessage message = received("Received: first\r\nSubject: Test\r\nRECEIVED: second\r\n\r\nbody");
+
+        assertEquals(Arrays.asList("first", "second"), message.getHeaderValues("received"));
+        assertEquals("Test", message.getHeaderValue("SUBJECT"));
+        assertEquals(new ArrayList<>(Arrays.asList("Received", "Subject")), new ArrayList<>(message.getHeaderNames()));
+        assertTrue(message.getHeaderValues("X-Missing").isEmpty());
+    }
+
+    @Test
+    public void testSkipContinuationLineBeforeFirstHeader() {
+        SmtpMessage message = received(" folded\r\nSubject: x\r\n\r\nbody");
+
+        assertEquals("x", message.getHeaderValue("Subject"));
+        assertEquals("body\n", message.getBody());
+        assertEquals(Arrays.asList("Subject"), new ArrayList<>(message.getHeaderNames()));
+        assertEquals("Subject: x\n\nbody\n\n", message.toString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testContentStoredOnlyOnce() {
+        SmtpMessage message = received(CONTENT);
+        message.storeData(new byte[1], 1);
+    }
+
+    @Test
+    public void testPeekHeaderValueLeavesHeadersUnparsed() {
+        SmtpMessage message = received("subject : Folded\r\n  twice\r\nno colon\r\n again\r\n"
+                                       + "Message-ID: <1@here.com>\r\n\r\nX-Body: no header\r\n");
+
+        assertEquals("Folded twice again", message.peekHeaderValue("Subject"));
+        assertEquals("<1@here.com>", message.peekHeaderValue("message-id"));
+        assertNull(message.peekHeaderValue("X-Body"));
+        assertFalse(message.isHeadersParsed());
+
+        assertEquals("Folded twice again", message.getHeaderValue("Subject"));
+        assertTrue(message.isHeadersParsed());
+        assertEquals("<1@here.com>", message.peekHeaderValue("Message-ID"));
+    }
+
+    private static SmtpMessage received(String content) {
+        byte[] data = content.getBytes(ISO_8859_1);
+        SmtpMessage message = new SmtpMessage();
+        message.storeData(data, data.length);
+        return message;
+    }
+
+}
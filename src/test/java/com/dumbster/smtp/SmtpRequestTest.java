@@ -20,7 +20,10 @@ package com.dumbster.smtp;
 
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class SmtpRequestTest {
 
@@ -73,5 +76,87 @@ public class SmtpRequestTest {
 		assertEquals(-1, response.getCode());
 	}
 
+	@Test
+	public void testCommandsAreCaseInsensitive() {
+		SmtpRequest request = SmtpRequest.createRequest("mail from:<sender@here.com>", SmtpState.MAIL);
+		SmtpResponse response = request.execute();
+		assertEquals(250, response.getCode());
+		assertEquals(SmtpState.RCPT, response.getNextState());
+		assertEquals("<sender@here.com>", request.params);
+	}
+
+	@Test
+	public void testCommandParsedFromLinePrefix() {
+		byte[] buffer = "RCPT TO:<receiver@there.com>trailing garbage".getBytes(StandardCharsets.ISO_8859_1);
+		SmtpRequest request = SmtpRequest.createRequest(buffer, 28, SmtpState.RCPT);
+		assertEquals("<receiver@there.com>", request.params);
+		assertEquals(250, request.execute().getCode());
+	}
+
+	@Test
+	public void testConstantResponsesAreShared() {
+		SmtpResponse first = SmtpRequest.createRequest("NOOP", SmtpState.MAIL).execute();
+		SmtpResponse second = SmtpRequest.createRequest("noop", SmtpState.MAIL).execute();
+		assertSame(first, second);
+		assertEquals(SmtpState.MAIL, first.getNextState());
+	}
+
+	@Test
+	public void testBadSequenceNamesCommand() {
+		SmtpResponse response = SmtpRequest.createRequest("DATA", SmtpState.MAIL).execute();
+		assertEquals(503, response.getCode());
+		assertEquals("Bad sequence of commands: DATA", response.getMessage());
+		assertEquals(SmtpState.MAIL, response.getNextState());
+	}
+
+	@Test
+	public void testMailWithoutAuthenticationAfterEhlo() {
+		SmtpRequest request = SmtpRequest.createRequest("MAIL FROM:<sender@here.com>", SmtpState.AUTH_PLAIN);
+		SmtpResponse response = request.execute();
+		assertEquals(250, response.getCode());
+		assertEquals(SmtpState.RCPT, response.getNextState());
+	}
+
+	@Test
+	public void testAuth() {
+		SmtpRequest request = SmtpRequest.createRequest("auth cram-md5", SmtpState.AUTH_PLAIN);
+		assertEquals(SmtpActionType.AUTH, request.action);
+		assertEquals(SmtpState.CREDENTIALS, request.execute().getNextState());
+		assertEquals(504, SmtpRequest.createRequest("AUTH GSSAPI", SmtpState.AUTH_PLAIN).execute().getCode());
+		assertEquals("PLAIN", SmtpRequest.mechanism("PLAIN dGVzdA=="));
+		assertEquals("dGVzdA==", SmtpRequest.initialResponse("PLAIN dGVzdA=="));
+		assertEquals(null, SmtpRequest.initialResponse("LOGIN"));
+	}
+
+	@Test
+	public void testAuthResponseLookingLikeCommand() {
+		SmtpRequest request = SmtpRequest.createRequest("QUIT", SmtpState.CREDENTIALS);
+		assertEquals(SmtpActionType.AUTH_RESPONSE, request.action);
+		assertEquals(501, SmtpRequest.createRequest("*", SmtpState.CREDENTIALS).execute().getCode());
+	}
+
+	@Test
+	public void testStartTls() {
+		SmtpResponse response = SmtpRequest.createRequest("starttls", SmtpState.AUTH_PLAIN).execute();
+		assertEquals(220, response.getCode());
+		assertEquals(SmtpState.GREET, response.getNextState());
+		assertEquals(503, SmtpRequest.createRequest("STARTTLS", SmtpState.RCPT).execute().getCode());
+	}
+
+	@Test
+	public void testBdatParameters() {
+		assertEquals(1000, SmtpRequest.chunkSize("1000"));
+		assertEquals(0, SmtpRequest.chunkSize("0 LAST"));
+		assertEquals(-1, SmtpRequest.chunkSize("ten"));
+		assertEquals(-1, SmtpRequest.chunkSize("10 FIRST"));
+		assertEquals(-1, SmtpRequest.chunkSize("9999999999"));
+		assertEquals(true, SmtpRequest.isLastChunk("10 last"));
+		assertEquals(false, SmtpRequest.isLastChunk("10"));
+		assertEquals(501, SmtpRequest.createRequest("BDAT x", SmtpState.RCPT).execute().getCode());
+		assertEquals(503, SmtpRequest.createRequest("BDAT 10", SmtpState.MAIL).execute().getCode());
+		SmtpRequest afterEhlo = SmtpRequest.createRequest("BDAT 10", SmtpState.AUTH_PLAIN);
+		assertEquals(SmtpActionType.BDAT, afterEhlo.action);
+		assertEquals(503, afterEhlo.execute().getCode());
+	}
 
 }
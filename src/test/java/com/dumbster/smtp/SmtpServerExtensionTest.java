@@ -0,0 +1,106 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(SmtpServerExtension.class)
+class SmtpServerExtensionTest {
+
+    private static final List<Mailbox> MAILBOXES = new CopyOnWriteArrayList<>();
+
+    private static final Set<Integer> PORTS = ConcurrentHashMap.newKeySet();
+
+    private Mailbox mailbox;
+
+    @BeforeEach
+    void setUp(Mailbox mailbox) {
+        this.mailbox = mailbox;
+        MAILBOXES.add(mailbox);
+        PORTS.add(mailbox.getPort());
+    }
+
+    @AfterAll
+    static void mailboxesAreRemoved() throws IOException {
+        assertEquals(1, PORTS.size());
+        for (Mailbox closed : MAILBOXES) {
+            send(closed, closed.address("user@there.com"), "Late");
+            assertTrue(closed.getMessages().isEmpty());
+        }
+    }
+
+    @Test
+    void receivesMessagesSentToItsAddress(Mailbox mailbox) throws Exception {
+        assertSame(this.mailbox, mailbox);
+        send(mailbox, mailbox.address("user@there.com"), "Tagged");
+        send(mailbox, "user+unknown@there.com", "Untagged");
+
+        List<SmtpMessage> messages = mailbox.awaitMessages(1, 5, TimeUnit.SECONDS);
+        assertEquals("Tagged", messages.get(0).getHeaderValue("Subject"));
+        assertEquals(1, mailbox.getMessages().size());
+    }
+
+    @Test
+    void getsMailboxOfItsOwn(Mailbox mailbox) {
+        String key = mailbox.getPartitionKey();
+        assertEquals(1, MAILBOXES.stream().filter(other -> other.getPartitionKey().equals(key)).count());
+        assertTrue(mailbox.getMessages().isEmpty());
+    }
+
+    @Nested
+    class ConstructorInjection {
+
+        private final Mailbox injected;
+
+        ConstructorInjection(Mailbox mailbox) {
+            this.injected = mailbox;
+        }
+
+        @Test
+        void sharesMailboxWithTests(Mailbox mailbox) {
+            assertNotNull(injected);
+            assertSame(injected, mailbox);
+            assertSame(injected, SmtpServerExtensionTest.this.mailbox);
+        }
+
+    }
+
+    private static void send(Mailbox mailbox, String to, String subject) throws IOException {
+        try (RawSmtpClient client = new RawSmtpClient(mailbox.getPort())) {
+            client.expect("220").send("HELO client", "250")
+                  .sendMail("sender@here.com", to, "Subject: " + subject + "\r\n\r\nbody")
+                  .send("QUIT", "221");
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SubscriptionBackpressureTest {
+
+    private SimpleSmtpServer server;
+
+    @After
+    public void tearDown() {
+        if (server != null)
+            server.stop();
+    }
+
+    @Test(timeout = 20000)
+    public void testLaggingSubscriberHoldsBackDeliveringSession() throws Exception {
+        server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).maxSessions(2).start();
+        deliverToLaggingSubscriber();
+    }
+
+    @Test(timeout = 20000)
+    public void testLaggingSubscriberHoldsBackDeliveringSessionNonBlocking() throws Exception {
+        // a single event loop, which must go on serving the other session
+        server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).nonBlocking(1).start();
+        deliverToLaggingSubscriber();
+    }
+
+    @Test(timeout = 20000)
+    public void testDroppingSubscriptionStaysWithinBufferSize() throws Exception {
+        MailStore store = MailStore.unbounded();
+        CountDownLatch listening = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MessageListener lagging = message -> {
+            listening.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        try (MessageSubscription subscription = store.subscribe(lagging, 4, OverflowPolicy.DROP)) {
+            receive(store);
+            assertTrue(listening.await(5, TimeUnit.SECONDS));
+            AtomicInteger maxPending = new AtomicInteger();
+            List<Thread> sessions = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Thread session = new Thread(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        receive(store);
+                        maxPending.accumulateAndGet(subscription.getPending(), Math::max);
+                    }
+                });
+                session.start();
+                sessions.add(session);
+            }
+            for (Thread session : sessions)
+                session.join();
+            assertEquals(4, maxPending.get());
+            assertEquals(4, subscription.getPending());
+            assertEquals(8000 - 4, subscription.getDroppedCount());
+            release.countDown();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testClosingSubscriptionReleasesHeldBackSessions() throws Exception {
+        MailStore store = MailStore.unbounded();
+        CountDownLatch release = new CountDownLatch(1);
+        MessageSubscription subscription = store.subscribe(message -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 1);
+        receive(store);
+        receive(store);
+        assertTrue(store.isBackedUp());
+        CountDownLatch released = new CountDownLatch(1);
+        store.whenNotBackedUp(released::countDown);
+        assertEquals(1, released.getCount());
+
+        subscription.close();
+        assertTrue(released.await(5, TimeUnit.SECONDS));
+        assertFalse(store.isBackedUp());
+        release.countDown();
+    }
+
+    @Test
+    public void testSubscribe() throws Exception {
+        server = SimpleSmtpServer.start(SimpleSmtpServer.AUTO_SMTP_PORT);
+        BlockingQueue<SmtpMessage> delivered = new LinkedBlockingQueue<>();
+        MessageSubscription closed;
+        try (MessageSubscription subscription = server.subscribe(delivered::add, 1)) {
+            send("First");
+            send("Second");
+
+            assertEquals("First", delivered.poll(10, TimeUnit.SECONDS).getHeaderValue("Subject"));
+            assertEquals("Second", delivered.poll(10, TimeUnit.SECONDS).getHeaderValue("Subject"));
+            closed = subscription;
+        }
+        assertTrue(closed.isClosed());
+
+        send("Third");
+        assertEquals(3, server.getReceivedEmails().size());
+        assertTrue(delivered.isEmpty());
+    }
+
+    @Test(timeout = 20000)
+    public void testSlowSubscriberDropsMessagesWhenAskedTo() throws Exception {
+        server = SimpleSmtpServer.start(SimpleSmtpServer.AUTO_SMTP_PORT);
+        CountDownLatch listening = new CountDownLatch(1);
+        CountDownLatch never = new CountDownLatch(1);
+        MessageListener stuck = message -> {
+            listening.countDown();
+            try {
+                never.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        try (MessageSubscription subscription = server.subscribe(stuck, 1, OverflowPolicy.DROP)) {
+            send("First");
+            listening.await();
+            send("Second");
+            send("Third");
+
+            assertEquals(3, server.getReceivedEmails().size());
+            assertEquals(1, subscription.getPending());
+            assertEquals(1, subscription.getDroppedCount());
+            assertEquals(1, server.getMailStore().getDroppedCount());
+        }
+    }
+
+    private void send(String subject) throws IOException {
+        try (RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                  .send("HELO client", "250")
+                  .sendMail("sender@here.com", "receiver@there.com", "Subject: " + subject + "\r\n\r\nTest Body")
+                  .send("QUIT", "221");
+        }
+    }
+
+    private static void receive(MailStore store) {
+        byte[] content = "Subject: x\r\n\r\nbody\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        SmtpMessage message = new SmtpMessage();
+        message.storeData(content, content.length);
+        store.receive(message, content, content.length);
+    }
+
+    /**
+     * Fill the buffer of a subscriber which does not return, check that the reply to the message filling it is held
+     * back while another session goes on, then let the subscriber catch up.
+     */
+    private void deliverToLaggingSubscriber() throws Exception {
+        CountDownLatch listening = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        MessageListener lagging = message -> {
+            listening.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            delivered.add(message.getHeaderValue("Subject"));
+        };
+        try (MessageSubscription subscription = server.subscribe(lagging, 1);
+             RawSmtpClient client = new RawSmtpClient(server.getPort());
+             RawSmtpClient other = new RawSmtpClient(server.getPort())) {
+            client.expect("220")
+                  .send("HELO client", "250")
+                  .sendMail("sender@here.com", "receiver@there.com", "Subject: 1\r\n\r\nbody");
+            assertTrue(listening.await(5, TimeUnit.SECONDS));
+
+            client.send("MAIL FROM:<sender@here.com>", "250")
+                  .send("RCPT TO:<receiver@there.com>", "250")
+                  .send("DATA", "354")
+                  .write("Subject: 2\r\n\r\nbody\r\n.\r\n");
+            CompletableFuture<String> reply = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return client.readLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            other.expect("220").send("HELO other", "250").send("NOOP", "250");
+            try {
+                reply.get(200, TimeUnit.MILLISECONDS);
+                fail("reply was not held back");
+            } catch (TimeoutException e) {
+                // held back as expected
+            }
+            assertEquals(2, server.getReceivedEmails().size());
+            assertEquals(1, subscription.getPending());
+            assertEquals(0, subscription.getDroppedCount());
+
+            release.countDown();
+            assertTrue(reply.get(5, TimeUnit.SECONDS).startsWith("250"));
+            client.send("QUIT", "221");
+            while (delivered.size() < 2)
+                Thread.sleep(10);
+            assertEquals(asList("1", "2"), delivered);
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TlsTest {
+
+    @Test
+    public void testStartTls() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .startTls()
+                                                       .start();
+             RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+
+            client.expect("220");
+            client.write("EHLO localhost\r\n");
+            assertTrue(client.expectMultiline("250").contains("STARTTLS"));
+            client.send("STARTTLS", "220");
+
+            SSLSocket tls = client.startTls(TlsContexts.client());
+            assertTrue(tls.getSession().isValid());
+
+            client.write("EHLO localhost\r\n");
+            assertFalse(client.expectMultiline("250").contains("STARTTLS"));
+            client.sendMail("sender@example.com", "receiver@example.com", "Subject: Secret\r\n\r\nTest body")
+                  .send("STARTTLS", "503")
+                  .send("QUIT", "221");
+
+            SmtpMessage message = server.awaitMessages(1, 5, TimeUnit.SECONDS).get(0);
+            assertEquals("Secret", message.getHeaderValue("Subject"));
+        }
+    }
+
+    @Test
+    public void testInputPipelinedAfterStartTlsIsDiscarded() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .startTls()
+                                                       .start();
+             RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+
+            client.expect("220");
+            client.write("EHLO localhost\r\n");
+            client.expectMultiline("250");
+            client.write("STARTTLS\r\nMAIL FROM:<injected@example.com>\r\n").expect("220");
+
+            client.startTls(TlsContexts.client());
+            client.send("MAIL FROM:<sender@example.com>", "503");
+        }
+    }
+
+    @Test
+    public void testStartTlsNotOffered() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).start();
+             RawSmtpClient client = new RawSmtpClient(server.getPort())) {
+
+            client.expect("220");
+            client.write("EHLO localhost\r\n");
+            assertFalse(client.expectMultiline("250").contains("STARTTLS"));
+            client.send("STARTTLS", "502")
+                  .sendMail("sender@example.com", "receiver@example.com", "Subject: Plain\r\n\r\nTest body");
+        }
+    }
+
+    @Test
+    public void testImplicitTls() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .implicitTls()
+                                                       .start()) {
+
+            try (RawSmtpClient client = new RawSmtpClient(connect(TlsContexts.client(), server.getPort()))) {
+                client.expect("220");
+                client.write("EHLO localhost\r\n");
+                assertFalse(client.expectMultiline("250").contains("STARTTLS"));
+                client.sendMail("sender@example.com", "receiver@example.com", "Subject: Secret\r\n\r\nTest body")
+                      .send("QUIT", "221");
+            }
+            assertEquals(1, server.getReceivedEmails().size());
+        }
+    }
+
+    @Test
+    public void testSessionResumption() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .implicitTls()
+                                                       .start()) {
+
+            SSLContext context = TlsContexts.client();
+            byte[] first = sessionId(context, server.getPort());
+            byte[] second = sessionId(context, server.getPort());
+            assertTrue(first.length > 0);
+            assertArrayEquals(first, second);
+            assertFalse(Arrays.equals(first, sessionId(TlsContexts.client(), server.getPort())));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonBlockingEngineRejectsTls() throws Exception {
+        SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).nonBlocking(1).startTls().start();
+    }
+
+    private static SSLSocket connect(SSLContext context, int port) throws Exception {
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port);
+        // session ids are only kept stable by resumption up to TLS 1.2
+        socket.setEnabledProtocols(new String[]{"TLSv1.2"});
+        return socket;
+    }
+
+    private static byte[] sessionId(SSLContext context, int port) throws Exception {
+        SSLSocket socket = connect(context, port);
+        try (RawSmtpClient client = new RawSmtpClient(socket)) {
+            client.expect("220").send("QUIT", "221");
+            return socket.getSession().getId();
+        }
+    }
+
+}
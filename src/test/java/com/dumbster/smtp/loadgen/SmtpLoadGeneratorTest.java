@@ -0,0 +1,109 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2018 Christian Meyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp.loadgen;
+
+import com.dumbster.smtp.CredentialTable;
+import com.dumbster.smtp.SimpleSmtpServer;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SmtpLoadGeneratorTest {
+
+    @Test
+    public void testDeliverAllMessages() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .maxSessions(4)
+                                                       .start()) {
+
+            LoadReport report = SmtpLoadGenerator.builder(server.getPort())
+                                                 .connections(4)
+                                                 .messagesPerConnection(25)
+                                                 .messageSize(2048)
+                                                 .build()
+                                                 .run();
+
+            assertEquals(100, report.getDelivered());
+            assertEquals(0, report.getFailedConnections());
+            assertEquals(100, server.getReceivedEmails().size());
+            assertEquals("Load", server.getReceivedEmails().peek().getHeaderValue("Subject"));
+            assertTrue(server.getReceivedEmails().peek().getSize() >= 2048);
+            assertTrue(report.getLatency(50, TimeUnit.NANOSECONDS) <= report.getLatency(99, TimeUnit.NANOSECONDS));
+        }
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .nonBlocking(1)
+                                                       .start()) {
+
+            LoadReport report = SmtpLoadGenerator.builder(server.getPort())
+                                                 .connections(2)
+                                                 .messagesPerConnection(10)
+                                                 .pipelining()
+                                                 .build()
+                                                 .run();
+
+            assertEquals(20, report.getDelivered());
+            assertEquals(20, server.getReceivedEmails().size());
+        }
+    }
+
+    @Test
+    public void testAuthentication() throws Exception {
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder()
+                                                       .port(SimpleSmtpServer.AUTO_SMTP_PORT)
+                                                       .maxSessions(2)
+                                                       .authenticator(new CredentialTable().add("user", "secret"))
+                                                       .start()) {
+
+            LoadReport report = SmtpLoadGenerator.builder(server.getPort())
+                                                 .connections(2)
+                                                 .messagesPerConnection(5)
+                                                 .authenticate("user", "secret")
+                                                 .build()
+                                                 .run();
+            assertEquals(10, report.getDelivered());
+            assertEquals("user", server.getReceivedEmails().peek().getCredentials().getUsername());
+
+            report = SmtpLoadGenerator.builder(server.getPort()).authenticate("user", "guess").build().run();
+            assertEquals(0, report.getDelivered());
+            assertEquals(1, report.getFailedConnections());
+        }
+    }
+
+    @Test
+    public void testFailedConnection() throws Exception {
+        int port;
+        try (SimpleSmtpServer server = SimpleSmtpServer.builder().port(SimpleSmtpServer.AUTO_SMTP_PORT).start()) {
+            port = server.getPort();
+        }
+
+        LoadReport report = SmtpLoadGenerator.builder(port).build().run();
+
+        assertEquals(0, report.getDelivered());
+        assertEquals(1, report.getFailedConnections());
+        assertEquals(0, report.getLatency(99, TimeUnit.MILLISECONDS));
+    }
+
+}